@@ -0,0 +1,87 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end extraction of single- and multi-dex oat files to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractBenchmark {
+
+    @Param({"1", "8"})
+    int dexCount;
+
+    @Param({"65536", "4194304"})
+    int dexSize;
+
+    @Param({"1", "4"})
+    int threads;
+
+    File dir;
+    File oat;
+    File outdir;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dexfromoat-jmh").toFile();
+        oat = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, dexCount, dexSize, 1000).write(dir);
+        outdir = new File(dir, "out");
+        if (!outdir.mkdir()) {
+            throw new IOException("cannot create " + outdir);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Benchmark
+    public void extract() {
+        if (!DexFromOat.dexFromOat(oat.getPath(), outdir.getPath(), new ExtractOptions().parallelism(threads))) {
+            throw new IllegalStateException("extraction failed");
+        }
+    }
+}
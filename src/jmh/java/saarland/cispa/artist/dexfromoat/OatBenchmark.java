@@ -0,0 +1,89 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import saarland.cispa.artist.dexfromoat.elf.Elf;
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Oat header and OatDexFile table parsing, i.e. everything up to the first dex byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OatBenchmark {
+
+    @Param({"32", "64"})
+    int bits;
+
+    @Param({"LITTLE_ENDIAN", "BIG_ENDIAN"})
+    String order;
+
+    @Param({"1", "16", "64"})
+    int dexCount;
+
+    @Param({"1000"})
+    int classesPerDex;
+
+    File dir;
+    ByteSource source;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dexfromoat-jmh").toFile();
+        ByteOrder byteOrder = order.equals("BIG_ENDIAN") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        File oat = new OatFixture(bits, byteOrder, dexCount, 64 * 1024, classesPerDex).write(dir);
+        source = MappedByteSource.open(oat.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Benchmark
+    public Oat parseOat() throws IOException, ParseException {
+        return new Oat(Elf.parse(source), null);
+    }
+}
@@ -0,0 +1,905 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+
+/**
+ * Generates synthetic, structurally valid oat files for the benchmarks.
+ *
+ * The layout follows what dex2oat emits for Marshmallow (oat version 064):
+ * .dynsym/.dynstr/.hash, a page aligned .rodata holding oatdata (oat header,
+ * key-value store, OatDexFile table, dex files), .text, .dynamic and the
+ * section header table at the end of the file.
+ *
+ * From oat version 124 (O) on, the oat header and OatDexFile records take the
+ * layout of the release the version belongs to, and the dex files go into a
+ * vdex file written next to the oat file, in the vdex layout of the same release:
+ * 006 (O), 010 (O MR1), 019 (P), 021 (Q, R) or 027 (S). From P on the dex files
+ * can be CompactDex files sharing one data section, see {@link #compact(boolean)}.
+ */
+public class OatFixture {
+
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    static final int PAGE = 4096;
+    static final int CDEX_HEADER_SIZE = 0x88;
+    static final int VDEX_SECTIONS_OFFSET = 12;
+    static final int VDEX_SECTIONS = 4;
+
+    static final String KEY_VALUE_STORE = "classpath\0\0"
+            + "compiler-filter\0speed\0"
+            + "dex2oat-cmdline\0--dex-file=/data/app/fixture.apk --oat-fd=5\0"
+            + "image-location\0/system/framework/boot.art\0"
+            + "pic\0false\0";
+
+    public final int bits;
+    public final ByteOrder order;
+    public final int dexCount;
+    public final int dexSize;
+    public final int classesPerDex;
+    public final int version;
+    private boolean gnuHash;
+    private boolean compact;
+    private int rodataPadding;
+    private boolean sectionHeadersFirst;
+
+    public OatFixture(int bits, ByteOrder order, int dexCount, int dexSize, int classesPerDex) {
+        this(bits, order, dexCount, dexSize, classesPerDex, 64);
+    }
+
+    /**
+     * @param version the oat version, e.g. 64 (M), 124 (O), 138 (P), 170 (Q), 183 (R) or 195 (S)
+     */
+    public OatFixture(int bits, ByteOrder order, int dexCount, int dexSize, int classesPerDex, int version) {
+        this.bits = bits;
+        this.order = order;
+        this.dexCount = dexCount;
+        this.dexSize = dexSize;
+        this.classesPerDex = classesPerDex;
+        this.version = version;
+    }
+
+    /**
+     * Emits a GNU hash table (DT_GNU_HASH) instead of the SysV one, as current toolchains do.
+     */
+    public OatFixture gnuHash(boolean gnuHash) {
+        this.gnuHash = gnuHash;
+        return this;
+    }
+
+    /**
+     * Stores the dex files as CompactDex files that keep their string data and map
+     * in a data section shared by all of them, behind the last one, as dex2oat does
+     * from P on. Has no effect before oat version 138.
+     */
+    public OatFixture compact(boolean compact) {
+        this.compact = compact;
+        return this;
+    }
+
+    /**
+     * Leaves {@code pages} zero pages in the read-only segment in front of .rodata.
+     */
+    public OatFixture rodataPadding(int pages) {
+        this.rodataPadding = pages;
+        return this;
+    }
+
+    /**
+     * Writes .shstrtab and the section header table right behind the program headers
+     * instead of at the end of the file, where dex2oat puts them.
+     */
+    public OatFixture sectionHeadersFirst(boolean sectionHeadersFirst) {
+        this.sectionHeadersFirst = sectionHeadersFirst;
+        return this;
+    }
+
+    public boolean hasVdex() {
+        return version >= 124;
+    }
+
+    /**
+     * The vdex version of the release the oat version belongs to.
+     */
+    public int vdexVersion() {
+        if (version >= 195) {
+            return 27;
+        }
+        if (version >= 170) {
+            return 21;
+        }
+        if (version >= 138) {
+            return 19;
+        }
+        return version >= 131 ? 10 : 6;
+    }
+
+    boolean isCompact() {
+        return compact && version >= 138;
+    }
+
+    public String location(int index) {
+        return "/data/app/fixture.apk" + (index == 0 ? "" : ":classes" + (index + 1) + ".dex");
+    }
+
+    /**
+     * Writes the oat file, and from O on its vdex file under the same name.
+     *
+     * @return the oat file
+     */
+    public File write(File dir) throws IOException {
+        String name = "fixture-" + bits + "-" + (order == ByteOrder.BIG_ENDIAN ? "be" : "le")
+                + "-" + dexCount + "x" + dexSize + (version != 64 ? String.format("-v%03d", version) : "");
+        File f = new File(dir, name + ".oat");
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(build());
+        }
+        if (hasVdex()) {
+            try (FileOutputStream out = new FileOutputStream(new File(dir, name + ".vdex"))) {
+                out.write(buildVdex());
+            }
+        }
+        return f;
+    }
+
+    /**
+     * The dex files as they are stored, CompactDex files without their shared data.
+     */
+    byte[][] dexes() {
+        if (isCompact()) {
+            return compactDexes().dexes;
+        }
+        byte[][] dexes = new byte[dexCount][];
+        for (int i = 0; i < dexCount; i++) {
+            dexes[i] = dex(i, classesPerDex, dexSize);
+        }
+        return dexes;
+    }
+
+    /**
+     * Builds the vdex file holding the dex files from O on. All versions start with
+     * the magic and the version:
+     * <ul>
+     *     <li>006, 010: dex count, dex, verifier deps and quickening info sizes, dex checksums, dex files</li>
+     *     <li>019: dex section version, dex count, verifier deps size, dex checksums, then the
+     *     dex section: dex, shared data and quickening info sizes, and every dex file behind
+     *     the offset of its quickening table, followed by the shared data</li>
+     *     <li>021: as 019, plus the boot classpath checksums and class loader context sizes
+     *     in front of the dex checksums</li>
+     *     <li>027: a table of the checksum, dex, verifier deps and type lookup table sections</li>
+     * </ul>
+     */
+    public byte[] buildVdex() {
+        byte[][] dexes = dexes();
+        int[] offsets = vdexOffsets(dexes);
+        byte[] shared = isCompact() ? compactDexes().shared : new byte[0];
+        int dexStart = vdexHeaderSize(dexes.length);
+        int sharedOffset = dexEnd(dexes, offsets);
+        int end = (int) align(sharedOffset + shared.length, 4);
+        int vdex = vdexVersion();
+        ByteBuffer b = ByteBuffer.allocate(end).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(String.format("vdex%03d\0", vdex).getBytes(LATIN1));
+        int checksums;
+        if (vdex >= 27) {
+            checksums = VDEX_SECTIONS_OFFSET + 12 * VDEX_SECTIONS;
+            int[][] sections = {
+                    {0, checksums, 4 * dexes.length},
+                    {1, dexStart, end - dexStart},
+                    {2, end, 0},
+                    {3, end, 0},
+            };
+            b.putInt(8, sections.length);
+            for (int i = 0; i < sections.length; i++) {
+                for (int j = 0; j < 3; j++) {
+                    b.putInt(VDEX_SECTIONS_OFFSET + 12 * i + 4 * j, sections[i][j]);
+                }
+            }
+        } else if (vdex >= 19) {
+            put(b, 8, "002\0".getBytes(LATIN1));
+            b.putInt(12, dexes.length);
+            // verifier deps size, and from 021 on the boot classpath checksums and class loader context sizes stay 0
+            checksums = vdex >= 21 ? 28 : 20;
+            b.putInt(dexStart - 12, sharedOffset - dexStart);
+            b.putInt(dexStart - 8, shared.length);
+        } else {
+            b.putInt(8, dexes.length);
+            b.putInt(12, end - dexStart);
+            checksums = 24;
+        }
+        for (int i = 0; i < dexes.length; i++) {
+            b.putInt(checksums + 4 * i, checksum(dexes[i]));
+            put(b, offsets[i], dexes[i]);
+        }
+        put(b, sharedOffset, shared);
+        return b.array();
+    }
+
+    /**
+     * Where the first dex file, or the offset of its quickening table, goes in the vdex file.
+     */
+    int vdexHeaderSize(int count) {
+        int vdex = vdexVersion();
+        if (vdex >= 27) {
+            return VDEX_SECTIONS_OFFSET + 12 * VDEX_SECTIONS + 4 * count;
+        }
+        if (vdex >= 19) {
+            // the dex checksums, then the dex section header
+            return (vdex >= 21 ? 28 : 20) + 4 * count + 12;
+        }
+        return 24 + 4 * count;
+    }
+
+    int[] vdexOffsets(byte[][] dexes) {
+        int[] offsets = new int[dexes.length];
+        long offset = vdexHeaderSize(dexes.length);
+        for (int i = 0; i < dexes.length; i++) {
+            if (vdexVersion() == 19 || vdexVersion() == 21) {
+                // the quickening table offset, always 0 here
+                offset += 4;
+            }
+            offsets[i] = (int) offset;
+            offset = align(offset + dexes[i].length, 4);
+        }
+        return offsets;
+    }
+
+    /**
+     * The end of the last dex file in the vdex file, aligned to 4 bytes; the shared data starts there.
+     */
+    int dexEnd(byte[][] dexes, int[] offsets) {
+        int n = dexes.length;
+        return n == 0 ? vdexHeaderSize(0) : (int) align(offsets[n - 1] + dexes[n - 1].length, 4);
+    }
+
+    /**
+     * The dex file as dexfromoat writes it: the dex file itself, or for CompactDex
+     * files the file with its shared data appended.
+     */
+    public byte[] extracted(int index) {
+        return isCompact() ? compactDexes().standalone[index] : dex(index, classesPerDex, dexSize);
+    }
+
+    /**
+     * The CompactDex files as stored, their shared data section and each of them as a
+     * file of its own.
+     */
+    static class CompactDexes {
+        byte[][] dexes;
+        byte[] shared;
+        byte[][] standalone;
+    }
+
+    /**
+     * Lays the CompactDex files out in the vdex file. Stored, data_off points from each
+     * file to the shared data behind the last one. Standalone, the shared data follows
+     * the 4-byte aligned file and data_off points there. The signature is the SHA-1 of
+     * the standalone file, which ART does not check, so that the extracted files can be.
+     */
+    CompactDexes compactDexes() {
+        CompactDexes c = new CompactDexes();
+        c.dexes = new byte[dexCount][];
+        byte[][] chunks = new byte[dexCount][];
+        int dataSize = 0;
+        for (int i = 0; i < dexCount; i++) {
+            byte[][] parts = compactDex(i, classesPerDex, dexSize, dataSize);
+            c.dexes[i] = parts[0];
+            chunks[i] = parts[1];
+            dataSize = (int) align(dataSize + chunks[i].length, 4);
+        }
+        ByteBuffer shared = ByteBuffer.allocate(dataSize);
+        for (int i = 0; i < dexCount; i++) {
+            put(shared, shared.position(), chunks[i]);
+            shared.position((int) align(shared.position(), 4));
+        }
+        c.shared = shared.array();
+        int[] offsets = vdexOffsets(c.dexes);
+        int sharedOffset = dexEnd(c.dexes, offsets);
+        c.standalone = new byte[dexCount][];
+        for (int i = 0; i < dexCount; i++) {
+            byte[] dex = c.dexes[i];
+            int padded = (int) align(dex.length, 4);
+            ByteBuffer standalone = ByteBuffer.allocate(padded + c.shared.length).order(ByteOrder.LITTLE_ENDIAN);
+            put(standalone, 0, dex);
+            put(standalone, padded, c.shared);
+            standalone.putInt(32, padded + c.shared.length);
+            standalone.putInt(104, c.shared.length);
+            standalone.putInt(108, padded);
+            byte[] signature = sha1(standalone.array(), 32, standalone.capacity() - 32);
+            put(standalone, 12, signature);
+            Adler32 adler = new Adler32();
+            adler.update(standalone.array(), 12, standalone.capacity() - 12);
+            standalone.putInt(8, (int) adler.getValue());
+            c.standalone[i] = standalone.array();
+
+            ByteBuffer stored = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+            stored.putInt(104, c.shared.length);
+            stored.putInt(108, sharedOffset - offsets[i]);
+            put(stored, 12, signature);
+            // like ART, the checksum of a CompactDex file covers its shared data
+            adler = new Adler32();
+            adler.update(dex, 12, dex.length - 12);
+            adler.update(c.shared);
+            stored.putInt(8, (int) adler.getValue());
+        }
+        return c;
+    }
+
+    static int checksum(byte[] dex) {
+        return ByteBuffer.wrap(dex, 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /**
+     * The number of u4 oat header fields between the version and key_value_store_size.
+     */
+    int headerWords() {
+        if (version >= 195) {
+            // S: executable offset, eight trampolines, among them the @CriticalNative lookup and nterp
+            return 13;
+        }
+        if (version >= 183) {
+            // R: the boot image checksum moved to the key-value store
+            return 11;
+        }
+        if (version >= 170) {
+            // Q: no interpreter bridges and image fields but the boot image checksum
+            return 12;
+        }
+        if (version >= 124) {
+            // O: oat_dex_files_offset in front of the N layout
+            return 16;
+        }
+        return 15;
+    }
+
+    /**
+     * The number of section offsets an O+ OatDexFile record has after lookup_table_offset.
+     */
+    int extraSectionOffsets() {
+        return version >= 195 ? 6 : version >= 138 ? 4 : version >= 131 ? 2 : 0;
+    }
+
+    public byte[] build() {
+        byte[] oatdata = oatdata(dexes());
+
+        int word = bits / 8;
+        int ehsize = bits == 32 ? 52 : 64;
+        int phentsize = bits == 32 ? 32 : 56;
+        int symentsize = bits == 32 ? 16 : 24;
+        int shentsize = bits == 32 ? 40 : 64;
+        int dynentsize = 2 * word;
+
+        byte[] dynstr = "\0oatdata\0oatexec\0oatlastword\0".getBytes(LATIN1);
+        String[] symbols = {"", "oatdata", "oatexec", "oatlastword"};
+        String hashName = gnuHash ? ".gnu.hash" : ".hash";
+        byte[] shstrtab = ("\0.dynsym\0.dynstr\0" + hashName + "\0.rodata\0.text\0.dynamic\0.shstrtab\0").getBytes(LATIN1);
+        String[] sections = {"", ".dynsym", ".dynstr", hashName, ".rodata", ".text", ".dynamic", ".shstrtab"};
+        int nbucket = 3;
+        // one bucket and a one-word bloom filter, so the symbols need no sorting
+        int gnuBloomShift = 6;
+
+        int phnum = 4;
+        long phoff = ehsize;
+        long shstrtabOff = 0;
+        long shoff = 0;
+        long dynsymOff = align(phoff + phnum * phentsize, word);
+        if (sectionHeadersFirst) {
+            shstrtabOff = dynsymOff;
+            shoff = align(shstrtabOff + shstrtab.length, word);
+            dynsymOff = shoff + sections.length * shentsize;
+        }
+        long dynstrOff = dynsymOff + symbols.length * symentsize;
+        long hashOff = align(dynstrOff + dynstr.length, 4);
+        long hashSize = gnuHash ? 16 + word + 4 + 4 * (symbols.length - 1) : 4 * (2 + nbucket + symbols.length);
+        long rodataOff = align(hashOff + hashSize, PAGE) + (long) rodataPadding * PAGE;
+        long textOff = align(rodataOff + oatdata.length, PAGE);
+        long textSize = 16;
+        long dynamicOff = align(textOff + textSize, word);
+        long dynamicSize = 6 * dynentsize;
+        long total = dynamicOff + dynamicSize;
+        if (!sectionHeadersFirst) {
+            shstrtabOff = total;
+            shoff = align(shstrtabOff + shstrtab.length, word);
+            total = shoff + sections.length * shentsize;
+        }
+
+        ByteBuffer b = ByteBuffer.allocate((int) total).order(order);
+
+        // ELF header
+        b.put(0, (byte) 0x7f).put(1, (byte) 'E').put(2, (byte) 'L').put(3, (byte) 'F');
+        b.put(4, (byte) (bits == 32 ? 1 : 2));
+        b.put(5, (byte) (order == ByteOrder.LITTLE_ENDIAN ? 1 : 2));
+        b.put(6, (byte) 1);
+        int p = 16;
+        b.putShort(p, (short) 3); // ET_DYN
+        b.putShort(p + 2, (short) (bits == 32 ? 40 : 183)); // EM_ARM / EM_AARCH64
+        b.putInt(p + 4, 1);
+        p += 8;
+        p = putWord(b, p, 0); // e_entry
+        p = putWord(b, p, phoff);
+        p = putWord(b, p, shoff);
+        b.putInt(p, 0);
+        b.putShort(p + 4, (short) ehsize);
+        b.putShort(p + 6, (short) phentsize);
+        b.putShort(p + 8, (short) phnum);
+        b.putShort(p + 10, (short) shentsize);
+        b.putShort(p + 12, (short) sections.length);
+        b.putShort(p + 14, (short) (sections.length - 1));
+
+        // program headers as dex2oat writes them: read-only up to .text, .text, .dynamic and PT_DYNAMIC
+        putProgramHeader(b, (int) phoff, 1, 4, 0, textOff, PAGE);
+        putProgramHeader(b, (int) phoff + phentsize, 1, 5, textOff, textSize, PAGE);
+        putProgramHeader(b, (int) phoff + 2 * phentsize, 1, 6, dynamicOff, dynamicSize, PAGE);
+        putProgramHeader(b, (int) phoff + 3 * phentsize, 2, 6, dynamicOff, dynamicSize, word);
+
+        // .dynsym
+        long[] values = {0, rodataOff, textOff, textOff + textSize - 4};
+        long[] sizes = {0, oatdata.length, textSize - 4, 4};
+        int[] shndx = {0, 4, 5, 5};
+        for (int i = 0; i < symbols.length; i++) {
+            int s = (int) (dynsymOff + i * symentsize);
+            int name = i == 0 ? 0 : indexOf(dynstr, symbols[i]);
+            int info = i == 0 ? 0 : (1 << 4) | 1; // STB_GLOBAL, STT_OBJECT
+            b.putInt(s, name);
+            if (bits == 32) {
+                b.putInt(s + 4, (int) values[i]);
+                b.putInt(s + 8, (int) sizes[i]);
+                b.put(s + 12, (byte) info);
+                b.putShort(s + 14, (short) shndx[i]);
+            } else {
+                b.put(s + 4, (byte) info);
+                b.putShort(s + 6, (short) shndx[i]);
+                b.putLong(s + 8, values[i]);
+                b.putLong(s + 16, sizes[i]);
+            }
+        }
+
+        // .dynstr
+        put(b, dynstrOff, dynstr);
+
+        int h = (int) hashOff;
+        if (gnuHash) {
+            // .gnu.hash: nbuckets, symoffset, bloom_size, bloom_shift, bloom, buckets, chain hashes
+            b.putInt(h, 1);
+            b.putInt(h + 4, 1);
+            b.putInt(h + 8, 1);
+            b.putInt(h + 12, gnuBloomShift);
+            long bloom = 0;
+            for (int i = 1; i < symbols.length; i++) {
+                long hash = gnuHash(symbols[i]);
+                bloom |= (1L << (hash % bits)) | (1L << ((hash >>> gnuBloomShift) % bits));
+                // the lowest bit ends the chain
+                b.putInt(h + 16 + word + 4 + 4 * (i - 1), (int) (hash & ~1L | (i == symbols.length - 1 ? 1 : 0)));
+            }
+            putWord(b, h + 16, bloom);
+            b.putInt(h + 16 + word, 1);
+        } else {
+            // .hash (SysV)
+            int[] buckets = new int[nbucket];
+            int[] chains = new int[symbols.length];
+            for (int i = 1; i < symbols.length; i++) {
+                int bucket = (int) (elfHash(symbols[i]) % nbucket);
+                chains[i] = buckets[bucket];
+                buckets[bucket] = i;
+            }
+            b.putInt(h, nbucket);
+            b.putInt(h + 4, symbols.length);
+            for (int i = 0; i < nbucket; i++) {
+                b.putInt(h + 8 + 4 * i, buckets[i]);
+            }
+            for (int i = 0; i < symbols.length; i++) {
+                b.putInt(h + 8 + 4 * nbucket + 4 * i, chains[i]);
+            }
+        }
+
+        // .rodata
+        put(b, rodataOff, oatdata);
+
+        // .dynamic
+        long[][] dynamic = {{gnuHash ? 0x6ffffef5L : 4, hashOff}, {5, dynstrOff}, {6, dynsymOff}, {10, dynstr.length}, {11, symentsize}, {0, 0}};
+        p = (int) dynamicOff;
+        for (long[] entry : dynamic) {
+            p = putWord(b, p, entry[0]);
+            p = putWord(b, p, entry[1]);
+        }
+
+        // .shstrtab
+        put(b, shstrtabOff, shstrtab);
+
+        // section headers
+        long[][] sh = {
+                // type, flags, offset, size, link, info, align, entsize
+                {0, 0, 0, 0, 0, 0, 0, 0},
+                {11, 2, dynsymOff, symbols.length * symentsize, 2, 1, word, symentsize},
+                {3, 2, dynstrOff, dynstr.length, 0, 0, 1, 0},
+                {gnuHash ? 0x6ffffff6L : 5, 2, hashOff, hashSize, 1, 0, gnuHash ? word : 4, gnuHash ? 0 : 4},
+                {1, 2, rodataOff, oatdata.length, 0, 0, PAGE, 0},
+                {1, 6, textOff, textSize, 0, 0, PAGE, 0},
+                {6, 3, dynamicOff, dynamicSize, 2, 0, word, dynentsize},
+                {3, 0, shstrtabOff, shstrtab.length, 0, 0, 1, 0},
+        };
+        for (int i = 0; i < sh.length; i++) {
+            p = (int) (shoff + i * shentsize);
+            b.putInt(p, i == 0 ? 0 : indexOf(shstrtab, sections[i]));
+            b.putInt(p + 4, (int) sh[i][0]);
+            p = putWord(b, p + 8, sh[i][1]);
+            p = putWord(b, p, sh[i][1] != 0 ? sh[i][2] : 0); // sh_addr
+            p = putWord(b, p, sh[i][2]);
+            p = putWord(b, p, sh[i][3]);
+            b.putInt(p, (int) sh[i][4]);
+            b.putInt(p + 4, (int) sh[i][5]);
+            p = putWord(b, p + 8, sh[i][6]);
+            putWord(b, p, sh[i][7]);
+        }
+        return b.array();
+    }
+
+    /**
+     * Builds the oatdata blob: oat header, key-value store, OatDexFile table and dex files.
+     */
+    byte[] oatdata(byte[][] dexes) {
+        byte[] kv = KEY_VALUE_STORE.getBytes(LATIN1);
+        int headerSize = 4 * (headerWords() + 3);
+        int tableOffset = headerSize + kv.length;
+        int tableSize = 0;
+        for (int i = 0; i < dexes.length; i++) {
+            tableSize += 4 + location(i).length() + 4 + 4
+                    + (hasVdex() ? 8 + 4 * extraSectionOffsets() : 4 * classesPerDex);
+        }
+        // from O on the class offsets follow the table and the dex files are in the vdex file
+        int classOffsetsOffset = (int) align(tableOffset + tableSize, 4);
+        int end = classOffsetsOffset + (hasVdex() ? 4 * classesPerDex * dexes.length : 0);
+        int[] dexOffsets = hasVdex() ? vdexOffsets(dexes) : new int[dexes.length];
+        for (int i = 0; i < dexes.length && !hasVdex(); i++) {
+            dexOffsets[i] = end;
+            end = (int) align(end + dexes[i].length, 4);
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(end).order(order);
+        b.put(String.format("oat\n%03d\0", version).getBytes(LATIN1));
+        b.putInt(0); // adler32_checksum, patched below
+        b.putInt(bits == 32 ? 1 : 4); // kArm / kArm64
+        b.putInt(0);
+        b.putInt(dexes.length);
+        if (hasVdex()) {
+            b.putInt(tableOffset); // oat_dex_files_offset
+        }
+        b.putInt((int) align(end, PAGE)); // executable_offset, .text starts on the page after oatdata
+        while (b.position() < headerSize - 4) {
+            b.putInt(0); // trampolines and image fields
+        }
+        b.putInt(kv.length);
+        b.put(kv);
+        for (int i = 0; i < dexes.length; i++) {
+            byte[] location = location(i).getBytes(LATIN1);
+            b.putInt(location.length);
+            b.put(location);
+            b.putInt(checksum(dexes[i]));
+            b.putInt(dexOffsets[i]);
+            if (hasVdex()) {
+                b.putInt(classOffsetsOffset + 4 * classesPerDex * i);
+                b.putInt(0); // lookup_table_offset
+                for (int j = 0; j < extraSectionOffsets(); j++) {
+                    b.putInt(0);
+                }
+            } else {
+                for (int c = 0; c < classesPerDex; c++) {
+                    b.putInt(end + 8 * c);
+                }
+            }
+        }
+        for (int i = 0; i < dexes.length && hasVdex(); i++) {
+            b.position(classOffsetsOffset + 4 * classesPerDex * i);
+            for (int c = 0; c < classesPerDex; c++) {
+                b.putInt(end + 8 * c);
+            }
+        }
+        for (int i = 0; i < dexes.length && !hasVdex(); i++) {
+            b.position(dexOffsets[i]);
+            b.put(dexes[i]);
+        }
+        Adler32 adler = new Adler32();
+        adler.update(b.array(), 12, end - 12);
+        b.putInt(8, (int) adler.getValue());
+        return b.array();
+    }
+
+    /**
+     * Builds a dex file with {@code classes} empty class definitions, padded to at least {@code minSize} bytes.
+     */
+    public static byte[] dex(int index, int classes, int minSize) {
+        byte[][] strings = new byte[classes][];
+        int stringDataSize = 0;
+        for (int i = 0; i < classes; i++) {
+            String descriptor = String.format("Lcom/example/dex%03d/Class%06d;", index, i);
+            strings[i] = descriptor.getBytes(LATIN1);
+            stringDataSize += uleb128Size(strings[i].length) + strings[i].length + 1;
+        }
+        int stringIdsOff = 0x70;
+        int typeIdsOff = stringIdsOff + 4 * classes;
+        int classDefsOff = typeIdsOff + 4 * classes;
+        int dataOff = classDefsOff + 32 * classes;
+        int stringDataOff = dataOff;
+        int mapOff = (int) align(Math.max(stringDataOff + stringDataSize, minSize - 4 - 6 * 12), 4);
+        int fileSize = mapOff + 4 + 6 * 12;
+
+        ByteBuffer b = ByteBuffer.allocate(fileSize).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("dex\n035\0".getBytes(LATIN1));
+        b.putInt(32, fileSize);
+        b.putInt(36, 0x70);
+        b.putInt(40, 0x12345678);
+        b.putInt(52, mapOff);
+        b.putInt(56, classes);
+        b.putInt(60, classes == 0 ? 0 : stringIdsOff);
+        b.putInt(64, classes);
+        b.putInt(68, classes == 0 ? 0 : typeIdsOff);
+        b.putInt(96, classes);
+        b.putInt(100, classes == 0 ? 0 : classDefsOff);
+        b.putInt(104, fileSize - dataOff);
+        b.putInt(108, dataOff);
+
+        int p = stringDataOff;
+        for (int i = 0; i < classes; i++) {
+            b.putInt(stringIdsOff + 4 * i, p);
+            b.putInt(typeIdsOff + 4 * i, i);
+            int c = classDefsOff + 32 * i;
+            b.putInt(c, i);
+            b.putInt(c + 4, 1); // ACC_PUBLIC
+            b.putInt(c + 8, -1);
+            b.putInt(c + 16, -1);
+            p = putUleb128(b, p, strings[i].length);
+            b.position(p);
+            b.put(strings[i]);
+            p += strings[i].length + 1;
+        }
+
+        int[][] map = {
+                {0x0000, 1, 0},
+                {0x0001, classes, stringIdsOff},
+                {0x0002, classes, typeIdsOff},
+                {0x0006, classes, classDefsOff},
+                {0x2002, classes, stringDataOff},
+                {0x1000, 1, mapOff},
+        };
+        b.putInt(mapOff, map.length);
+        for (int i = 0; i < map.length; i++) {
+            int m = mapOff + 4 + 12 * i;
+            b.putShort(m, (short) map[i][0]);
+            b.putInt(m + 4, map[i][1]);
+            b.putInt(m + 8, map[i][2]);
+        }
+
+        put(b, 12, sha1(b.array(), 32, fileSize - 32));
+        Adler32 adler = new Adler32();
+        adler.update(b.array(), 12, fileSize - 12);
+        b.putInt(8, (int) adler.getValue());
+        return b.array();
+    }
+
+    /**
+     * Builds the classes of {@link #dex(int, int, int)} as a CompactDex file: the header
+     * and the id and class_defs tables, and apart from it the data it keeps in the shared
+     * data section, {@code dataOffset} bytes into it: the string data and the map. Together
+     * they take at least {@code minSize} bytes. Checksum, signature, data_off and data_size
+     * depend on the vdex layout and are left to {@link #compactDexes()}.
+     *
+     * @return the CompactDex file and its part of the shared data
+     */
+    static byte[][] compactDex(int index, int classes, int minSize, int dataOffset) {
+        byte[][] strings = new byte[classes][];
+        int stringDataSize = 0;
+        for (int i = 0; i < classes; i++) {
+            strings[i] = String.format("Lcom/example/dex%03d/Class%06d;", index, i).getBytes(LATIN1);
+            stringDataSize += uleb128Size(strings[i].length) + strings[i].length + 1;
+        }
+        int stringIdsOff = CDEX_HEADER_SIZE;
+        int typeIdsOff = stringIdsOff + 4 * classes;
+        int classDefsOff = typeIdsOff + 4 * classes;
+        int fileSize = classDefsOff + 32 * classes;
+        // offsets into the shared data are relative to its start
+        int mapOff = (int) align(Math.max(stringDataSize, minSize - fileSize - 4 - 6 * 12), 4);
+
+        ByteBuffer b = ByteBuffer.allocate(fileSize).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("cdex001\0".getBytes(LATIN1));
+        b.putInt(32, fileSize);
+        b.putInt(36, CDEX_HEADER_SIZE);
+        b.putInt(40, 0x12345678);
+        b.putInt(52, dataOffset + mapOff);
+        b.putInt(56, classes);
+        b.putInt(60, classes == 0 ? 0 : stringIdsOff);
+        b.putInt(64, classes);
+        b.putInt(68, classes == 0 ? 0 : typeIdsOff);
+        b.putInt(96, classes);
+        b.putInt(100, classes == 0 ? 0 : classDefsOff);
+        ByteBuffer data = ByteBuffer.allocate(mapOff + 4 + 6 * 12).order(ByteOrder.LITTLE_ENDIAN);
+
+        int p = 0;
+        for (int i = 0; i < classes; i++) {
+            b.putInt(stringIdsOff + 4 * i, dataOffset + p);
+            b.putInt(typeIdsOff + 4 * i, i);
+            int c = classDefsOff + 32 * i;
+            b.putInt(c, i);
+            b.putInt(c + 4, 1); // ACC_PUBLIC
+            b.putInt(c + 8, -1);
+            b.putInt(c + 16, -1);
+            p = putUleb128(data, p, strings[i].length);
+            put(data, p, strings[i]);
+            p += strings[i].length + 1;
+        }
+
+        int[][] map = {
+                {0x0000, 1, 0},
+                {0x0001, classes, stringIdsOff},
+                {0x0002, classes, typeIdsOff},
+                {0x0006, classes, classDefsOff},
+                {0x2002, classes, dataOffset},
+                {0x1000, 1, dataOffset + mapOff},
+        };
+        data.putInt(mapOff, map.length);
+        for (int i = 0; i < map.length; i++) {
+            int m = mapOff + 4 + 12 * i;
+            data.putShort(m, (short) map[i][0]);
+            data.putInt(m + 4, map[i][1]);
+            data.putInt(m + 8, map[i][2]);
+        }
+        return new byte[][]{b.array(), data.array()};
+    }
+
+    static byte[] sha1(byte[] data, int offset, int length) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(data, offset, length);
+            return sha1.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int putWord(ByteBuffer b, int offset, long value) {
+        if (bits == 32) {
+            b.putInt(offset, (int) value);
+            return offset + 4;
+        }
+        b.putLong(offset, value);
+        return offset + 8;
+    }
+
+    void putProgramHeader(ByteBuffer b, int p, int type, int flags, long offset, long size, long align) {
+        b.putInt(p, type);
+        if (bits == 32) {
+            b.putInt(p + 4, (int) offset);
+            b.putInt(p + 8, (int) offset);
+            b.putInt(p + 12, (int) offset);
+            b.putInt(p + 16, (int) size);
+            b.putInt(p + 20, (int) size);
+            b.putInt(p + 24, flags);
+            b.putInt(p + 28, (int) align);
+        } else {
+            b.putInt(p + 4, flags);
+            b.putLong(p + 8, offset);
+            b.putLong(p + 16, offset);
+            b.putLong(p + 24, offset);
+            b.putLong(p + 32, size);
+            b.putLong(p + 40, size);
+            b.putLong(p + 48, align);
+        }
+    }
+
+    static void put(ByteBuffer b, long offset, byte[] data) {
+        b.position((int) offset);
+        b.put(data);
+    }
+
+    static int indexOf(byte[] strtab, String name) {
+        byte[] needle = (name + "\0").getBytes(LATIN1);
+        outer:
+        for (int i = 1; i + needle.length <= strtab.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (strtab[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            if (strtab[i - 1] == 0) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    static long elfHash(String name) {
+        long h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = (h << 4) + (name.charAt(i) & 0xFF);
+            long g = h & 0xf0000000L;
+            if (g != 0) {
+                h ^= g >>> 24;
+            }
+            h &= ~g;
+        }
+        return h;
+    }
+
+    static long gnuHash(String name) {
+        long h = 5381;
+        for (int i = 0; i < name.length(); i++) {
+            h = (h * 33 + (name.charAt(i) & 0xFF)) & 0xffffffffL;
+        }
+        return h;
+    }
+
+    static int uleb128Size(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    static int putUleb128(ByteBuffer b, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            b.put(offset++, (byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        b.put(offset++, (byte) value);
+        return offset;
+    }
+
+    /**
+     * Recursively deletes a fixture directory.
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static long align(long value, long alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Writes the 32/64-bit, little/big-endian fixture set to a directory:
+     * {@code OatFixture [dir] [dexCount] [dexSize] [classesPerDex] [version]}.
+     */
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : ".");
+        int dexCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int dexSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+        int classes = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int version = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+        for (int bits : new int[]{32, 64}) {
+            for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+                System.out.println(new OatFixture(bits, order, dexCount, dexSize, classes, version).write(dir));
+            }
+        }
+    }
+}
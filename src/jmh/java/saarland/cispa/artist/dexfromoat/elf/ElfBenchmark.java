@@ -0,0 +1,119 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.elf;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import saarland.cispa.artist.dexfromoat.OatFixture;
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elf header, section table and .dynsym parsing on a mapped synthetic oat file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElfBenchmark {
+
+    @Param({"32", "64"})
+    int bits;
+
+    @Param({"LITTLE_ENDIAN", "BIG_ENDIAN"})
+    String order;
+
+    File dir;
+    ByteSource source;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dexfromoat-jmh").toFile();
+        ByteOrder byteOrder = order.equals("BIG_ENDIAN") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        File oat = new OatFixture(bits, byteOrder, 1, 64 * 1024, 100).write(dir);
+        source = MappedByteSource.open(oat.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Benchmark
+    public Elf parseHeader() throws IOException, ParseException {
+        return Elf.parse(source);
+    }
+
+    @Benchmark
+    public HashMap<String, Elf.SectionHeader> parseSections() throws IOException, ParseException {
+        Elf elf = Elf.parse(source);
+        // every section header decoded up front, the way lookups worked before they went lazy
+        HashMap<String, Elf.SectionHeader> sections = new HashMap<>();
+        for (int header = 0; header < elf.e_shnum; header++) {
+            Elf.SectionHeader sh = elf.new SectionHeader(elf.section_header_offset(header));
+            sections.put(sh.sh_name_str, sh);
+        }
+        return sections;
+    }
+
+    @Benchmark
+    public HashMap<String, Elf.ISymbol> parseDynsyms() throws IOException, ParseException {
+        Elf elf = Elf.parse(source);
+        HashMap<String, Elf.ISymbol> symbols = new HashMap<>();
+        Elf.SectionHeader dynsym = elf.require_dynsym();
+        long dynstr = elf.require_section(".dynstr").sh_offset;
+        for (long i = 0; i * dynsym.sh_entsize < dynsym.sh_size; i++) {
+            Elf.ISymbol symbol = elf.symbol(dynsym.sh_offset + i * dynsym.sh_entsize, dynstr);
+            symbols.put(symbol.st_name_str, symbol);
+        }
+        return symbols;
+    }
+
+    @Benchmark
+    public Elf.ISymbol lookupOatdata() throws IOException, ParseException {
+        return Elf.parse(source).lookup_symbol("oatdata");
+    }
+
+    @Benchmark
+    public Elf.ISymbol lookupOatdataInSections() throws IOException, ParseException {
+        return Elf.parse(source).lookup_section_symbol("oatdata");
+    }
+}
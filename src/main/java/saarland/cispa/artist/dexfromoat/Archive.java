@@ -0,0 +1,669 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts the dex files of oat files stored in zip (apk, jar, OTA package) and tar archives.
+ *
+ * Archives are read strictly front to back in a single pass, so they may just as
+ * well come from a pipe. Entries are recognized by their magic rather than their
+ * name: elf and vdex entries are buffered in memory and parsed from there, nested
+ * zip, tar and gzip streams are walked recursively, everything else is skipped.
+ * Nothing but the dex files is written to disk.
+ *
+ * From Android O on, an oat file keeps its dex files in the vdex file next to it,
+ * e.g. base.odex and base.vdex. Such an oat entry is held back until the vdex entry
+ * with the same name in the same zip or tar level comes along, and both are then
+ * opened together under the oat entry's name. If the vdex entry came first it has
+ * been extracted on its own already, and if none comes, the oat entry is reported
+ * as skipped rather than failed.
+ */
+public class Archive {
+
+    static final int HEAD_SIZE = 512;
+    static final int TAR_BLOCK = 512;
+    static final int MAX_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+    static final int BUFFER_SIZE = 1 << 16;
+
+    enum Format {ELF, VDEX, ZIP, GZIP, TAR, OTHER}
+
+    /**
+     * The oat and vdex entries of one zip or tar level, by entry name without extension.
+     */
+    static class Level {
+        // O and later oat entries waiting for their vdex entry, in archive order
+        final Map<String, Pending> oats = new LinkedHashMap<>();
+        // vdex entries extracted on their own
+        final Map<String, String> vdexes = new HashMap<>();
+    }
+
+    static class Pending {
+        final String name;
+        final ByteBuffer buffer;
+        final long nanos;
+
+        Pending(String name, ByteBuffer buffer, long nanos) {
+            this.name = name;
+            this.buffer = buffer;
+            this.nanos = nanos;
+        }
+    }
+
+    private final File outdir;
+    private final List<Batch.Result> results = new ArrayList<>();
+    private DexCache cache;
+    private boolean verify;
+    private DexFilter filter;
+
+    public Archive(File outdir) {
+        this.outdir = outdir;
+    }
+
+    /**
+     * Routes all dex files through {@code cache}; null disables caching.
+     */
+    public void setCache(DexCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Verifies every dex file while it is written. Entries with mismatches count as failed.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Extracts only the dex files and classes {@code filter} selects; null extracts everything.
+     */
+    public void setFilter(DexFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * One result per elf or vdex entry found so far, named {@code archive!/entry[!/nested entry]}.
+     */
+    public List<Batch.Result> results() {
+        return results;
+    }
+
+    public void walk(File archive) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE)) {
+            walk(in, archive.getName());
+        }
+    }
+
+    /**
+     * Walks {@code in}, which may be an archive or a plain oat file. Dex files are
+     * written below {@code outdir/name}. The stream is consumed but not closed.
+     */
+    public void walk(InputStream in, String name) throws IOException {
+        Level level = new Level();
+        walk(in, name, -1, level);
+        finish(level);
+    }
+
+    private void walk(InputStream in, String name, long size, Level level) throws IOException {
+        byte[] head = new byte[HEAD_SIZE];
+        int n = readFully(in, head, 0, head.length);
+        InputStream all = new SequenceInputStream(new ByteArrayInputStream(head, 0, n), in);
+        switch (format(head, n)) {
+            case ELF:
+                extract(head, n, in, size, name, false, level);
+                break;
+            case VDEX:
+                extract(head, n, in, size, name, true, level);
+                break;
+            case ZIP:
+                walkZip(new ZipInputStream(all), name);
+                break;
+            case GZIP:
+                walk(new GZIPInputStream(all, BUFFER_SIZE), name, -1, level);
+                break;
+            case TAR:
+                walkTar(all, name);
+                break;
+            default:
+                // neither an oat file nor a container, the caller skips the rest
+        }
+    }
+
+    static Format format(byte[] head, int n) {
+        if (n >= 4 && head[0] == 0x7f && head[1] == 'E' && head[2] == 'L' && head[3] == 'F') {
+            return Format.ELF;
+        }
+        if (n >= 4 && head[0] == 'v' && head[1] == 'd' && head[2] == 'e' && head[3] == 'x') {
+            return Format.VDEX;
+        }
+        if (n >= 4 && head[0] == 'P' && head[1] == 'K' && head[2] == 3 && head[3] == 4) {
+            return Format.ZIP;
+        }
+        if (n >= 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+            return Format.GZIP;
+        }
+        if (n == TAR_BLOCK && isTarHeader(head)) {
+            return Format.TAR;
+        }
+        return Format.OTHER;
+    }
+
+    private void walkZip(ZipInputStream zip, String name) throws IOException {
+        Level level = new Level();
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                // the entry stream ends with the entry, getNextEntry() skips whatever is left
+                walk(zip, name + "!/" + entry.getName(), entry.getSize(), level);
+            }
+        }
+        finish(level);
+    }
+
+    private void walkTar(InputStream in, String name) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String long_name = null;
+        Level level = new Level();
+        while (readFully(in, header, 0, TAR_BLOCK) == TAR_BLOCK && !isZeroBlock(header)) {
+            if (!isTarHeader(header)) {
+                throw new IOException("corrupt tar header in " + name);
+            }
+            long size = tarNumber(header, 124, 12);
+            byte type = header[156];
+            String path = long_name != null ? long_name : tarName(header);
+            long_name = null;
+            EntryInputStream entry = new EntryInputStream(in, size);
+            if (type == 'L') {
+                // GNU long name: the data is the name of the next entry
+                long_name = cString(readAll(entry, size), 0, (int) size);
+            } else if (type == 'x') {
+                // pax extended header, only the path record is of interest
+                long_name = paxPath(readAll(entry, size));
+            } else if (type == '0' || type == 0 || type == '7') {
+                walk(entry, name + "!/" + path, size, level);
+            }
+            entry.skipRemaining();
+            skipFully(in, (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+        }
+        finish(level);
+    }
+
+    /**
+     * Buffers the elf or vdex entry and writes its dex files, or holds an oat entry
+     * back until its vdex entry is found. Failures are recorded per entry.
+     */
+    private void extract(byte[] head, int n, InputStream in, long size, String name, boolean vdex, Level level) {
+        long start = System.nanoTime();
+        ByteBuffer buffer;
+        try {
+            buffer = read(head, n, in, size);
+            if (vdex) {
+                Pending oat = level.oats.remove(base(name));
+                if (oat != null) {
+                    extract(oat.name, oat.buffer, buffer, oat.nanos + System.nanoTime() - start);
+                    return;
+                }
+                level.vdexes.put(base(name), name);
+            } else if (Oat.version(buffer) >= Oat.VERSION_O) {
+                String sibling = level.vdexes.get(base(name));
+                if (sibling != null) {
+                    skipped(name, "dex files are in " + sibling + ", extracted on its own");
+                } else {
+                    level.oats.put(base(name), new Pending(name, buffer, System.nanoTime() - start));
+                }
+                return;
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            Batch.Result result = new Batch.Result(name, new File(outdir, relative(name)).getPath());
+            result.error = e.toString();
+            finish(result, System.nanoTime() - start);
+            return;
+        }
+        extract(name, vdex ? null : buffer, vdex ? buffer : null, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the dex files of an oat file, a vdex file, or an oat file and its vdex file.
+     *
+     * @param nanos the time spent on the entries so far
+     */
+    private void extract(String name, ByteBuffer oat, ByteBuffer vdex, long nanos) {
+        Batch.Result result = new Batch.Result(name, new File(outdir, relative(name)).getPath());
+        long start = System.nanoTime();
+        try {
+            Iterable<Dex> dex_files;
+            if (oat == null) {
+                dex_files = Vdex.open(vdex);
+            } else {
+                Oat o = vdex != null ? Oat.open(oat, vdex) : Oat.open(oat);
+                if (verify) {
+                    result.mismatches.addAll(o.checkVdex());
+                }
+                dex_files = o;
+            }
+            File out = new File(result.output);
+            if (!out.isDirectory() && !out.mkdirs()) {
+                throw new IOException("cannot create output directory " + out);
+            }
+            for (Dex dex : DexFromOat.write(dex_files, result.output, cache, verify ? result.mismatches : null, filter)) {
+                result.bytes += dex.size();
+                result.dex_files++;
+            }
+            Batch.checkMismatches(result);
+        } catch (IOException | ParseException | RuntimeException e) {
+            result.error = e.toString();
+        }
+        finish(result, nanos + System.nanoTime() - start);
+    }
+
+    private void skipped(String name, String reason) {
+        Batch.Result result = new Batch.Result(name, new File(outdir, relative(name)).getPath());
+        result.skipped = true;
+        result.success = true;
+        result.error = reason;
+        results.add(result);
+        Batch.report(result);
+    }
+
+    private void finish(Batch.Result result, long nanos) {
+        results.add(result);
+        result.millis = nanos / 1000000;
+        Metrics.file(nanos, result.success, result.dex_files);
+        Batch.report(result);
+    }
+
+    /**
+     * Reports the oat entries of a level whose vdex entry never came.
+     */
+    private void finish(Level level) {
+        for (Pending oat : level.oats.values()) {
+            skipped(oat.name, "oat file from Android O on without its vdex file in the archive");
+        }
+        level.oats.clear();
+    }
+
+    /**
+     * The entry name without the extension of its last segment, shared by an oat file and its vdex file.
+     */
+    static String base(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > name.lastIndexOf('/') ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Reads the rest of an entry into one buffer, sized up front when the entry size is known.
+     */
+    static ByteBuffer read(byte[] head, int n, InputStream in, long size) throws IOException {
+        if (size > MAX_ENTRY_SIZE) {
+            throw new IOException("entry of " + size + " B is too large to buffer");
+        }
+        byte[] data = Arrays.copyOf(head, size >= n ? (int) size : Math.max(n, BUFFER_SIZE));
+        int len = n;
+        while (true) {
+            if (len == data.length) {
+                if (size >= 0) {
+                    break;
+                }
+                if (data.length == MAX_ENTRY_SIZE) {
+                    throw new IOException("entry is too large to buffer");
+                }
+                data = Arrays.copyOf(data, (int) Math.min(MAX_ENTRY_SIZE, 2L * data.length));
+            }
+            int r = in.read(data, len, data.length - len);
+            if (r < 0) {
+                break;
+            }
+            len += r;
+        }
+        Metrics.read(len);
+        return ByteBuffer.wrap(data, 0, len);
+    }
+
+    /**
+     * Turns an entry name into a relative path below the output directory. Nesting
+     * separators become directories, and "..", "." and absolute prefixes are dropped
+     * so that no entry can escape the output directory.
+     */
+    static String relative(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : name.replace("!/", "/").split("[/\\\\]")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(File.separatorChar);
+            }
+            sb.append(segment.replace(':', '_'));
+        }
+        return sb.toString();
+    }
+
+    static boolean isTarHeader(byte[] header) {
+        long stored;
+        try {
+            stored = tarNumber(header, 148, 8);
+        } catch (IOException e) {
+            return false;
+        }
+        // the checksum is computed with its own field set to spaces
+        long sum = 8 * ' ';
+        for (int i = 0; i < TAR_BLOCK; i++) {
+            if (i < 148 || i >= 156) {
+                sum += header[i] & 0xff;
+            }
+        }
+        return stored == sum;
+    }
+
+    static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a numeric tar field: NUL/space terminated octal, or base-256 if the high bit is set.
+     */
+    static long tarNumber(byte[] header, int offset, int length) throws IOException {
+        long val = 0;
+        if ((header[offset] & 0x80) != 0) {
+            for (int i = 1; i < length; i++) {
+                val = (val << 8) | (header[offset + i] & 0xff);
+            }
+            return val;
+        }
+        int i = offset;
+        int end = offset + length;
+        while (i < end && header[i] == ' ') {
+            i++;
+        }
+        for (; i < end && header[i] != 0 && header[i] != ' '; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException("illegal octal digit in tar header");
+            }
+            val = (val << 3) | (header[i] - '0');
+        }
+        return val;
+    }
+
+    static String tarName(byte[] header) {
+        String name = cString(header, 0, 100);
+        if (cString(header, 257, 5).equals("ustar")) {
+            String prefix = cString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns the value of the "path" record of a pax header, or null if there is none.
+     * Records have the form "length key=value\n".
+     */
+    static String paxPath(byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, offset, space - offset, Batch.UTF8));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (length <= 0 || offset + length > data.length) {
+                return null;
+            }
+            String record = new String(data, space + 1, offset + length - space - 2, Batch.UTF8);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    static String cString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, Batch.UTF8);
+    }
+
+    static byte[] readAll(InputStream in, long size) throws IOException {
+        if (size > MAX_ENTRY_SIZE) {
+            throw new IOException("tar header of " + size + " B is too large");
+        }
+        byte[] data = new byte[(int) size];
+        if (readFully(in, data, 0, data.length) != data.length) {
+            throw new IOException("unexpected end of tar archive");
+        }
+        return data;
+    }
+
+    /**
+     * @return the number of bytes read, less than {@code len} only at the end of the stream
+     */
+    static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int r = in.read(b, off + n, len - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("unexpected end of archive");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * The data of one tar entry. Closing it leaves the archive stream open.
+     */
+    static class EntryInputStream extends FilterInputStream {
+        private long remaining;
+
+        EntryInputStream(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void skipRemaining() throws IOException {
+            skipFully(this, remaining);
+        }
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat archive [-m <manifest>] [-c <cachedir> [-l <megabytes>]] [-s <statsfile>] [-v] [-d <pattern>]... [-k <pattern>]... <outdir> <archive>...");
+        System.err.println("  <archive>       a zip/apk/jar, tar or gzip file, or - to read one from stdin;");
+        System.err.println("                  oat files inside are found by their elf magic, at any nesting depth;");
+        System.err.println("                  from Android O on, an oat entry is read with the vdex entry next to it");
+        System.err.println("  -m <manifest>   where to write the JSON summary (default: <outdir>/manifest.json)");
+        System.err.println("  -c <cachedir>   store each distinct dex file once and hard-link it into the output");
+        System.err.println("  -l <megabytes>  size cap of the cache, least recently used dex files are evicted");
+        System.err.println("  -s <statsfile>  enable metrics and write them to <statsfile>, Prometheus text if it ends in .prom, JSON otherwise");
+        System.err.println("  -v              verify dex checksums and signatures while writing");
+        System.err.println("  -d <pattern>    only extract dex files whose location matches (glob, or regex after 're:')");
+        System.err.println("  -k <pattern>    only keep classes whose name matches (glob, or regex after 're:')");
+    }
+
+    /**
+     * @return the process exit code: 0 if all oat entries were extracted, 1 if some failed, 2 on usage errors
+     */
+    static int execute(String[] args) {
+        String manifest = null;
+        String cachedir = null;
+        long cachelimit = 0;
+        String statsfile = null;
+        boolean verify = false;
+        DexFilter filter = new DexFilter();
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-v")) {
+                    verify = true;
+                } else if (args[i].equals("-d") && i + 1 < args.length) {
+                    filter.location(args[++i]);
+                } else if (args[i].equals("-k") && i + 1 < args.length) {
+                    filter.className(args[++i]);
+                } else if (args[i].equals("-m") && i + 1 < args.length) {
+                    manifest = args[++i];
+                } else if (args[i].equals("-c") && i + 1 < args.length) {
+                    cachedir = args[++i];
+                } else if (args[i].equals("-s") && i + 1 < args.length) {
+                    statsfile = args[++i];
+                } else if (args[i].equals("-l") && i + 1 < args.length) {
+                    cachelimit = Long.parseLong(args[++i]) << 20;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | PatternSyntaxException e) {
+            cachelimit = -1;
+        }
+        if (positional.size() < 2 || cachelimit < 0) {
+            usage();
+            return 2;
+        }
+
+        File outdir = new File(positional.get(0));
+        Archive archive = new Archive(outdir);
+        archive.setVerify(verify);
+        archive.setFilter(filter);
+        if (statsfile != null) {
+            Metrics.enable();
+        }
+        try {
+            if (cachedir != null) {
+                archive.setCache(new DexCache(new File(cachedir), cachelimit));
+            }
+            for (String input : positional.subList(1, positional.size())) {
+                if (input.equals("-")) {
+                    archive.walk(new BufferedInputStream(System.in, BUFFER_SIZE), "stdin");
+                } else {
+                    archive.walk(new File(input));
+                }
+            }
+            if (archive.cache != null) {
+                archive.cache.save();
+                System.err.println(archive.cache);
+            }
+            if (statsfile != null) {
+                Metrics.get().dump(new File(statsfile));
+            }
+            if (!outdir.isDirectory() && !outdir.mkdirs()) {
+                throw new IOException("cannot create output directory " + outdir);
+            }
+            Batch.writeManifest(manifest != null ? new File(manifest) : new File(outdir, "manifest.json"),
+                    archive.results());
+        } catch (IOException e) {
+            System.err.println("archive failed: " + e);
+            return 1;
+        }
+        return Batch.exitCode(archive.results());
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes dex files on dedicated threads, so that parsing the next oat file
+ * overlaps with writing the dex files of the last one.
+ *
+ * Producers queue jobs and block while the bounded queue is full, which keeps a
+ * fast parser from running ahead of slow storage. A job holds the {@link Dex},
+ * not its bytes; the writer thread reads them from the oat or vdex file. Every
+ * dex file is written to "&lt;outfile&gt;.tmp" and renamed when complete, so
+ * no reader ever sees a partial file. With a sync group size, files are synced
+ * in groups: the files of a group are renamed only after all of them are synced,
+ * and their directories are synced after the renames.
+ */
+public class AsyncWriter implements Closeable {
+
+    static final String TMP_SUFFIX = ".tmp";
+    static final int QUEUE_PER_THREAD = 16;
+
+    /**
+     * Called on the writer thread once a job is done, successfully or not.
+     */
+    public interface Listener {
+        void written(Job job);
+    }
+
+    public static class Job {
+        public final Dex dex;
+        public final String outfile;
+        final DexCache cache;
+        final List<String> mismatches;
+        final DexFilter filter;
+        final Listener listener;
+        private boolean written;
+        private IOException error;
+
+        Job(Dex dex, String outfile, DexCache cache, List<String> mismatches, DexFilter filter, Listener listener) {
+            this.dex = dex;
+            this.outfile = outfile;
+            this.cache = cache;
+            this.mismatches = mismatches;
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        File tmp() {
+            return new File(outfile + TMP_SUFFIX);
+        }
+
+        /**
+         * False if the class filter selected nothing or the write failed.
+         */
+        public boolean written() {
+            return written && error == null;
+        }
+
+        public IOException error() {
+            return error;
+        }
+    }
+
+    private static final Job STOP = new Job(null, null, null, null, null, null);
+
+    private final BlockingQueue<Job> queue;
+    private final Thread[] threads;
+    private final int sync_group;
+    // written, waiting for their group to be synced
+    private final List<Job> unsynced = new ArrayList<>();
+    // submitted and not yet done
+    private int outstanding;
+    private boolean closed;
+
+    /**
+     * @param threads    number of writer threads
+     * @param sync_group number of files synced together, 0 to not sync at all
+     */
+    public AsyncWriter(int threads, int sync_group) {
+        this.sync_group = sync_group;
+        queue = new ArrayBlockingQueue<>(QUEUE_PER_THREAD * threads);
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "dex-writer-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Queues {@code dex} to be written as {@link DexFromOat#write(Dex, String, DexCache, List, DexFilter)} does,
+     * blocking while the queue is full.
+     *
+     * @param mismatches must be safe to add to from several threads
+     */
+    public Job submit(Dex dex, String outfile, DexCache cache, List<String> mismatches, DexFilter filter,
+                      Listener listener) throws InterruptedException {
+        Job job = new Job(dex, outfile, cache, mismatches, filter, listener);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("writer is closed");
+            }
+            outstanding++;
+        }
+        queue.put(job);
+        return job;
+    }
+
+    private void drain() {
+        try {
+            for (Job job = queue.take(); job != STOP; job = queue.take()) {
+                write(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Job job) {
+        File tmp = job.tmp();
+        try {
+            job.written = DexFromOat.write(job.dex, tmp.getPath(), job.cache, job.mismatches, job.filter);
+        } catch (IOException e) {
+            job.error = e;
+        } catch (RuntimeException e) {
+            job.error = new IOException(e);
+        }
+        if (!job.written || job.error != null) {
+            tmp.delete();
+            done(job);
+        } else if (sync_group == 0) {
+            commit(job);
+            done(job);
+        } else {
+            List<Job> group = null;
+            synchronized (this) {
+                unsynced.add(job);
+                if (unsynced.size() >= sync_group) {
+                    group = new ArrayList<>(unsynced);
+                    unsynced.clear();
+                }
+                notifyAll();
+            }
+            if (group != null) {
+                sync(group);
+            }
+        }
+    }
+
+    private void sync(List<Job> group) {
+        for (Job job : group) {
+            // append mode opens the file without truncating it
+            try (FileChannel channel = new FileOutputStream(job.tmp(), true).getChannel()) {
+                channel.force(true);
+            } catch (IOException e) {
+                job.error = e;
+            }
+        }
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Job job : group) {
+            if (job.error == null && commit(job)) {
+                dirs.add(new File(job.outfile).getAbsoluteFile().getParentFile());
+            }
+        }
+        for (File dir : dirs) {
+            syncDirectory(dir);
+        }
+        for (Job job : group) {
+            done(job);
+        }
+    }
+
+    /**
+     * Makes the renames in {@code dir} durable. Not every platform can open directories, there this is a no-op.
+     */
+    static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // e.g. Windows
+        } catch (LinkageError e) {
+            // java.nio.file is not available before Android O
+        }
+    }
+
+    private static boolean commit(Job job) {
+        File tmp = job.tmp();
+        File target = new File(job.outfile);
+        if (!tmp.renameTo(target)) {
+            // renameTo does not replace existing files everywhere
+            target.delete();
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                job.error = new IOException("cannot move " + tmp + " to " + target);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void done(Job job) {
+        try {
+            if (job.listener != null) {
+                job.listener.written(job);
+            }
+        } finally {
+            synchronized (this) {
+                outstanding--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every queued job is done, syncing the last, incomplete group.
+     */
+    public void flush() throws InterruptedException {
+        List<Job> group;
+        synchronized (this) {
+            while (outstanding > unsynced.size()) {
+                wait();
+            }
+            group = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+        sync(group);
+        synchronized (this) {
+            while (outstanding > 0) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Flushes and stops the writer threads.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            flush();
+            for (int i = 0; i < threads.length; i++) {
+                queue.put(STOP);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the writer", e);
+        }
+    }
+}
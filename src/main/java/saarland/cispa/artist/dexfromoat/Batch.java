@@ -0,0 +1,615 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Extracts many oat files in one JVM.
+ *
+ * Every input file gets its own output directory below the batch output
+ * directory. Files are spread over a work-stealing {@link ForkJoinPool}, and
+ * failures are recorded per file instead of aborting the batch.
+ */
+public class Batch {
+
+    static final String[] EXTENSIONS = {".oat", ".odex", ".vdex"};
+    static final String VDEX_EXTENSION = ".vdex";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static class Result {
+        public final String path;
+        public final String output;
+        public boolean success;
+        // the key-value store did not match, nothing was extracted
+        public boolean skipped;
+        public int dex_files;
+        public long bytes;
+        public long millis;
+        public String error;
+        // filled by verifying runs only
+        public final List<String> mismatches = new ArrayList<>();
+
+        Result(String path, String output) {
+            this.path = path;
+            this.output = output;
+        }
+
+        String toJson() {
+            return "{\"path\": " + Json.quote(path)
+                    + ", \"output\": " + Json.quote(output)
+                    + ", \"status\": " + Json.quote(skipped ? "skipped" : success ? "ok" : "failed")
+                    + ", \"dex_files\": " + dex_files
+                    + ", \"bytes\": " + bytes
+                    + ", \"millis\": " + millis
+                    + ", \"error\": " + Json.quote(error)
+                    + ", \"mismatches\": " + Json.array(mismatches) + "}";
+        }
+    }
+
+    private final File outdir;
+    private final List<Result> results = new ArrayList<>();
+    private final Set<String> seen = new HashSet<>();
+    private DexCache cache;
+    private ParseIndex index;
+    private boolean verify;
+    private DexFilter filter;
+    private AsyncWriter writer;
+    private int zip_level = -1;
+
+    public Batch(File outdir) {
+        this.outdir = outdir;
+    }
+
+    /**
+     * Routes all dex files through {@code cache}; null disables caching.
+     */
+    public void setCache(DexCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Looks up dex tables in {@code index} before parsing; null disables the index.
+     */
+    public void setIndex(ParseIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Verifies every dex file while it is written. Files with mismatches count as failed.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Extracts only the dex files and classes {@code filter} selects; null extracts everything.
+     */
+    public void setFilter(DexFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Hands the dex files to {@code writer} instead of writing them on the worker threads; null writes directly.
+     * Results are then completed by the writer threads, {@link #run(int)} waits for them.
+     */
+    public void setWriter(AsyncWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Writes every oat file into a zip file, {@code outdir/relative.zip}, instead of a directory,
+     * see {@link ZipSink}; -1 writes loose files. Applies to files added afterwards.
+     */
+    public void setZipLevel(int zip_level) {
+        this.zip_level = zip_level;
+    }
+
+    public List<Result> results() {
+        return results;
+    }
+
+    /**
+     * Queues a single oat or vdex file, extracted to {@code outdir/relative}. A vdex file
+     * is left out if its oat file is queued already, which extracts the same dex files.
+     */
+    public void addFile(File oat, String relative) throws IOException {
+        if (!hasQueuedOat(oat) && seen.add(oat.getCanonicalPath())) {
+            results.add(new Result(oat.getPath(), new File(outdir, zip_level >= 0 ? relative + ".zip" : relative).getPath()));
+        }
+    }
+
+    /**
+     * Queues a file by path, mirroring its absolute path below the output directory.
+     */
+    public void addFile(File oat) throws IOException {
+        String relative = oat.getAbsolutePath().replace(':', '_');
+        while (relative.startsWith(File.separator)) {
+            relative = relative.substring(1);
+        }
+        addFile(oat, relative);
+    }
+
+    /**
+     * Queues every .oat/.odex/.vdex file below {@code dir}. Oat files sort before their
+     * vdex files, so a vdex file is only queued if it has no oat file next to it.
+     */
+    public void addDirectory(File dir) throws IOException {
+        addDirectory(dir, "");
+    }
+
+    private void addDirectory(File dir, String relative) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("cannot list directory " + dir);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = relative.isEmpty() ? child.getName() : relative + File.separator + child.getName();
+            if (child.isDirectory()) {
+                addDirectory(child, name);
+            } else if (isOatFile(child.getName())) {
+                addFile(child, name);
+            }
+        }
+    }
+
+    /**
+     * Queues the paths listed one per line; empty lines and lines starting with '#' are skipped.
+     */
+    public void addList(BufferedReader list) throws IOException {
+        String line;
+        while ((line = list.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                addFile(new File(line));
+            }
+        }
+    }
+
+    /**
+     * Queues a command line input: a file, a directory, {@code @<file>} with one path per line, or - for stdin.
+     */
+    public void addInput(String input) throws IOException {
+        if (input.equals("-")) {
+            addList(new BufferedReader(new InputStreamReader(System.in, UTF8)));
+        } else if (input.startsWith("@")) {
+            try (BufferedReader list = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(input.substring(1)), UTF8))) {
+                addList(list);
+            }
+        } else if (new File(input).isDirectory()) {
+            addDirectory(new File(input));
+        } else {
+            addFile(new File(input));
+        }
+    }
+
+    /**
+     * Whether {@code file} is a vdex file whose oat file, e.g. "base.odex" for "base.vdex", is queued.
+     */
+    private boolean hasQueuedOat(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        if (!path.endsWith(VDEX_EXTENSION)) {
+            return false;
+        }
+        String base = path.substring(0, path.length() - VDEX_EXTENSION.length());
+        for (String extension : EXTENSIONS) {
+            if (!extension.equals(VDEX_EXTENSION) && seen.contains(base + extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isOatFile(String name) {
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts all queued files using {@code parallelism} worker threads (0: one per core).
+     */
+    public List<Result> run(int parallelism) {
+        if (!results.isEmpty()) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+            try {
+                pool.invoke(new ExtractRange(0, results.size()));
+                if (writer != null) {
+                    writer.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return results;
+    }
+
+    class ExtractRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int lo;
+        final int hi;
+
+        ExtractRange(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1 && writer != null) {
+                queue(results.get(lo), cache, index, verify, filter, writer);
+            } else if (hi - lo == 1 && zip_level >= 0) {
+                extractToZip(results.get(lo), zip_level, index, verify, filter);
+            } else if (hi - lo == 1) {
+                extract(results.get(lo), cache, index, verify, filter);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ExtractRange(lo, mid), new ExtractRange(mid, hi));
+            }
+        }
+    }
+
+    static void extract(Result result, DexCache cache, ParseIndex index, boolean verify, DexFilter filter) {
+        long start = System.nanoTime();
+        try {
+            File out = new File(result.output);
+            boolean created = !out.isDirectory();
+            if (created && !out.mkdirs()) {
+                throw new IOException("cannot create output directory " + out);
+            }
+            List<Dex> dex_files = DexFromOat.extract(result.path, result.output, cache, index,
+                    verify ? result.mismatches : null, filter);
+            if (dex_files == null) {
+                result.skipped = true;
+                result.success = true;
+                if (created) {
+                    out.delete();
+                }
+            } else {
+                for (Dex dex : dex_files) {
+                    result.bytes += dex.size();
+                }
+                result.dex_files = dex_files.size();
+                checkMismatches(result);
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            result.error = e.toString();
+        }
+        finish(result, start);
+    }
+
+    /**
+     * Like {@link #extract}, writing into the zip file {@code result.output}. Each oat file is
+     * compressed on its worker thread, the workers already run in parallel.
+     */
+    static void extractToZip(Result result, int zip_level, ParseIndex index, boolean verify, DexFilter filter) {
+        long start = System.nanoTime();
+        try {
+            File parent = new File(result.output).getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("cannot create output directory " + parent);
+            }
+            List<Dex> dex_files = DexFromOat.extractToZip(result.path, result.output, zip_level, null, index,
+                    verify ? result.mismatches : null, filter);
+            if (dex_files == null) {
+                result.skipped = true;
+                result.success = true;
+            } else {
+                for (Dex dex : dex_files) {
+                    result.bytes += dex.size();
+                }
+                result.dex_files = dex_files.size();
+                checkMismatches(result);
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            result.error = e.toString();
+        }
+        finish(result, start);
+    }
+
+    /**
+     * Like {@link #extract}, but only queues the dex files with {@code writer}. The
+     * result is completed by whichever thread finishes last, the parser or a writer.
+     */
+    static void queue(final Result result, DexCache cache, ParseIndex index, boolean verify, DexFilter filter,
+                      AsyncWriter writer) {
+        final long start = System.nanoTime();
+        final List<AsyncWriter.Job> jobs = new ArrayList<>();
+        // one count for the parser, dropped once every dex file is queued
+        final AtomicInteger pending = new AtomicInteger(1);
+        AsyncWriter.Listener listener = new AsyncWriter.Listener() {
+            @Override
+            public void written(AsyncWriter.Job job) {
+                if (pending.decrementAndGet() == 0) {
+                    finish(result, jobs, start);
+                }
+            }
+        };
+        try {
+            File out = new File(result.output);
+            boolean created = !out.isDirectory();
+            if (created && !out.mkdirs()) {
+                throw new IOException("cannot create output directory " + out);
+            }
+            List<String> mismatches = verify ? Collections.synchronizedList(result.mismatches) : null;
+            List<Dex> dex_files = DexFromOat.dexFiles(result.path, index, mismatches, filter);
+            if (dex_files == null) {
+                result.skipped = true;
+                if (created) {
+                    out.delete();
+                }
+            } else {
+                int i = 0;
+                for (Dex dex : dex_files) {
+                    if (filter == null || filter.accepts(dex)) {
+                        pending.incrementAndGet();
+                        jobs.add(writer.submit(dex, result.output + "/" + DexFromOat.fileName(dex, i), cache,
+                                mismatches, filter, listener));
+                    }
+                    i++;
+                }
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            result.error = e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.error = e.toString();
+        }
+        if (pending.decrementAndGet() == 0) {
+            finish(result, jobs, start);
+        }
+    }
+
+    private static void finish(Result result, List<AsyncWriter.Job> jobs, long start) {
+        for (AsyncWriter.Job job : jobs) {
+            if (job.error() != null && result.error == null) {
+                result.error = job.error().toString();
+            } else if (job.written()) {
+                result.bytes += job.dex.size();
+                result.dex_files++;
+            }
+        }
+        if (result.skipped) {
+            result.success = true;
+        } else if (result.error == null) {
+            checkMismatches(result);
+        }
+        finish(result, start);
+    }
+
+    private static void finish(Result result, long start) {
+        long nanos = System.nanoTime() - start;
+        result.millis = nanos / 1000000;
+        Metrics.file(nanos, result.success, result.dex_files);
+        report(result);
+    }
+
+    /**
+     * Marks an extracted result as succeeded, or as failed if verification found mismatches.
+     */
+    static void checkMismatches(Result result) {
+        if (result.mismatches.isEmpty()) {
+            result.success = true;
+        } else {
+            result.error = "verification failed: " + result.mismatches.get(0)
+                    + (result.mismatches.size() > 1 ? " (and " + (result.mismatches.size() - 1) + " more)" : "");
+        }
+    }
+
+    static void report(Result result) {
+        if (result.skipped) {
+            System.err.println("skip   " + result.path + (result.error != null ? ": " + result.error : ""));
+        } else if (result.success) {
+            System.err.println("ok     " + result.path + " (" + result.dex_files + " dex files, " + result.bytes + " B)");
+        } else {
+            System.err.println("FAILED " + result.path + ": " + result.error);
+        }
+    }
+
+    public void writeManifest(File manifest) throws IOException {
+        writeManifest(manifest, results);
+    }
+
+    static void writeManifest(File manifest, List<Result> results) throws IOException {
+        int failed = 0;
+        for (Result r : results) {
+            if (!r.success) {
+                failed++;
+            }
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(manifest), UTF8)) {
+            w.write("{\n");
+            w.write("  \"files\": " + results.size() + ",\n");
+            w.write("  \"succeeded\": " + (results.size() - failed) + ",\n");
+            w.write("  \"failed\": " + failed + ",\n");
+            w.write("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                w.write(i == 0 ? "\n" : ",\n");
+                w.write("    " + r.toJson());
+            }
+            w.write("\n  ]\n}\n");
+        }
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat batch [-j <threads>] [-w <threads> [-y <files>] | -z <level>] [-m <manifest>] [-c <cachedir> [-l <megabytes>]] [-i <indexfile>] [-s <statsfile>] [-v] [-q <key>=<pattern>]... [-d <pattern>]... [-k <pattern>]... <outdir> <input>...");
+        System.err.println("  <input>         an oat/odex/vdex file, a directory to search recursively,");
+        System.err.println("                  @<file> with one path per line, or - to read paths from stdin");
+        System.err.println("  -j <threads>    number of files extracted in parallel (default: one per core)");
+        System.err.println("  -w <threads>    write dex files on this many dedicated threads, behind a bounded queue");
+        System.err.println("  -y <files>      with -w, fsync written files in groups of this many before renaming them into place");
+        System.err.println("  -z <level>      write each oat file into <outdir>/<path>.zip, stored (0) or deflated (1-9), instead of a directory");
+        System.err.println("  -m <manifest>   where to write the JSON summary (default: <outdir>/manifest.json)");
+        System.err.println("  -c <cachedir>   store each distinct dex file once and hard-link it into the output");
+        System.err.println("  -l <megabytes>  size cap of the cache, least recently used dex files are evicted");
+        System.err.println("  -i <indexfile>  remember where the dex files are, so unchanged oat files are not parsed again");
+        System.err.println("  -s <statsfile>  enable metrics and write them to <statsfile>, Prometheus text if it ends in .prom, JSON otherwise");
+        System.err.println("  -v              verify dex checksums and signatures while writing, and oat against vdex checksums");
+        System.err.println("  -q <key>=<pattern> only extract oat files whose key-value store matches, e.g. 'compiler-filter=speed*'");
+        System.err.println("  -d <pattern>    only extract dex files whose location matches (glob, or regex after 're:')");
+        System.err.println("  -k <pattern>    only keep classes whose name matches (glob, or regex after 're:')");
+    }
+
+    /**
+     * @return the process exit code: 0 if all files were extracted, 1 if some failed, 2 on usage errors
+     */
+    static int execute(String[] args) {
+        int parallelism = 0;
+        int writers = 0;
+        int sync_group = 0;
+        int zip_level = -1;
+        String manifest = null;
+        String cachedir = null;
+        long cachelimit = 0;
+        String statsfile = null;
+        String indexfile = null;
+        boolean verify = false;
+        DexFilter filter = new DexFilter();
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-v")) {
+                    verify = true;
+                } else if (args[i].equals("-d") && i + 1 < args.length) {
+                    filter.location(args[++i]);
+                } else if (args[i].equals("-k") && i + 1 < args.length) {
+                    filter.className(args[++i]);
+                } else if (args[i].equals("-q") && i + 1 < args.length) {
+                    filter.keyValue(args[++i]);
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-w") && i + 1 < args.length) {
+                    writers = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-z") && i + 1 < args.length) {
+                    zip_level = Integer.parseInt(args[++i]);
+                    if (zip_level < 0 || zip_level > 9) {
+                        throw new NumberFormatException("zip level " + zip_level);
+                    }
+                } else if (args[i].equals("-y") && i + 1 < args.length) {
+                    sync_group = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-m") && i + 1 < args.length) {
+                    manifest = args[++i];
+                } else if (args[i].equals("-c") && i + 1 < args.length) {
+                    cachedir = args[++i];
+                } else if (args[i].equals("-s") && i + 1 < args.length) {
+                    statsfile = args[++i];
+                } else if (args[i].equals("-i") && i + 1 < args.length) {
+                    indexfile = args[++i];
+                } else if (args[i].equals("-l") && i + 1 < args.length) {
+                    cachelimit = Long.parseLong(args[++i]) << 20;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | PatternSyntaxException e) {
+            parallelism = -1;
+        }
+        if (positional.size() < 2 || parallelism < 0 || cachelimit < 0 || writers < 0 || sync_group < 0
+                || (sync_group > 0 && writers == 0) || (zip_level >= 0 && (writers > 0 || cachedir != null))) {
+            usage();
+            return 2;
+        }
+
+        File outdir = new File(positional.get(0));
+        Batch batch = new Batch(outdir);
+        batch.setVerify(verify);
+        batch.setFilter(filter);
+        batch.setZipLevel(zip_level);
+        if (statsfile != null) {
+            Metrics.enable();
+        }
+        AsyncWriter writer = writers > 0 ? new AsyncWriter(writers, sync_group) : null;
+        batch.setWriter(writer);
+        try {
+            if (cachedir != null) {
+                batch.setCache(new DexCache(new File(cachedir), cachelimit));
+            }
+            if (indexfile != null) {
+                batch.setIndex(new ParseIndex(new File(indexfile)));
+            }
+            for (String input : positional.subList(1, positional.size())) {
+                batch.addInput(input);
+            }
+            batch.run(parallelism);
+            if (writer != null) {
+                writer.close();
+            }
+            if (batch.cache != null) {
+                batch.cache.save();
+                System.err.println(batch.cache);
+            }
+            if (batch.index != null) {
+                batch.index.save();
+                System.err.println(batch.index);
+            }
+            if (statsfile != null) {
+                Metrics.get().dump(new File(statsfile));
+            }
+            if (!outdir.isDirectory() && !outdir.mkdirs()) {
+                throw new IOException("cannot create output directory " + outdir);
+            }
+            batch.writeManifest(manifest != null ? new File(manifest) : new File(outdir, "manifest.json"));
+        } catch (IOException e) {
+            System.err.println("batch failed: " + e);
+            return 1;
+        }
+        return exitCode(batch.results());
+    }
+
+    static int exitCode(List<Result> results) {
+        for (Result r : results) {
+            if (!r.success) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Carves dex files out of arbitrary blobs such as memory or partition dumps,
+ * where there is no oat or vdex structure to follow.
+ *
+ * The mapped image is split into chunks that are scanned in parallel for the
+ * "dex\n0NN\0" magic, eight bytes at a time: a word is xor-ed with 'd' in every
+ * byte and tested for zero bytes, so only positions holding a 'd' are looked at
+ * more closely. A candidate is kept if its header is consistent with a dex file
+ * that fits into the image, and written if its Adler-32 checksum and SHA-1
+ * signature, computed on the way out, match the header. A magic that starts in
+ * one chunk and ends in the next is read from the mapping as a whole, so the
+ * chunks need no overlap. Scans are drained as they finish, and at most
+ * {@link #IN_FLIGHT_PER_THREAD} scans and as many writes per thread are
+ * queued at a time, so huge images do not pile up futures or candidates.
+ *
+ * CompactDex files only occur inside vdex files, which are better read as such.
+ */
+public class Carver {
+
+    // divides the region size of mapped sources, so no chunk spans two regions
+    static final int CHUNK_SIZE = 64 << 20;
+    static final int IN_FLIGHT_PER_THREAD = 2;
+
+    static final long ONES = 0x0101010101010101L;
+    static final long HIGHS = 0x8080808080808080L;
+    static final long D_BYTES = ONES * 'd';
+    // "dex\n0" little-endian
+    static final long MAGIC_PREFIX = 0x300a786564L;
+
+    private final ExecutorService executor;
+    private final int max_in_flight;
+    private boolean keep_bad;
+
+    /**
+     * @param threads the number of threads of {@code executor}, which bounds the tasks queued on it
+     */
+    public Carver(ExecutorService executor, int threads) {
+        this.executor = executor;
+        max_in_flight = IN_FLIGHT_PER_THREAD * Math.max(1, threads);
+    }
+
+    /**
+     * Also keeps dex files whose checksum or signature does not match, e.g. partly overwritten ones.
+     */
+    public void setKeepBad(boolean keep_bad) {
+        this.keep_bad = keep_bad;
+    }
+
+    /**
+     * Writes every dex file found in {@code image} to {@code outdir}/&lt;image name&gt;_&lt;offset&gt;.dex.
+     *
+     * @param mismatches collects the candidates whose checksum or signature does not match
+     * @return the dex files written, in no particular order
+     */
+    public List<Dex> carve(String image, String outdir, List<String> mismatches)
+            throws IOException, InterruptedException, ExecutionException {
+        final ByteSource source = MappedByteSource.open(image);
+        String name = new File(image).getName();
+        // the writers add to this one, the caller's list is only touched from here
+        final List<String> found_mismatches = Collections.synchronizedList(new ArrayList<String>());
+        CompletionService<long[]> scans = new ExecutorCompletionService<>(executor);
+        CompletionService<Dex> writes = new ExecutorCompletionService<>(executor);
+        int scanning = 0;
+        int writing = 0;
+        List<Dex> written = new ArrayList<>();
+        try {
+            long next = 0;
+            while (next < source.size() || scanning > 0) {
+                while (next < source.size() && scanning < max_in_flight) {
+                    final long from = next;
+                    final long to = Math.min(source.size(), next + CHUNK_SIZE);
+                    scans.submit(new Callable<long[]>() {
+                        @Override
+                        public long[] call() throws IOException {
+                            return scan(source, from, to);
+                        }
+                    });
+                    scanning++;
+                    next = to;
+                }
+                Future<long[]> scan = scans.take();
+                scanning--;
+                long[] offsets = scan.get();
+                for (long offset : offsets) {
+                    final Dex dex = validate(source, offset, name + "@0x" + Long.toHexString(offset));
+                    if (dex == null) {
+                        continue;
+                    }
+                    if (writing == max_in_flight) {
+                        Future<Dex> write = writes.take();
+                        writing--;
+                        add(written, write.get());
+                    }
+                    final String outfile = outdir + "/" + String.format("%s_%010x.dex", name, offset);
+                    writes.submit(new Callable<Dex>() {
+                        @Override
+                        public Dex call() throws IOException {
+                            return write(dex, outfile, found_mismatches);
+                        }
+                    });
+                    writing++;
+                }
+            }
+            while (writing > 0) {
+                Future<Dex> write = writes.take();
+                writing--;
+                add(written, write.get());
+            }
+        } finally {
+            // let the tasks still queued after a failure finish before the image goes away
+            for (; scanning > 0; scanning--) {
+                drain(scans);
+            }
+            for (; writing > 0; writing--) {
+                drain(writes);
+            }
+            mismatches.addAll(found_mismatches);
+        }
+        return written;
+    }
+
+    private static void add(List<Dex> written, Dex dex) {
+        if (dex != null) {
+            written.add(dex);
+        }
+    }
+
+    private static void drain(CompletionService<?> tasks) throws InterruptedException {
+        try {
+            tasks.take().get();
+        } catch (ExecutionException e) {
+            // the first failure is already being reported
+        }
+    }
+
+    private Dex write(Dex dex, String outfile, List<String> mismatches) throws IOException {
+        Dex.Verification verification = dex.write(outfile, true);
+        if (verification.ok()) {
+            return dex;
+        }
+        mismatches.add(verification.toString());
+        if (keep_bad) {
+            return dex;
+        }
+        new File(outfile).delete();
+        return null;
+    }
+
+    /**
+     * @return the offsets in [{@code start}, {@code end}) that hold a standard dex magic, in ascending order
+     */
+    static long[] scan(ByteSource source, long start, long end) throws IOException {
+        ByteBuffer chunk = source.slice(start, end - start);
+        long[] found = new long[16];
+        int count = 0;
+        int n = chunk.limit();
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long x = chunk.getLong(i) ^ D_BYTES;
+            // the lowest flagged byte is exact, higher ones may be borrow artifacts; the magic check sorts them out
+            long hits = (x - ONES) & ~x & HIGHS;
+            while (hits != 0) {
+                long offset = start + i + (Long.numberOfTrailingZeros(hits) >>> 3);
+                hits &= hits - 1;
+                if (isDexMagic(source, offset)) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = offset;
+                }
+            }
+        }
+        for (; i < n; i++) {
+            if (chunk.get(i) == 'd' && isDexMagic(source, start + i)) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = start + i;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    static boolean isDexMagic(ByteSource source, long offset) throws IOException {
+        if (offset + Dex.HEADER_SIZE > source.size()) {
+            return false;
+        }
+        // the source is little-endian, so the magic reads from the lowest byte up
+        long magic = source.getLong(offset);
+        return (magic & 0xffffffffffL) == MAGIC_PREFIX && isDigit(magic >>> 40) && isDigit(magic >>> 48)
+                && (magic >>> 56) == 0;
+    }
+
+    private static boolean isDigit(long b) {
+        b &= 0xff;
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Checks that the header at {@code offset} describes a dex file that fits into the image.
+     *
+     * @return the dex file, or null if the header is implausible
+     */
+    static Dex validate(ByteSource source, long offset, String location) throws IOException {
+        Dex dex;
+        try {
+            dex = new Dex(source, offset, location);
+        } catch (ParseException e) {
+            // bad endian tag or a file size beyond the image
+            return null;
+        }
+        Dex.HeaderItem h = dex.header;
+        long size = h.file_size;
+        if (h.header_size != Dex.HEADER_SIZE || size < Dex.HEADER_SIZE
+                || h.map_off < Dex.HEADER_SIZE || h.map_off + 4 > size || (h.map_off & 3) != 0
+                || h.data_off + h.data_size > size
+                || !fits(h.string_ids_off, h.string_ids_size, 4, size)
+                || !fits(h.type_ids_off, h.type_ids_size, 4, size)
+                || !fits(h.proto_ids_off, h.proto_ids_size, 12, size)
+                || !fits(h.field_ids_off, h.field_ids_size, 8, size)
+                || !fits(h.method_ids_off, h.method_ids_size, 8, size)
+                || !fits(h.class_defs_off, h.class_defs_size, Dex.CLASS_DEF_SIZE, size)) {
+            return null;
+        }
+        return dex;
+    }
+
+    private static boolean fits(long offset, long count, int item_size, long size) {
+        return count == 0 || (offset >= Dex.HEADER_SIZE && offset + count * item_size <= size);
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat carve [-j <threads>] [-a] [-s <statsfile>] <outdir> <image>...");
+        System.err.println("  finds dex files in arbitrary files, e.g. memory or partition dumps, by magic and header");
+        System.err.println("  -j <threads>   scan and write in parallel, 0 uses one thread per core (default: 0)");
+        System.err.println("  -a             also keep dex files whose checksum or signature does not match");
+        System.err.println("  -s <statsfile> enable metrics and write them to <statsfile>, Prometheus text if it ends in .prom, JSON otherwise");
+    }
+
+    /**
+     * @return the process exit code
+     */
+    static int execute(String[] args) {
+        int parallelism = 0;
+        boolean keep_bad = false;
+        String statsfile = null;
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-a")) {
+                    keep_bad = true;
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-s") && i + 1 < args.length) {
+                    statsfile = args[++i];
+                } else if (args[i].length() > 1 && args[i].startsWith("-")) {
+                    usage();
+                    return 2;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            parallelism = -1;
+        }
+        if (positional.size() < 2 || parallelism < 0) {
+            usage();
+            return 2;
+        }
+        if (statsfile != null) {
+            Metrics.enable();
+        }
+        String outdir = positional.get(0);
+        File out = new File(outdir);
+        if (!out.isDirectory() && !out.mkdirs()) {
+            System.err.println("cannot create output directory " + out);
+            return 1;
+        }
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Carver carver = new Carver(executor, threads);
+        carver.setKeepBad(keep_bad);
+        boolean success = true;
+        try {
+            for (String image : positional.subList(1, positional.size())) {
+                List<String> mismatches = new ArrayList<>();
+                long start = System.nanoTime();
+                int dex_files = -1;
+                try {
+                    dex_files = carver.carve(image, outdir, mismatches).size();
+                    for (String mismatch : mismatches) {
+                        System.err.println((keep_bad ? "kept " : "rejected ") + mismatch);
+                    }
+                    System.err.println(image + ": " + dex_files + " dex files");
+                } catch (IOException e) {
+                    System.err.println("carving " + image + " failed: " + e);
+                    success = false;
+                } catch (ExecutionException e) {
+                    System.err.println("carving " + image + " failed: " + e.getCause());
+                    success = false;
+                } finally {
+                    Metrics.file(System.nanoTime() - start, dex_files >= 0, Math.max(dex_files, 0));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            success = false;
+        } finally {
+            executor.shutdown();
+        }
+        if (statsfile != null) {
+            try {
+                Metrics.get().dump(new File(statsfile));
+            } catch (IOException e) {
+                System.err.println("cannot write metrics: " + e);
+            }
+        }
+        return success ? 0 : 1;
+    }
+}
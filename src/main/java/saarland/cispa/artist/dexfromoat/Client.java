@@ -0,0 +1,175 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Command line client of {@link Daemon}. Prints the JSON answer and exits with 0
+ * if the daemon reports success. The token is read from the file the daemon
+ * wrote it to.
+ */
+public class Client {
+
+    static void usage() {
+        System.err.println("usage: dexfromoat client [-p <port>] [-t <tokenfile>] extract [-v] [-d <pattern>]... [-k <pattern>]... <oatfile> <outdir>");
+        System.err.println("       dexfromoat client [-p <port>] [-t <tokenfile>] list <oatfile>");
+        System.err.println("       dexfromoat client [-p <port>] [-t <tokenfile>] stats | shutdown");
+        System.err.println("  -t <tokenfile>  the token file of the daemon (default: ~/.dexfromoat-daemon-<port>.token)");
+    }
+
+    /**
+     * @return the process exit code
+     */
+    static int execute(String[] args) {
+        int port = Daemon.DEFAULT_PORT;
+        String tokenfile = null;
+        int i = 0;
+        for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+            if (args[i].equals("-p")) {
+                try {
+                    port = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    return 2;
+                }
+            } else if (args[i].equals("-t")) {
+                tokenfile = args[i + 1];
+            } else {
+                usage();
+                return 2;
+            }
+        }
+        if (i >= args.length) {
+            usage();
+            return 2;
+        }
+        String command = args[i++];
+        StringBuilder target = new StringBuilder("/").append(command);
+        String method = "GET";
+        try {
+            switch (command) {
+                case "extract": {
+                    StringBuilder query = new StringBuilder();
+                    for (; i < args.length - 2; i++) {
+                        if (args[i].equals("-v")) {
+                            query.append("&verify=1");
+                        } else if (args[i].equals("-d") && i + 1 < args.length - 2) {
+                            query.append("&dex=").append(encode(args[++i]));
+                        } else if (args[i].equals("-k") && i + 1 < args.length - 2) {
+                            query.append("&class=").append(encode(args[++i]));
+                        } else {
+                            usage();
+                            return 2;
+                        }
+                    }
+                    if (args.length - i != 2) {
+                        usage();
+                        return 2;
+                    }
+                    target.append("?oat=").append(encode(absolute(args[i])))
+                            .append("&out=").append(encode(absolute(args[i + 1]))).append(query);
+                    method = "POST";
+                    break;
+                }
+                case "list":
+                    if (args.length - i != 1) {
+                        usage();
+                        return 2;
+                    }
+                    target.append("?oat=").append(encode(absolute(args[i])));
+                    break;
+                case "stats":
+                case "shutdown":
+                    if (args.length != i) {
+                        usage();
+                        return 2;
+                    }
+                    if (command.equals("shutdown")) {
+                        method = "POST";
+                    }
+                    break;
+                default:
+                    usage();
+                    return 2;
+            }
+            File token = tokenfile != null ? new File(tokenfile) : Daemon.defaultTokenFile(port);
+            if (!token.isFile()) {
+                System.err.println("no token in " + token + ", start a daemon with: dexfromoat daemon");
+                return 1;
+            }
+            return request(port, method, target.toString(), Daemon.readToken(token));
+        } catch (ConnectException e) {
+            System.err.println("no daemon listening on port " + port + ", start one with: dexfromoat daemon");
+            return 1;
+        } catch (IOException e) {
+            System.err.println("request failed: " + e);
+            return 1;
+        }
+    }
+
+    private static int request(int port, String method, String target, String token) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http", "127.0.0.1", port, target).openConnection();
+        try {
+            c.setRequestMethod(method);
+            c.setRequestProperty("Authorization", Daemon.BEARER + token);
+            if (method.equals("POST")) {
+                // the parameters are in the query, send an empty body
+                c.setDoOutput(true);
+                c.setFixedLengthStreamingMode(0);
+                c.getOutputStream().close();
+            }
+            int status = c.getResponseCode();
+            InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+            if (in != null) {
+                try (InputStream body = in) {
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    byte[] chunk = new byte[8192];
+                    int n;
+                    while ((n = body.read(chunk)) > 0) {
+                        buf.write(chunk, 0, n);
+                    }
+                    System.out.print(buf.toString("UTF-8"));
+                }
+            }
+            return status == HttpURLConnection.HTTP_OK ? 0 : 1;
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    // the daemon has its own working directory
+    private static String absolute(String path) {
+        return new File(path).getAbsolutePath();
+    }
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+}
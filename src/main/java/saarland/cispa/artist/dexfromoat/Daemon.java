@@ -0,0 +1,700 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Stays resident with a warm parser and the recently opened oat files, and serves
+ * extractions over HTTP on the loopback interface. Scripts and interactive tools
+ * save the JVM start on every call; {@link Client} or curl talk to it.
+ *
+ * Answers are JSON:
+ * <ul>
+ *     <li>{@code POST /extract?oat=<path>&out=<dir>[&verify=1][&dex=<pattern>]...[&class=<pattern>]...}</li>
+ *     <li>{@code GET /list?oat=<path>}</li>
+ *     <li>{@code GET /stats}</li>
+ *     <li>{@code POST /shutdown}</li>
+ * </ul>
+ * POST parameters may also come as a form-encoded body. Paths are resolved by the
+ * daemon, so they should be absolute.
+ *
+ * Only the loopback interface is served. Every request must carry the token the
+ * daemon draws at start as {@code Authorization: Bearer <token>}; it is written to
+ * a token file only the daemon user can read, and deleted on shutdown. Requests
+ * whose Host is not 127.0.0.1 or localhost are refused, so web pages cannot reach
+ * the daemon through DNS rebinding, and the state-changing endpoints take POST only.
+ */
+public class Daemon {
+
+    static final int DEFAULT_PORT = 8417;
+    static final int DEFAULT_OPEN_FILES = 64;
+    static final long DEFAULT_MAPPED_BYTES = 2048L << 20;
+    static final int MAX_LINE = 64 * 1024;
+    static final int TIMEOUT_MILLIS = 30000;
+    static final String BEARER = "Bearer ";
+
+    /**
+     * Where the daemon on {@code port} leaves its token unless told otherwise.
+     */
+    static File defaultTokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".dexfromoat-daemon-" + port + ".token");
+    }
+
+    private final ServerSocket server;
+    private final ExecutorService workers;
+    private final OpenFiles open_files;
+    private final AtomicLong requests = new AtomicLong();
+    private final byte[] token;
+    private volatile boolean running = true;
+    private DexCache cache;
+    private ParseIndex index;
+
+    /**
+     * Binds to {@code port} on the loopback interface, 0 picks a free port.
+     *
+     * @param max_open_files   how many oat files to keep open
+     * @param max_mapped_bytes how many bytes of oat and vdex files to keep mapped
+     */
+    public Daemon(int port, int max_open_files, long max_mapped_bytes) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        open_files = new OpenFiles(max_open_files, max_mapped_bytes);
+        SecureRandom random = new SecureRandom();
+        token = String.format("%016x%016x", random.nextLong(), random.nextLong()).getBytes(Batch.UTF8);
+    }
+
+    /**
+     * Writes the token to {@code file}, readable and writable by the daemon user only.
+     */
+    public void writeToken(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        tmp.delete();
+        if (!tmp.createNewFile()) {
+            throw new IOException("cannot create " + tmp);
+        }
+        // restrict before the token is in there
+        if (!(tmp.setReadable(false, false) && tmp.setReadable(true, true)
+                && tmp.setWritable(false, false) && tmp.setWritable(true, true))) {
+            tmp.delete();
+            throw new IOException("cannot restrict the permissions of " + tmp);
+        }
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(token);
+            out.write('\n');
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("cannot move " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the token a daemon wrote with {@link #writeToken(File)}.
+     */
+    static String readToken(File file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Batch.UTF8))) {
+            String line = in.readLine();
+            if (line == null || line.trim().isEmpty()) {
+                throw new IOException(file + " holds no token");
+            }
+            return line.trim();
+        }
+    }
+
+    public void setCache(DexCache cache) {
+        this.cache = cache;
+    }
+
+    public void setIndex(ParseIndex index) {
+        this.index = index;
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts requests until {@link #stop()} or a /shutdown request, then waits for the running ones.
+     */
+    public void serve() throws IOException {
+        try {
+            while (running) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (!running) {
+                        break;
+                    }
+                    throw e;
+                }
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+
+    static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static Response error(int status, String message) {
+            return new Response(status, "{\"error\": " + Json.quote(message) + "}");
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(TIMEOUT_MILLIS);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            String request = readLine(in);
+            if (request == null) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (String header = readLine(in); header != null && !header.isEmpty(); header = readLine(in)) {
+                int colon = header.indexOf(':');
+                if (colon > 0) {
+                    headers.put(header.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            header.substring(colon + 1).trim());
+                }
+            }
+            String[] parts = request.split(" ");
+            Response response;
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+                response = Response.error(400, "malformed request line");
+            } else if (!isLocalHost(headers.get("host"))) {
+                response = Response.error(403, "host " + headers.get("host") + " is not served");
+            } else if (!authorized(headers.get("authorization"))) {
+                response = Response.error(401, "missing or wrong token");
+            } else {
+                String body = readBody(in, headers.get("content-length"));
+                if (body == null) {
+                    response = Response.error(400, "malformed or oversized body");
+                } else {
+                    requests.incrementAndGet();
+                    response = dispatch(parts[0], parts[1], body);
+                }
+            }
+            byte[] body = (response.body + "\n").getBytes(Batch.UTF8);
+            OutputStream out = s.getOutputStream();
+            out.write(("HTTP/1.1 " + response.status + " " + reason(response.status) + "\r\n"
+                    + "Content-Type: application/json; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(Batch.UTF8));
+            out.write(body);
+            out.flush();
+        } catch (IOException e) {
+            // the client went away, nothing to answer
+        }
+    }
+
+    /**
+     * Whether a Host header names the loopback interface, with or without a port.
+     */
+    static boolean isLocalHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        int colon = host.lastIndexOf(':');
+        String name = colon < 0 ? host : host.substring(0, colon);
+        return name.equals("127.0.0.1") || name.equalsIgnoreCase("localhost");
+    }
+
+    private boolean authorized(String authorization) {
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        // constant time, so the token cannot be guessed byte by byte
+        return MessageDigest.isEqual(token, authorization.substring(BEARER.length()).trim().getBytes(Batch.UTF8));
+    }
+
+    /**
+     * Reads a request body of at most {@link #MAX_LINE} bytes.
+     *
+     * @return the body, empty without a Content-Length, null if it is malformed or too long
+     */
+    static String readBody(InputStream in, String content_length) throws IOException {
+        if (content_length == null) {
+            return "";
+        }
+        int length;
+        try {
+            length = Integer.parseInt(content_length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_LINE) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        for (int n = 0; n < length; ) {
+            int r = in.read(body, n, length - n);
+            if (r < 0) {
+                return null;
+            }
+            n += r;
+        }
+        return new String(body, "ISO-8859-1");
+    }
+
+    /**
+     * Reads a CRLF or LF terminated line, null at the end of the stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return line.size() == 0 ? null : line.toString("ISO-8859-1");
+            }
+            if (line.size() >= MAX_LINE) {
+                throw new IOException("request line too long");
+            }
+            line.write(c);
+        }
+        String s = line.toString("ISO-8859-1");
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            default:
+                return "Internal Server Error";
+        }
+    }
+
+    /**
+     * @param body form-encoded parameters in addition to those of the query
+     */
+    Response dispatch(String method, String target, String body) {
+        int q = target.indexOf('?');
+        String path = q < 0 ? target : target.substring(0, q);
+        Map<String, List<String>> params;
+        try {
+            params = parseQuery((q < 0 ? "" : target.substring(q + 1)) + "&" + body.trim());
+        } catch (IllegalArgumentException e) {
+            return Response.error(400, "malformed query: " + e.getMessage());
+        }
+        String expected;
+        switch (path) {
+            case "/extract":
+            case "/shutdown":
+                expected = "POST";
+                break;
+            case "/list":
+            case "/stats":
+                expected = "GET";
+                break;
+            default:
+                return Response.error(404, "unknown endpoint " + path);
+        }
+        if (!method.equals(expected)) {
+            return Response.error(405, path + " takes " + expected + " only");
+        }
+        switch (path) {
+            case "/extract":
+                return extract(params);
+            case "/list":
+                return list(params);
+            case "/stats":
+                return new Response(200, stats());
+            default:
+                stop();
+                return new Response(200, "{\"status\": \"stopping\"}");
+        }
+    }
+
+    static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            List<String> values = params.get(key);
+            if (values == null) {
+                values = new ArrayList<>();
+                params.put(key, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String param(Map<String, List<String>> params, String key) {
+        List<String> values = params.get(key);
+        return values == null ? null : values.get(values.size() - 1);
+    }
+
+    private static List<String> params(Map<String, List<String>> params, String key) {
+        List<String> values = params.get(key);
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+
+    private Response extract(Map<String, List<String>> params) {
+        String oat = param(params, "oat");
+        String out = param(params, "out");
+        if (oat == null || out == null) {
+            return Response.error(400, "extract needs oat and out");
+        }
+        boolean verify = "1".equals(param(params, "verify")) || "true".equals(param(params, "verify"));
+        DexFilter filter = new DexFilter();
+        try {
+            for (String pattern : params(params, "dex")) {
+                filter.location(pattern);
+            }
+            for (String pattern : params(params, "class")) {
+                filter.className(pattern);
+            }
+        } catch (PatternSyntaxException e) {
+            return Response.error(400, e.getMessage());
+        }
+
+        Batch.Result result = new Batch.Result(oat, out);
+        long start = System.nanoTime();
+        try {
+            File dir = new File(out);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create output directory " + dir);
+            }
+            OpenFiles.Handle h = open_files.get(oat, index);
+            if (verify && h.oat != null) {
+                result.mismatches.addAll(h.oat.checkVdex());
+            }
+            for (Dex dex : DexFromOat.write(h.dex_files, out, cache, verify ? result.mismatches : null, filter)) {
+                result.bytes += dex.size();
+                result.dex_files++;
+            }
+            Batch.checkMismatches(result);
+        } catch (IOException | ParseException | RuntimeException e) {
+            result.error = e.toString();
+        }
+        long nanos = System.nanoTime() - start;
+        result.millis = nanos / 1000000;
+        Metrics.file(nanos, result.success, result.dex_files);
+        return new Response(result.success ? 200 : 500, result.toJson());
+    }
+
+    private Response list(Map<String, List<String>> params) {
+        String oat = param(params, "oat");
+        if (oat == null) {
+            return Response.error(400, "list needs oat");
+        }
+        try {
+            OpenFiles.Handle h = open_files.get(oat, index);
+            return new Response(200, Inventory.describe(oat, h.version, h.oat, h.dex_files).toJson());
+        } catch (IOException | ParseException | RuntimeException e) {
+            return Response.error(500, e.toString());
+        }
+    }
+
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"requests\": ").append(requests.get());
+        open_files.appendJson(sb);
+        sb.append(", \"cache\": ").append(Json.quote(cache != null ? cache.toString() : null));
+        sb.append(", \"index\": ").append(Json.quote(index != null ? index.toString() : null));
+        sb.append(", \"metrics\": ").append(Metrics.enabled() ? Metrics.get().toJson().trim() : "null");
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Parsed oat and vdex files by canonical path, least recently used first. A file
+     * that changed on disk is parsed again. Files are mapped and hold no file
+     * descriptor, so evicting one only drops our references; requests still using
+     * it finish undisturbed.
+     *
+     * The byte limit is therefore best-effort: it bounds what this cache references,
+     * but an evicted mapping is only released once the garbage collector finds it
+     * unreachable, as Java has no portable way to unmap it, and one file larger than
+     * the limit is still kept until the next one is opened.
+     */
+    static class OpenFiles {
+
+        static class Handle {
+            final long size;
+            final long mtime;
+            // bytes mapped for this handle, including the vdex file
+            final long mapped_bytes;
+            // null for vdex files opened on their own
+            final Oat oat;
+            final int version;
+            final List<Dex> dex_files;
+
+            Handle(long size, long mtime, long mapped_bytes, Oat oat, int version, List<Dex> dex_files) {
+                this.size = size;
+                this.mtime = mtime;
+                this.mapped_bytes = mapped_bytes;
+                this.oat = oat;
+                this.version = version;
+                this.dex_files = dex_files;
+            }
+        }
+
+        private final int max_files;
+        private final long max_bytes;
+        private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        OpenFiles(int max_files, long max_bytes) {
+            this.max_files = max_files;
+            this.max_bytes = max_bytes;
+        }
+
+        Handle get(String path, ParseIndex index) throws IOException, ParseException {
+            File f = new File(path);
+            String key = f.getCanonicalPath();
+            long size = f.length();
+            long mtime = f.lastModified();
+            synchronized (this) {
+                Handle h = handles.get(key);
+                if (h != null && h.size == size && h.mtime == mtime) {
+                    hits++;
+                    return h;
+                }
+                misses++;
+            }
+            Handle h = open(path, index, size, mtime);
+            synchronized (this) {
+                Handle old = handles.put(key, h);
+                if (old != null) {
+                    bytes -= old.mapped_bytes;
+                }
+                bytes += h.mapped_bytes;
+                evict(key);
+            }
+            return h;
+        }
+
+        private static Handle open(String path, ParseIndex index, long size, long mtime)
+                throws IOException, ParseException {
+            if (Vdex.isVdex(path)) {
+                Vdex vdex = Vdex.open(path);
+                return new Handle(size, mtime, size, null, vdex.version(), vdex.dexFiles());
+            }
+            Oat oat = index != null ? index.open(path) : Oat.open(path);
+            long mapped = size + (oat.vdex != null ? oat.vdex.source.size() : 0);
+            return new Handle(size, mtime, mapped, oat, oat.version(), new ArrayList<>(oat.dex_files));
+        }
+
+        private void evict(String keep) {
+            Iterator<Map.Entry<String, Handle>> it = handles.entrySet().iterator();
+            while ((handles.size() > max_files || bytes > max_bytes) && it.hasNext()) {
+                Map.Entry<String, Handle> eldest = it.next();
+                if (eldest.getKey().equals(keep)) {
+                    continue;
+                }
+                bytes -= eldest.getValue().mapped_bytes;
+                evictions++;
+                it.remove();
+            }
+        }
+
+        synchronized void appendJson(StringBuilder sb) {
+            sb.append(", \"open_files\": ").append(handles.size())
+                    .append(", \"mapped_bytes\": ").append(bytes)
+                    .append(", \"open_hits\": ").append(hits)
+                    .append(", \"open_misses\": ").append(misses)
+                    .append(", \"open_evictions\": ").append(evictions);
+        }
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat daemon [-p <port>] [-n <files>] [-b <megabytes>] [-c <cachedir> [-l <megabytes>]] [-i <indexfile>] [-s <statsfile>] [-t <tokenfile>]");
+        System.err.println("  -p <port>       port on the loopback interface (default: " + DEFAULT_PORT + ")");
+        System.err.println("  -n <files>      oat files kept open (default: " + DEFAULT_OPEN_FILES + ")");
+        System.err.println("  -b <megabytes>  oat and vdex bytes kept mapped, best-effort: evicted files are unmapped by the garbage collector (default: " + (DEFAULT_MAPPED_BYTES >> 20) + ")");
+        System.err.println("  -c <cachedir>   store each distinct dex file once and hard-link it into the output");
+        System.err.println("  -l <megabytes>  size cap of the cache, least recently used dex files are evicted");
+        System.err.println("  -i <indexfile>  remember where the dex files are, saved when the daemon shuts down");
+        System.err.println("  -s <statsfile>  enable metrics, served by /stats and written to <statsfile> on shutdown");
+        System.err.println("  -t <tokenfile>  where to write the token clients must send (default: ~/.dexfromoat-daemon-<port>.token)");
+    }
+
+    /**
+     * Runs the daemon until a /shutdown request.
+     *
+     * @return the process exit code
+     */
+    static int execute(String[] args) {
+        int port = DEFAULT_PORT;
+        int max_files = DEFAULT_OPEN_FILES;
+        long max_bytes = DEFAULT_MAPPED_BYTES;
+        String cachedir = null;
+        long cachelimit = 0;
+        String indexfile = null;
+        String statsfile = null;
+        String tokenfile = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-p") && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-n") && i + 1 < args.length) {
+                    max_files = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-b") && i + 1 < args.length) {
+                    max_bytes = Long.parseLong(args[++i]) << 20;
+                } else if (args[i].equals("-c") && i + 1 < args.length) {
+                    cachedir = args[++i];
+                } else if (args[i].equals("-l") && i + 1 < args.length) {
+                    cachelimit = Long.parseLong(args[++i]) << 20;
+                } else if (args[i].equals("-i") && i + 1 < args.length) {
+                    indexfile = args[++i];
+                } else if (args[i].equals("-s") && i + 1 < args.length) {
+                    statsfile = args[++i];
+                } else if (args[i].equals("-t") && i + 1 < args.length) {
+                    tokenfile = args[++i];
+                } else {
+                    usage();
+                    return 2;
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage();
+            return 2;
+        }
+        if (max_files < 1 || max_bytes < 0 || cachelimit < 0) {
+            usage();
+            return 2;
+        }
+        if (statsfile != null) {
+            Metrics.enable();
+        }
+        try {
+            Daemon daemon = new Daemon(port, max_files, max_bytes);
+            if (cachedir != null) {
+                daemon.setCache(new DexCache(new File(cachedir), cachelimit));
+            }
+            if (indexfile != null) {
+                daemon.setIndex(new ParseIndex(new File(indexfile)));
+            }
+            File token = tokenfile != null ? new File(tokenfile) : defaultTokenFile(daemon.port());
+            daemon.writeToken(token);
+            System.err.println("listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + daemon.port()
+                    + ", token in " + token);
+            try {
+                daemon.serve();
+            } finally {
+                token.delete();
+            }
+            if (daemon.cache != null) {
+                daemon.cache.save();
+            }
+            if (daemon.index != null) {
+                daemon.index.save();
+            }
+            if (statsfile != null) {
+                Metrics.get().dump(new File(statsfile));
+            }
+        } catch (IOException e) {
+            System.err.println("daemon failed: " + e);
+            return 1;
+        }
+        return 0;
+    }
+}
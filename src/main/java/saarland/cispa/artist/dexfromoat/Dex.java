@@ -21,127 +21,672 @@
 
 package saarland.cispa.artist.dexfromoat;
 
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
 
 public class Dex {
 
     private final long dex_offset;
     Oat oat;
+    // little-endian source of the dex bytes: the oat file, or from O on the vdex file
+    ByteSource source;
+    // absolute offset of the first dex byte in source
+    long begin;
     DexFileHeader fileheader;
     HeaderItem header;
+    // OatClass offsets by class_def index, read on first use
+    private int[] class_offsets;
 
     class DexFileHeader{
         public String dex_file_location_str;
-        byte[] dex_file_location_size = new byte[4];
-        byte[] dex_file_location_data;
-        byte[] dex_file_location_checksum = new byte[4];
-        byte[] dex_file_pointer = new byte[4];
-        byte[][] classes_offsets;
+        long dex_file_location_size;
+        long dex_file_location_checksum;
+        long dex_file_pointer;
+        long class_offsets_offset;
+        long lookup_table_offset;
+        // absolute offset of the u4 class offsets: inline before O, behind class_offsets_offset from O on
+        long class_offsets_position;
+        long end_offset;
 
         DexFileHeader(long offset) throws IOException, ParseException {
-            long mark = oat.oatfile.getFilePointer();
-            oat.oatfile.seek(offset);
-            oat.oatfile.read(dex_file_location_size);
-            dex_file_location_str = readString(oat.oatfile.getFilePointer(), oat.elf.unpack_int(dex_file_location_size));
-            dex_file_location_data = new byte[(int) oat.elf.unpack_int(dex_file_location_size)];
-            oat.oatfile.read(dex_file_location_data);
-            oat.oatfile.read(dex_file_location_checksum);
-            oat.oatfile.read(dex_file_pointer);
-            header = new HeaderItem(oat.oatdata_offset + oat.elf.unpack_int(dex_file_pointer));
-            classes_offsets = new byte[(int) oat.elf.unpack_int(header.class_defs_size)][4];
-            for (int i = 0; i < (int) oat.elf.unpack_int(header.class_defs_size); i++)
-                oat.oatfile.read(classes_offsets[i]);
-            oat.oatfile.seek(mark);
+            dex_file_location_size = oat.source.getUnsignedInt(offset);
+            offset += 4;
+            dex_file_location_str = readString(offset, dex_file_location_size);
+            offset += dex_file_location_size;
+            dex_file_location_checksum = oat.source.getUnsignedInt(offset);
+            dex_file_pointer = oat.source.getUnsignedInt(offset + 4);
+            offset += 8;
+            oat.locateDex(Dex.this, dex_file_pointer);
+            readHeader();
+            if (oat.version < Oat.VERSION_O) {
+                // L, M and N store the class offsets inline, N appends the lookup table offset
+                class_offsets_position = offset;
+                offset = checkClassOffsets();
+                if (oat.version >= Oat.VERSION_N) {
+                    lookup_table_offset = oat.source.getUnsignedInt(offset);
+                    offset += 4;
+                }
+            } else {
+                // O+ only points to the class offsets and grows a few more section offsets per release
+                class_offsets_offset = oat.source.getUnsignedInt(offset);
+                lookup_table_offset = oat.source.getUnsignedInt(offset + 4);
+                offset += 8 + 4 * Oat.extraSectionOffsets(oat.version);
+                class_offsets_position = oat.oatdata_offset + class_offsets_offset;
+                checkClassOffsets();
+            }
+            end_offset = offset;
         }
-    }
 
-    public String readString(long offset, long size) throws IOException, ParseException {
-        long mark = oat.oatfile.getFilePointer();
-        oat.oatfile.seek(offset);
-        StringBuilder sb = new StringBuilder();
-        int b;
-        for(int i = 0; i < size; i++){
-            b = oat.oatfile.read();
-            if (b == -1){
-                throw new ParseException("reached EOF while parsing fixed-size string", (int)oat.oatfile.getFilePointer());
+        /**
+         * Restores a record from the parse index instead of decoding the OatDexFile table.
+         */
+        DexFileHeader(ParseIndex.DexEntry entry) throws IOException, ParseException {
+            dex_file_location_str = entry.location;
+            dex_file_location_size = entry.location.length();
+            dex_file_location_checksum = entry.location_checksum;
+            dex_file_pointer = entry.dex_file_pointer;
+            class_offsets_offset = entry.class_offsets_offset;
+            class_offsets_position = entry.class_offsets_position;
+            lookup_table_offset = entry.lookup_table_offset;
+            end_offset = entry.end_offset;
+            oat.locateDex(Dex.this, dex_file_pointer);
+            readHeader();
+            checkClassOffsets();
+        }
+
+        /**
+         * A dex file read straight from a vdex file. There is no OatDexFile record,
+         * so there are no compiled classes either.
+         */
+        DexFileHeader(String location, long location_checksum) throws IOException, ParseException {
+            dex_file_location_str = location;
+            dex_file_location_size = location.length();
+            dex_file_location_checksum = location_checksum;
+            dex_file_pointer = begin;
+            readHeader();
+            class_offsets = new int[0];
+        }
+
+        private void readHeader() throws IOException, ParseException {
+            header = new HeaderItem(begin);
+            if (header.class_defs_size * 4 > source.size()){
+                throw new ParseException("Illegal class_defs_size: " + header.class_defs_size, (int) dex_offset);
             }
-            else {
-                sb.append((char) b);
+        }
+
+        /**
+         * The class offsets are only read when asked for, see {@link #classOffsets()}.
+         *
+         * @return the offset right behind the class offsets
+         */
+        private long checkClassOffsets() throws ParseException {
+            long end = class_offsets_position + 4 * header.class_defs_size;
+            if (end > oat.source.size()) {
+                throw new ParseException("class offsets of " + dex_file_location_str + " exceed the oat file",
+                        (int) class_offsets_position);
             }
+            return end;
+        }
+    }
+
+    /**
+     * The offsets of the OatClass records by class_def index, relative to oatdata. An
+     * OatClass holds the compilation status of a class and the code offsets of its
+     * methods. The table is read in one go on first use. Dex files read from a vdex
+     * file on its own have no compiled classes and return an empty array.
+     */
+    public int[] classOffsets() throws IOException {
+        return loadClassOffsets().clone();
+    }
+
+    /**
+     * The offset of the OatClass record of class_def {@code index}, relative to oatdata.
+     */
+    public long classOffset(int index) throws IOException {
+        return loadClassOffsets()[index] & 0xffffffffL;
+    }
+
+    private synchronized int[] loadClassOffsets() throws IOException {
+        if (class_offsets == null) {
+            int[] offsets = new int[(int) header.class_defs_size];
+            // in the byte order of the oat file
+            oat.source.slice(fileheader.class_offsets_position, 4L * offsets.length).asIntBuffer().get(offsets);
+            class_offsets = offsets;
         }
-        oat.oatfile.seek(mark);
-        return sb.toString();
+        return class_offsets;
     }
 
+    public String readString(long offset, long size) throws IOException, ParseException {
+        if (offset + size > oat.source.size()){
+            throw new ParseException("reached EOF while parsing fixed-size string", (int) oat.source.size());
+        }
+        return oat.source.getString(offset, (int) size);
+    }
+
+    /**
+     * Receives the dex files of a table one by one, as soon as each one's header is read.
+     */
+    interface Visitor {
+        void visit(Dex dex) throws IOException, ParseException;
+    }
+
+    static final int ENDIAN_CONSTANT = 0x12345678;
+    static final int HEADER_SIZE = 0x70;
+
+    /**
+     * The dex header. Unlike the oat structures it is always little-endian, whatever the elf byte order.
+     */
     class HeaderItem{
         byte[] magic = new byte[8];
-        byte[] checksum = new byte[4];
+        long checksum;
         byte[] signature = new byte[20];
-        byte[] file_size = new byte[4];
-        byte[] header_size = new byte[4];
-        byte[] endian_tag = new byte[4];
-        byte[] link_size = new byte[4];
-        byte[] link_off = new byte[4];
-        byte[] map_off = new byte[4];
-        byte[] string_ids_size = new byte[4];
-        byte[] string_ids_off = new byte[4];
-        byte[] type_ids_size = new byte[4];
-        byte[] type_ids_off = new byte[4];
-        byte[] proto_ids_size = new byte[4];
-        byte[] proto_ids_off = new byte[4];
-        byte[] field_ids_size = new byte[4];
-        byte[] field_ids_off = new byte[4];
-        byte[] method_ids_size = new byte[4];
-        byte[] method_ids_off = new byte[4];
-        byte[] class_defs_size = new byte[4];
-        byte[] class_defs_off = new byte[4];
-        byte[] data_size = new byte[4];
-        byte[] data_off = new byte[4];
-
-        HeaderItem(long offset) throws IOException {
-            long mark = oat.oatfile.getFilePointer();
-            oat.oatfile.seek(offset);
-            oat.oatfile.read(magic);
-            oat.oatfile.read(checksum);
-            oat.oatfile.read(signature);
-            oat.oatfile.read(file_size);
-            oat.oatfile.read(header_size);
-            oat.oatfile.read(endian_tag);
-            oat.oatfile.read(link_size);
-            oat.oatfile.read(link_off);
-            oat.oatfile.read(map_off);
-            oat.oatfile.read(string_ids_size);
-            oat.oatfile.read(string_ids_off);
-            oat.oatfile.read(type_ids_size);
-            oat.oatfile.read(type_ids_off);
-            oat.oatfile.read(proto_ids_size);
-            oat.oatfile.read(proto_ids_off);
-            oat.oatfile.read(field_ids_size);
-            oat.oatfile.read(field_ids_off);
-            oat.oatfile.read(method_ids_size);
-            oat.oatfile.read(method_ids_off);
-            oat.oatfile.read(class_defs_size);
-            oat.oatfile.read(class_defs_off);
-            oat.oatfile.read(data_size);
-            oat.oatfile.read(data_off);
-            assert oat.oatfile.getFilePointer() == mark + oat.elf.unpack_int(header_size);
-            oat.oatfile.seek(mark);
+        long file_size;
+        long header_size;
+        long endian_tag;
+        long link_size;
+        long link_off;
+        long map_off;
+        long string_ids_size;
+        long string_ids_off;
+        long type_ids_size;
+        long type_ids_off;
+        long proto_ids_size;
+        long proto_ids_off;
+        long field_ids_size;
+        long field_ids_off;
+        long method_ids_size;
+        long method_ids_off;
+        long class_defs_size;
+        long class_defs_off;
+        long data_size;
+        long data_off;
+
+        HeaderItem(long offset) throws IOException, ParseException {
+            ByteSource dex = source;
+            dex.get(offset, magic);
+            if (!isDexMagic(magic)) {
+                if (oat != null && oat.version >= Oat.VERSION_O && oat.vdex == null) {
+                    throw new ParseException("no dex file at 0x" + Long.toHexString(offset)
+                            + ": from Android O on the dex files live in the .vdex file next to the oat file", (int) offset);
+                }
+                throw new ParseException("Illegal dex magic at 0x" + Long.toHexString(offset), (int) offset);
+            }
+            checksum = dex.getUnsignedInt(offset + 8);
+            dex.get(offset + 12, signature);
+            file_size = dex.getUnsignedInt(offset + 32);
+            header_size = dex.getUnsignedInt(offset + 36);
+            endian_tag = dex.getUnsignedInt(offset + 40);
+            link_size = dex.getUnsignedInt(offset + 44);
+            link_off = dex.getUnsignedInt(offset + 48);
+            map_off = dex.getUnsignedInt(offset + 52);
+            string_ids_size = dex.getUnsignedInt(offset + 56);
+            string_ids_off = dex.getUnsignedInt(offset + 60);
+            type_ids_size = dex.getUnsignedInt(offset + 64);
+            type_ids_off = dex.getUnsignedInt(offset + 68);
+            proto_ids_size = dex.getUnsignedInt(offset + 72);
+            proto_ids_off = dex.getUnsignedInt(offset + 76);
+            field_ids_size = dex.getUnsignedInt(offset + 80);
+            field_ids_off = dex.getUnsignedInt(offset + 84);
+            method_ids_size = dex.getUnsignedInt(offset + 88);
+            method_ids_off = dex.getUnsignedInt(offset + 92);
+            class_defs_size = dex.getUnsignedInt(offset + 96);
+            class_defs_off = dex.getUnsignedInt(offset + 100);
+            data_size = dex.getUnsignedInt(offset + 104);
+            data_off = dex.getUnsignedInt(offset + 108);
+            if (endian_tag != ENDIAN_CONSTANT) {
+                throw new ParseException("Illegal dex endian_tag: 0x" + Long.toHexString(endian_tag), (int) offset + 40);
+            }
+            if (offset + file_size > dex.size()) {
+                throw new ParseException("Illegal dex file_size: " + file_size, (int) offset + 32);
+            }
         }
     }
 
+    /**
+     * Accepts standard dex ("dex\n") and CompactDex ("cdex") magic.
+     */
+    static boolean isDexMagic(byte[] magic) {
+        return (magic[0] == 'd' && magic[1] == 'e' && magic[2] == 'x' && magic[3] == '\n')
+                || (magic[0] == 'c' && magic[1] == 'd' && magic[2] == 'e' && magic[3] == 'x');
+    }
+
+    /**
+     * Whether this is a CompactDex file, as written by dex2oat from Android P on.
+     */
+    public boolean isCompact() {
+        return header.magic[0] == 'c';
+    }
+
+    /**
+     * CompactDex files may keep their data in a section shared by all dex files of the
+     * vdex file, {@code data_off} bytes behind their begin. Returns true if that section
+     * lies outside of the file's own {@code file_size} bytes.
+     */
+    boolean hasSharedData() {
+        return isCompact() && header.data_size > 0 && header.data_off + header.data_size > header.file_size;
+    }
+
+    /**
+     * The location the dex file was compiled from, e.g. "/system/framework/framework.jar:classes2.dex".
+     */
+    public String location() {
+        return fileheader.dex_file_location_str;
+    }
+
+    public long locationChecksum() {
+        return fileheader.dex_file_location_checksum;
+    }
+
+    /**
+     * The Adler-32 checksum stored in the dex header.
+     */
+    public long checksum() {
+        return header.checksum;
+    }
+
+    /**
+     * The SHA-1 signature stored in the dex header.
+     */
+    public byte[] signature() {
+        return header.signature.clone();
+    }
+
+    /**
+     * The number of bytes {@link #write(String)} produces: the dex file size, plus the
+     * shared data of a CompactDex file.
+     */
+    public long size() {
+        return hasSharedData() ? align4(header.file_size) + header.data_size : header.file_size;
+    }
+
+    static long align4(long value) {
+        return (value + 3) & ~3L;
+    }
+
+    /**
+     * Absolute offset of the OatDexFile record describing this dex file.
+     */
+    long record_offset() {
+        return dex_offset;
+    }
+
+    /**
+     * Absolute offset of the first dex byte in {@link #source}.
+     */
+    long dex_file_offset() {
+        return begin;
+    }
+
+    /**
+     * Returns the dex file as a read-only, little-endian buffer. For mapped and
+     * in-memory oat files this is a view, no bytes are copied. CompactDex files
+     * are returned as stored, without their shared data.
+     */
+    public ByteBuffer buffer() throws IOException {
+        return source.slice(begin, header.file_size);
+    }
+
+    /**
+     * Returns a stream over the dex bytes as stored, read from the oat or vdex file on demand.
+     */
+    public InputStream inputStream() throws IOException {
+        return source.inputStream(begin, header.file_size);
+    }
+
+    /**
+     * Streams the dex file to {@code outfile}. Memory use is constant regardless of the dex size.
+     */
     public void write(String outfile) throws IOException {
-//        System.out.println("extracting dex file: " + fileheader.dex_file_location_str + " (" + oat.elf.unpack_int(header.file_size) + " B) to ./" + outfile);
+        write(outfile, false);
+    }
+
+    /**
+     * Like {@link #write(String)}. With {@code verify}, the checksum and signature are
+     * computed from the bytes on their way out and compared with the header.
+     *
+     * @return the outcome of the check, null if nothing was checked. CompactDex files
+     * are not checked, ART sums them differently.
+     */
+    public Verification write(String outfile, boolean verify) throws IOException {
+//        System.out.println("extracting dex file: " + fileheader.dex_file_location_str + " (" + header.file_size + " B) to ./" + outfile);
+        long t = Metrics.start();
         File f = new File(outfile);
         f.delete();
-        RandomAccessFile out = new RandomAccessFile(outfile, "rw");
-        int size = (int) oat.elf.unpack_int(header.file_size);
-        oat.oatfile.seek(oat.oatdata_offset + oat.elf.unpack_int(fileheader.dex_file_pointer));
-        byte[] data = new byte[size];
-        oat.oatfile.read(data);
-        out.write(data);
-        out.close();
+        Verification verification = null;
+        try (FileChannel out = new FileOutputStream(f).getChannel()) {
+            if (hasSharedData()) {
+                writeCompact(out);
+            } else if (verify && !isCompact()) {
+                VerifyingChannel channel = new VerifyingChannel(out);
+                source.transferTo(begin, header.file_size, channel);
+                verification = channel.verification(this);
+            } else {
+                source.transferTo(begin, header.file_size, out);
+            }
+        }
+        Metrics.written(size());
+        Metrics.stop(Metrics.Phase.DEX_COPY, t);
 //        System.out.println("done. ");
+        return verification;
+    }
+
+    /**
+     * Writes a CompactDex file that stands on its own: the shared data is appended
+     * behind the file, and file_size, data_off and the checksum are updated. The
+     * SHA-1 signature is left as is, ART does not check it. Turning the file into a
+     * standard dex would mean rewriting every code item, which is out of scope here.
+     */
+    private void writeCompact(FileChannel out) throws IOException {
+        long padded = align4(header.file_size);
+        if (begin + header.data_off + header.data_size > source.size()) {
+            throw new EOFException("shared data of " + fileheader.dex_file_location_str + " exceeds the vdex file");
+        }
+        byte[] head = new byte[HEADER_SIZE];
+        source.get(begin, head);
+        ByteBuffer patched = ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN);
+        patched.putInt(32, (int) (padded + header.data_size));
+        patched.putInt(108, (int) padded);
+        Adler32 adler = new Adler32();
+        adler.update(head, 12, head.length - 12);
+        out.position(HEADER_SIZE);
+        byte[] buf = new byte[64 * 1024];
+        copy(begin + HEADER_SIZE, header.file_size - HEADER_SIZE, out, adler, buf);
+        byte[] zeros = new byte[(int) (padded - header.file_size)];
+        adler.update(zeros, 0, zeros.length);
+        out.write(ByteBuffer.wrap(zeros));
+        copy(begin + header.data_off, header.data_size, out, adler, buf);
+        patched.putInt(8, (int) adler.getValue());
+        out.write(ByteBuffer.wrap(head), 0);
+    }
+
+    private void copy(long offset, long count, FileChannel out, Adler32 adler, byte[] buf) throws IOException {
+        while (count > 0) {
+            int n = (int) Math.min(buf.length, count);
+            source.get(offset, buf, 0, n);
+            adler.update(buf, 0, n);
+            ByteBuffer chunk = ByteBuffer.wrap(buf, 0, n);
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Like {@link #write(String)}, but goes through {@code cache} unless it is null.
+     */
+    public void write(String outfile, DexCache cache) throws IOException {
+        write(outfile, cache, false);
+    }
+
+    /**
+     * Like {@link #write(String, boolean)}, but goes through {@code cache} unless it is null.
+     */
+    public Verification write(String outfile, DexCache cache, boolean verify) throws IOException {
+        if (cache == null) {
+            return write(outfile, verify);
+        }
+        return cache.write(this, new File(outfile), verify);
+    }
+
+    /**
+     * The checksum and signature of a dex file as computed while writing it, next to the ones in its header.
+     */
+    public static class Verification {
+        public final String location;
+        public final long expected_checksum;
+        public final long checksum;
+        public final boolean signature_matches;
+
+        Verification(String location, long expected_checksum, long checksum, boolean signature_matches) {
+            this.location = location;
+            this.expected_checksum = expected_checksum;
+            this.checksum = checksum;
+            this.signature_matches = signature_matches;
+        }
+
+        public boolean ok() {
+            return checksum == expected_checksum && signature_matches;
+        }
+
+        @Override
+        public String toString() {
+            if (ok()) {
+                return location + ": ok";
+            }
+            StringBuilder sb = new StringBuilder(location).append(": ");
+            if (checksum != expected_checksum) {
+                sb.append(String.format("checksum 0x%08x, header says 0x%08x", checksum, expected_checksum));
+            }
+            if (!signature_matches) {
+                sb.append(checksum != expected_checksum ? "; " : "").append("SHA-1 signature mismatch");
+            }
+            return sb.toString();
+        }
+    }
+
+    static final int CLASS_DEF_SIZE = 32;
+    static final int TYPE_CLASS_DEF_ITEM = 0x0006;
+    static final int ADLER_BASE = 65521;
+
+    /**
+     * The Java names of the classes defined in this dex file, in class_defs order.
+     * Only the id tables and the name strings are read.
+     */
+    public List<String> classNames() throws IOException {
+        List<String> names = new ArrayList<>((int) header.class_defs_size);
+        for (int i = 0; i < header.class_defs_size; i++) {
+            names.add(className(i));
+        }
+        return names;
+    }
+
+    String className(int index) throws IOException {
+        long class_idx = u4(header.class_defs_off + CLASS_DEF_SIZE * index);
+        if (class_idx >= header.type_ids_size) {
+            throw new EOFException("class_idx " + class_idx + " exceeds the type ids of " + location());
+        }
+        long string_idx = u4(header.type_ids_off + 4 * class_idx);
+        if (string_idx >= header.string_ids_size) {
+            throw new EOFException("string_idx " + string_idx + " exceeds the string ids of " + location());
+        }
+        // CompactDex data offsets are relative to the (shared) data section
+        long string_data = (isCompact() ? header.data_off : 0) + u4(header.string_ids_off + 4 * string_idx);
+        return javaName(readMutf8(string_data));
+    }
+
+    private long u4(long offset) throws IOException {
+        if (offset + 4 > header.file_size) {
+            throw new EOFException("offset 0x" + Long.toHexString(offset) + " exceeds " + location());
+        }
+        return source.getUnsignedInt(begin + offset);
+    }
+
+    /**
+     * Reads a string_data_item: the uleb128 utf16 size, then MUTF-8 bytes up to a 0 byte.
+     */
+    private String readMutf8(long offset) throws IOException {
+        // shared data lies behind the file, up to data_off + data_size
+        long end = Math.min(source.size(),
+                begin + (hasSharedData() ? header.data_off + header.data_size : header.file_size));
+        long pos = begin + offset;
+        while (pos < end && (source.get(pos) & 0x80) != 0) {
+            pos++;
+        }
+        pos++;
+        StringBuilder sb = new StringBuilder();
+        while (pos < end) {
+            int a = source.get(pos++) & 0xff;
+            if (a == 0) {
+                return sb.toString();
+            } else if (a < 0x80) {
+                sb.append((char) a);
+            } else if ((a & 0xe0) == 0xc0 && pos < end) {
+                sb.append((char) (((a & 0x1f) << 6) | (source.get(pos++) & 0x3f)));
+            } else if ((a & 0xf0) == 0xe0 && pos + 1 < end) {
+                int b = source.get(pos++) & 0x3f;
+                sb.append((char) (((a & 0x0f) << 12) | (b << 6) | (source.get(pos++) & 0x3f)));
+            } else {
+                throw new EOFException("bad MUTF-8 string at 0x" + Long.toHexString(offset) + " in " + location());
+            }
+        }
+        throw new EOFException("unterminated string at 0x" + Long.toHexString(offset) + " in " + location());
+    }
+
+    /**
+     * "Lcom/example/Foo;" to "com.example.Foo".
+     */
+    static String javaName(String descriptor) {
+        if (descriptor.length() > 2 && descriptor.charAt(0) == 'L' && descriptor.endsWith(";")) {
+            return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+        }
+        return descriptor;
+    }
+
+    /**
+     * Writes a copy of this dex file that defines only the classes {@code filter} accepts.
+     * The class_defs table is compacted and zero-padded, and the map, checksum and
+     * signature are updated. The data of the dropped classes stays in the file,
+     * unreferenced; leaving it out would mean rewriting the data section. CompactDex
+     * files are written whole if any of their classes matches.
+     *
+     * @return the number of matching classes. Nothing is written if there is none.
+     */
+    public int write(String outfile, DexFilter filter) throws IOException {
+        int count = (int) header.class_defs_size;
+        if (header.file_size < HEADER_SIZE || header.class_defs_off + CLASS_DEF_SIZE * count > header.file_size) {
+            throw new EOFException("class_defs exceed " + location());
+        }
+        byte[] class_defs = new byte[CLASS_DEF_SIZE * count];
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (filter.acceptsClass(className(i))) {
+                source.get(begin + header.class_defs_off + CLASS_DEF_SIZE * i, class_defs, CLASS_DEF_SIZE * kept,
+                        CLASS_DEF_SIZE);
+                kept++;
+            }
+        }
+        if (kept == 0 || kept == count || isCompact()) {
+            if (kept > 0) {
+                write(outfile);
+            }
+            return kept;
+        }
+        long t = Metrics.start();
+        byte[] head = new byte[HEADER_SIZE];
+        source.get(begin, head);
+        ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN).putInt(96, kept);
+        byte[] map_count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(kept).array();
+        long[] offsets = {0, header.class_defs_off, classDefsMapEntry() + 4};
+        byte[][] patches = {head, class_defs, map_count};
+
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Adler32 adler = new Adler32();
+        File f = new File(outfile);
+        f.delete();
+        try (FileChannel out = new FileOutputStream(f).getChannel()) {
+            byte[] buf = new byte[64 * 1024];
+            for (long pos = 0; pos < header.file_size; ) {
+                int n = (int) Math.min(buf.length, header.file_size - pos);
+                source.get(begin + pos, buf, 0, n);
+                for (int p = 0; p < patches.length; p++) {
+                    patch(buf, pos, n, offsets[p], patches[p]);
+                }
+                int skip = (int) Math.max(0, Math.min(n, VerifyingChannel.SIGNATURE_START - pos));
+                sha1.update(buf, skip, n - skip);
+                adler.update(buf, skip, n - skip);
+                ByteBuffer chunk = ByteBuffer.wrap(buf, 0, n);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+                pos += n;
+            }
+            // the checksum covers the signature, which is only known now
+            sha1.digest(head, VerifyingChannel.CHECKSUM_START, 20);
+            Adler32 signature = new Adler32();
+            signature.update(head, VerifyingChannel.CHECKSUM_START, 20);
+            long checksum = adler32Combine(signature.getValue(), adler.getValue(),
+                    header.file_size - VerifyingChannel.SIGNATURE_START);
+            ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN).putInt(8, (int) checksum);
+            // buffer positions are file offsets here
+            ByteBuffer fields = ByteBuffer.wrap(head, 8, 24);
+            while (fields.hasRemaining()) {
+                out.write(fields, fields.position());
+            }
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        Metrics.written(header.file_size);
+        Metrics.stop(Metrics.Phase.DEX_COPY, t);
+        return kept;
+    }
+
+    /**
+     * Offset of the class_defs entry of the map_list.
+     */
+    private long classDefsMapEntry() throws IOException {
+        long entries = u4(header.map_off);
+        for (long i = 0; i < entries; i++) {
+            long entry = header.map_off + 4 + 12 * i;
+            if ((u4(entry) & 0xffff) == TYPE_CLASS_DEF_ITEM) {
+                return entry;
+            }
+        }
+        throw new EOFException("no class_defs in the map of " + location());
+    }
+
+    /**
+     * Copies the part of {@code patch}, which belongs at dex offset {@code offset}, that
+     * overlaps {@code buf[0, n)}, which holds the bytes at dex offset {@code pos}.
+     */
+    private static void patch(byte[] buf, long pos, int n, long offset, byte[] patch) {
+        long from = Math.max(pos, offset);
+        long to = Math.min(pos + n, offset + patch.length);
+        if (from < to) {
+            System.arraycopy(patch, (int) (from - offset), buf, (int) (from - pos), (int) (to - from));
+        }
+    }
+
+    /**
+     * The Adler-32 of two concatenated byte ranges from the checksums of each, as zlib's adler32_combine.
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ((long) ADLER_BASE << 1)) {
+            sum2 -= ((long) ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
     }
 
     Dex(Oat oat, long offset) throws IOException, ParseException {
@@ -149,4 +694,31 @@ public class Dex {
         dex_offset = offset;
         fileheader = new DexFileHeader(offset);
         }
+
+    Dex(Oat oat, ParseIndex.DexEntry entry) throws IOException, ParseException {
+        this.oat = oat;
+        dex_offset = entry.record_offset;
+        fileheader = new DexFileHeader(entry);
+    }
+
+    /**
+     * A dex file of a vdex file that is read on its own, without an oat file.
+     */
+    Dex(Vdex vdex, int index, long offset) throws IOException, ParseException {
+        dex_offset = offset;
+        source = vdex.source;
+        begin = offset;
+        fileheader = new DexFileHeader(Vdex.location(index), vdex.checksums[index]);
+    }
+
+    /**
+     * A dex file found at {@code offset} of an arbitrary blob, see {@link Carver}. Its
+     * own header checksum stands in for the location checksum.
+     */
+    Dex(ByteSource source, long offset, String location) throws IOException, ParseException {
+        dex_offset = offset;
+        this.source = source.order(ByteOrder.LITTLE_ENDIAN);
+        begin = offset;
+        fileheader = new DexFileHeader(location, this.source.getUnsignedInt(offset + 8));
+    }
 }
@@ -0,0 +1,316 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed store of extracted dex files.
+ *
+ * The same framework and app dex files show up in many oat files. A dex file is
+ * stored once, keyed by the SHA-1 signature, Adler-32 checksum and size from its
+ * header, and hard-linked into the output directories; a cache hit neither reads
+ * the dex bytes from the oat file nor writes them again. Where hard links are not
+ * available (other file system, old Android) the cached file is copied instead.
+ *
+ * Only dex files whose SHA-1 signature and checksum match their header are
+ * stored, so a corrupt or mislabelled dex file cannot answer later lookups of
+ * the key it claims. CompactDex files cannot be checked and are never stored.
+ *
+ * The store is capped at {@code max_bytes}; the least recently used entries are
+ * evicted first. Output files linked to an evicted entry stay intact. The cached
+ * files are linked into the outputs, so recency is not kept in their modification
+ * time but in a side file, {@link #RECENCY}, written by {@link #save()}. Entries
+ * it does not list yet count as older than all listed ones, by storage time.
+ */
+public class DexCache {
+
+    static final String SUFFIX = ".dex";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    // keys from least to most recently used, one per line
+    static final String RECENCY = "recency";
+
+    private final File dir;
+    private final long max_bytes;
+    // key -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private boolean dirty;
+
+    /**
+     * @param max_bytes the size cap of the store, 0 for no cap
+     */
+    public DexCache(File dir, long max_bytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create cache directory " + dir);
+        }
+        this.dir = dir;
+        this.max_bytes = max_bytes;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("cannot list cache directory " + dir);
+        }
+        // stored first, used first until the recency file says otherwise
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ma = a.lastModified();
+                long mb = b.lastModified();
+                return ma < mb ? -1 : ma > mb ? 1 : 0;
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), f.length());
+                bytes += f.length();
+            } else if (name.endsWith(".tmp")) {
+                // left behind by an interrupted run
+                f.delete();
+            }
+        }
+        for (String key : readRecency()) {
+            // moves the entry to the most recently used end
+            entries.get(key);
+        }
+        // the cap may have been lowered since the last run
+        evict(null);
+    }
+
+    private List<String> readRecency() {
+        List<String> keys = new ArrayList<>();
+        File recency = new File(dir, RECENCY);
+        if (!recency.isFile()) {
+            return keys;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(recency), UTF8))) {
+            for (String key = in.readLine(); key != null; key = in.readLine()) {
+                keys.add(key);
+            }
+        } catch (IOException e) {
+            // only the order is lost
+            dirty = true;
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the recency order back if it changed. The new file replaces the old one atomically.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File recency = new File(dir, RECENCY);
+        File tmp = new File(dir, RECENCY + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8))) {
+            for (String key : entries.keySet()) {
+                out.write(key);
+                out.write('\n');
+            }
+        }
+        if (!tmp.renameTo(recency)) {
+            // renameTo does not replace existing files everywhere
+            recency.delete();
+            if (!tmp.renameTo(recency)) {
+                throw new IOException("cannot move " + tmp + " to " + recency);
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * The content key of a dex file: "signature-checksum-size" in hex.
+     */
+    static String key(Dex dex) {
+        byte[] signature = dex.signature();
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : signature) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.append('-').append(String.format("%08x", dex.checksum()))
+                .append('-').append(Long.toHexString(dex.size())).toString();
+    }
+
+    File file(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    /**
+     * Writes {@code dex} to {@code outfile}, from the store if it is already there.
+     */
+    public void write(Dex dex, File outfile) throws IOException {
+        write(dex, outfile, false);
+    }
+
+    /**
+     * Like {@link #write(Dex, File)}. Dex files are always checked on their way into the
+     * store, and one that fails the check is written but kept out of it; {@code verify}
+     * only decides whether the outcome is returned. Hits are not checked again.
+     *
+     * @return see {@link Dex#write(String, boolean)}
+     */
+    public Dex.Verification write(Dex dex, File outfile, boolean verify) throws IOException {
+        String key = key(dex);
+        File cached = lookup(key);
+        if (cached != null) {
+            outfile.delete();
+            try {
+                link(cached, outfile);
+                return null;
+            } catch (IOException e) {
+                // evicted since the lookup, extract it after all
+                outfile.delete();
+                synchronized (this) {
+                    hits--;
+                    misses++;
+                }
+            }
+        }
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        try {
+            Dex.Verification verification = dex.write(tmp.getPath(), true);
+            outfile.delete();
+            if (verification == null || !verification.ok()) {
+                link(tmp, outfile);
+            } else {
+                link(store(dex, key, tmp), outfile);
+            }
+            return verify ? verification : null;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private synchronized File lookup(String key) {
+        if (entries.get(key) == null) {
+            misses++;
+            return null;
+        }
+        File cached = file(key);
+        if (!cached.isFile()) {
+            // removed behind our back
+            bytes -= entries.remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        dirty = true;
+        return cached;
+    }
+
+    /**
+     * Moves the dex bytes, written to the temporary file {@code tmp} first so a crash
+     * never leaves a truncated entry behind, into the store.
+     */
+    private File store(Dex dex, String key, File tmp) throws IOException {
+        File cached = file(key);
+        if (!tmp.renameTo(cached)) {
+            throw new IOException("cannot move " + tmp + " to " + cached);
+        }
+        synchronized (this) {
+            if (entries.put(key, dex.size()) == null) {
+                bytes += dex.size();
+            }
+            dirty = true;
+            evict(key);
+        }
+        return cached;
+    }
+
+    private void evict(String keep) {
+        if (max_bytes <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (bytes > max_bytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            file(eldest.getKey()).delete();
+            bytes -= eldest.getValue();
+            dirty = true;
+            evictions++;
+            it.remove();
+        }
+    }
+
+    /**
+     * Hard-links {@code target} to {@code cached}, copying if the file system refuses.
+     */
+    static void link(File cached, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), cached.toPath());
+            return;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            // e.g. cache and output on different file systems
+        } catch (LinkageError e) {
+            // java.nio.file is not available before Android O
+        }
+        try (FileChannel in = new FileInputStream(cached).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            long size = in.size();
+            for (long pos = 0; pos < size; ) {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "dex cache " + dir + ": " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                + entries.size() + " entries, " + bytes + " B";
+    }
+}
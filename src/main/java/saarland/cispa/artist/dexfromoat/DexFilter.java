@@ -0,0 +1,164 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects which oat files, which dex files and which classes in them are extracted.
+ *
+ * Oat files are matched by the values in their key-value store, e.g. "speed" for
+ * "compiler-filter". With several keys all of them have to match; vdex files on
+ * their own have no key-value store and never match.
+ * Dex files are matched by location, e.g. "/system/framework/framework.jar:classes2.dex",
+ * classes by their Java name, e.g. "com.example.Foo$Bar". Patterns are globs unless
+ * they start with "re:", in which case the rest is a regular expression. In globs
+ * {@code *} does not cross a path or package separator, {@code **} does, and
+ * {@code ?} matches a single character. Patterns have to match the whole name; a
+ * name matches if any pattern does, and no patterns match everything.
+ */
+public class DexFilter {
+
+    static final String REGEX_PREFIX = "re:";
+
+    private final List<Pattern> locations = new ArrayList<>();
+    private final List<Pattern> classes = new ArrayList<>();
+    private final Map<String, List<Pattern>> key_values = new LinkedHashMap<>();
+
+    /**
+     * Adds a pattern for dex locations.
+     */
+    public DexFilter location(String pattern) {
+        locations.add(compile(pattern, '/'));
+        return this;
+    }
+
+    /**
+     * Adds a pattern for class names. Dex files without a matching class are skipped.
+     */
+    public DexFilter className(String pattern) {
+        classes.add(compile(pattern, '.'));
+        return this;
+    }
+
+    /**
+     * Adds a pattern for the value of {@code key} in the oat key-value store. Values are matched like locations.
+     */
+    public DexFilter keyValue(String key, String pattern) {
+        List<Pattern> patterns = key_values.get(key);
+        if (patterns == null) {
+            patterns = new ArrayList<>();
+            key_values.put(key, patterns);
+        }
+        patterns.add(compile(pattern, '/'));
+        return this;
+    }
+
+    /**
+     * Adds a key-value pattern given as {@code <key>=<pattern>}, e.g. "compiler-filter=speed*".
+     */
+    public DexFilter keyValue(String expression) {
+        int eq = expression.indexOf('=');
+        if (eq <= 0) {
+            throw new PatternSyntaxException("expected <key>=<pattern>", expression, eq);
+        }
+        return keyValue(expression.substring(0, eq), expression.substring(eq + 1));
+    }
+
+    public boolean accepts(Oat oat) throws IOException {
+        if (key_values.isEmpty()) {
+            return true;
+        }
+        KeyValueStore store = oat.keyValueStore();
+        for (Map.Entry<String, List<Pattern>> e : key_values.entrySet()) {
+            String value = store.get(e.getKey());
+            if (value == null || !matches(e.getValue(), value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean filtersOats() {
+        return !key_values.isEmpty();
+    }
+
+    public boolean accepts(Dex dex) {
+        return matches(locations, dex.location());
+    }
+
+    public boolean acceptsClass(String name) {
+        return matches(classes, name);
+    }
+
+    boolean filtersClasses() {
+        return !classes.isEmpty();
+    }
+
+    private static boolean matches(List<Pattern> patterns, String name) {
+        if (patterns.isEmpty()) {
+            return true;
+        }
+        for (Pattern p : patterns) {
+            if (p.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Pattern compile(String pattern, char separator) {
+        if (pattern.startsWith(REGEX_PREFIX)) {
+            return Pattern.compile(pattern.substring(REGEX_PREFIX.length()));
+        }
+        return Pattern.compile(globToRegex(pattern, separator));
+    }
+
+    static String globToRegex(String glob, char separator) {
+        String not_separator = "[^\\" + separator + "]";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                sb.append(".*");
+                i++;
+            } else if (c == '*') {
+                sb.append(not_separator).append('*');
+            } else if (c == '?') {
+                sb.append(not_separator);
+            } else {
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "dex filter: key values " + key_values + ", locations " + locations + ", classes " + classes;
+    }
+}
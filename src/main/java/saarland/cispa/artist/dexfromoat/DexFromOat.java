@@ -20,36 +20,400 @@
  */
 package saarland.cispa.artist.dexfromoat;
 
-import saarland.cispa.artist.dexfromoat.elf.Elf;
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.PatternSyntaxException;
 
 
 public class DexFromOat {
 
     public static boolean dexFromOat(String oatpath, String outdir) {
+        return dexFromOat(oatpath, outdir, new ExtractOptions());
+    }
 
+    /**
+     * Extracts the dex files of {@code oatpath} to {@code outdir}/classesN.dex, or into the
+     * zip file {@code outdir} with {@link ExtractOptions#zip(int)}. Errors go to stderr.
+     *
+     * @return false if the extraction failed or verification found mismatches
+     */
+    public static boolean dexFromOat(String oatpath, String outdir, ExtractOptions options) {
+        if (options.zip_level >= 0 && options.cache != null) {
+            throw new IllegalArgumentException("zip output cannot be combined with a dex cache");
+        }
+        if (options.executor != null) {
+            return dexFromOat(oatpath, outdir, options.executor, options);
+        }
+        if (options.parallelism == 1) {
+            return dexFromOat(oatpath, outdir, null, options);
+        }
+        ForkJoinPool pool = new ForkJoinPool(
+                options.parallelism > 0 ? options.parallelism : Runtime.getRuntime().availableProcessors());
         try {
-            RandomAccessFile oatfile = new RandomAccessFile(oatpath, "r");
-            Elf e = Elf.parse(oatfile);
-            Oat o = new Oat(e);
+            return dexFromOat(oatpath, outdir, pool, options);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Prints the mismatches found by a verifying extraction.
+     *
+     * @return true if there are none
+     */
+    static boolean report(List<String> mismatches) {
+        if (mismatches == null || mismatches.isEmpty()) {
+            return true;
+        }
+        for (String mismatch : mismatches) {
+            System.err.println("verification failed: " + mismatch);
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the dex files of {@code oatpath} to {@code outdir}/classesN.dex.
+     *
+     * @param mismatches verifies the dex files and collects the mismatches if not null
+     * @return the extracted dex files, null if {@code filter} rejects the oat file
+     */
+    static List<Dex> extract(String oatpath, String outdir, DexCache cache, ParseIndex index, List<String> mismatches,
+                             DexFilter filter) throws IOException, ParseException {
+        List<Dex> dex_files = dexFiles(oatpath, index, mismatches, filter);
+        return dex_files != null ? write(dex_files, outdir, cache, mismatches, filter) : null;
+    }
+
+    /**
+     * Like {@link #extract}, writing the dex files into the zip file {@code zippath}, see {@link ZipSink}.
+     *
+     * @param level    0 to store the dex files, 1 to 9 to deflate them
+     * @param executor compresses the dex files in parallel, null compresses them on the calling thread
+     */
+    static List<Dex> extractToZip(String oatpath, String zippath, int level, ExecutorService executor,
+                                  ParseIndex index, List<String> mismatches, DexFilter filter)
+            throws IOException, ParseException {
+        List<Dex> dex_files = dexFiles(oatpath, index, mismatches, filter);
+        if (dex_files == null) {
+            return null;
+        }
+        try (ZipSink zip = new ZipSink(new File(zippath), level, executor)) {
             int i = 0;
-            for (Iterator<Dex> d = o.dex_files.values().iterator(); d.hasNext();i++){
-                Dex dex = d.next();
-                dex.write(outdir+"/classes"+i+".dex");
+            for (Dex dex : dex_files) {
+                if (filter == null || filter.accepts(dex)) {
+                    zip.add(dex, i, mismatches, filter);
+                }
+                i++;
             }
+            zip.commit();
+            return zip.written();
+        }
+    }
 
+    /**
+     * The dex files of an oat file, or of a vdex file given on its own.
+     *
+     * @param mismatches collects the mismatches between oat and vdex file if not null
+     * @return null if {@code filter} rejects the key-value store of the oat file
+     */
+    static List<Dex> dexFiles(String path, ParseIndex index, List<String> mismatches, DexFilter filter)
+            throws IOException, ParseException {
+        boolean by_key_value = filter != null && filter.filtersOats();
+        if (Vdex.isVdex(path)) {
+            return by_key_value ? null : Vdex.open(path).dexFiles();
+        }
+        Oat o = index != null ? index.open(path) : Oat.open(path);
+        if (by_key_value && !filter.accepts(o)) {
+            return null;
+        }
+        if (mismatches != null) {
+            mismatches.addAll(o.checkVdex());
+        }
+        return new ArrayList<>(o.dex_files);
+    }
+
+    /**
+     * Writes the dex files {@code filter} selects. They keep their number, so
+     * classesN.dex is the same dex file whatever the filter.
+     *
+     * @param mismatches verifies the dex files while they are written and collects the mismatches if not null
+     * @return the dex files written
+     */
+    static List<Dex> write(Iterable<Dex> dex_files, String outdir, DexCache cache, List<String> mismatches,
+                           DexFilter filter) throws IOException {
+        List<Dex> written = new ArrayList<>();
+        int i = 0;
+        for (Iterator<Dex> d = dex_files.iterator(); d.hasNext();i++){
+            Dex dex = d.next();
+            if ((filter == null || filter.accepts(dex))
+                    && write(dex, outdir+"/"+fileName(dex, i), cache, mismatches, filter)) {
+                written.add(dex);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes one dex file, only the classes {@code filter} selects if it filters classes.
+     * Such partial dex files bypass the cache and are not verified.
+     *
+     * @return false if no class was selected, in which case nothing is written
+     */
+    static boolean write(Dex dex, String outfile, DexCache cache, List<String> mismatches, DexFilter filter)
+            throws IOException {
+        if (filter != null && filter.filtersClasses()) {
+            return dex.write(outfile, filter) > 0;
+        }
+        Dex.Verification verification = dex.write(outfile, cache, mismatches != null);
+        if (verification != null && !verification.ok()) {
+            mismatches.add(verification.toString());
+        }
+        return true;
+    }
+
+    /**
+     * classesN.dex, or classesN.cdex for CompactDex files, which standard dex tools cannot read.
+     */
+    static String fileName(Dex dex, int i) {
+        return "classes" + i + (dex.isCompact() ? ".cdex" : ".dex");
+    }
+
+    /**
+     * Parses on the calling thread and writes every dex file as a separate task on
+     * {@code executor}, or on the calling thread if it is null.
+     */
+    private static boolean dexFromOat(String oatpath, String outdir, ExecutorService executor,
+                                      ExtractOptions options) {
+        long start = System.nanoTime();
+        int dex_files = -1;
+        final DexCache cache = options.cache;
+        final DexFilter filter = options.filter;
+        final List<String> mismatches = options.verify
+                ? Collections.synchronizedList(new ArrayList<String>()) : null;
+        try {
+            List<Dex> all;
+            if (options.zip_level >= 0) {
+                all = extractToZip(oatpath, outdir, options.zip_level, executor, options.index, mismatches, filter);
+            } else if (executor == null) {
+                all = extract(oatpath, outdir, cache, options.index, mismatches, filter);
+            } else {
+                all = dexFiles(oatpath, options.index, mismatches, filter);
+                if (all != null) {
+                    all = write(all, outdir, executor, cache, mismatches, filter);
+                }
+            }
+            if (all == null) {
+                System.err.println("skipped " + oatpath + ": key-value store does not match");
+                dex_files = 0;
+                return true;
+            }
+            dex_files = all.size();
         } catch (ParseException | IOException e) {
             e.printStackTrace();
             return false;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            Metrics.file(System.nanoTime() - start, dex_files >= 0, Math.max(dex_files, 0));
         }
-        return true;
+        return report(mismatches);
+    }
+
+    /**
+     * Like {@link #write(Iterable, String, DexCache, List, DexFilter)}, one task per dex file on {@code executor}.
+     */
+    static List<Dex> write(List<Dex> dex_files, String outdir, ExecutorService executor, final DexCache cache,
+                           final List<String> mismatches, final DexFilter filter)
+            throws InterruptedException, ExecutionException {
+        List<Future<Boolean>> tasks = new ArrayList<>();
+        List<Dex> submitted = new ArrayList<>();
+        int i = 0;
+        for (Iterator<Dex> d = dex_files.iterator(); d.hasNext(); i++) {
+            final Dex dex = d.next();
+            if (filter != null && !filter.accepts(dex)) {
+                continue;
+            }
+            final String outfile = outdir + "/" + fileName(dex, i);
+            submitted.add(dex);
+            tasks.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return write(dex, outfile, cache, mismatches, filter);
+                }
+            }));
+        }
+        List<Dex> written = new ArrayList<>();
+        for (int t = 0; t < tasks.size(); t++) {
+            if (tasks.get(t).get()) {
+                written.add(submitted.get(t));
+            }
+        }
+        return written;
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat [-j <threads>] [-c <cachedir> [-l <megabytes>]] [-i <indexfile>] [-s <statsfile>] [-v] [-q <key>=<pattern>]... [-d <pattern>]... [-k <pattern>]... <oatfile|vdexfile> <outdir>");
+        System.err.println("       dexfromoat -z <level> [-j <threads>] [-i <indexfile>] [-s <statsfile>] [-v] [-q <key>=<pattern>]... [-d <pattern>]... [-k <pattern>]... <oatfile|vdexfile> <zipfile>");
+        System.err.println("       dexfromoat batch [-j <threads>] [-m <manifest>] [-c <cachedir> [-l <megabytes>]] [-i <indexfile>] [-s <statsfile>] [-v] [-q <key>=<pattern>]... [-d <pattern>]... [-k <pattern>]... <outdir> <input>...");
+        System.err.println("       dexfromoat archive [-m <manifest>] [-c <cachedir> [-l <megabytes>]] [-s <statsfile>] [-v] [-d <pattern>]... [-k <pattern>]... <outdir> <archive>...");
+        System.err.println("       dexfromoat stream [-c <cachedir> [-l <megabytes>]] [-s <statsfile>] [-v] [-d <pattern>]... <outdir> [<oatfile|vdexfile>|-]");
+        System.err.println("       dexfromoat carve [-j <threads>] [-a] [-s <statsfile>] <outdir> <image>...");
+        System.err.println("       dexfromoat list [-f json|csv] [-j <threads>] [-i <indexfile>] [-q <key>=<pattern>]... <input>...");
+        System.err.println("       dexfromoat daemon [-p <port>] [-n <files>] [-b <megabytes>] [-c <cachedir> [-l <megabytes>]] [-i <indexfile>] [-s <statsfile>] [-t <tokenfile>]");
+        System.err.println("       dexfromoat client [-p <port>] [-t <tokenfile>] extract [-v] [-d <pattern>]... [-k <pattern>]... <oatfile> <outdir> | list <oatfile> | stats | shutdown");
+        System.err.println("  -j <threads>   extract dex files in parallel, 0 uses one thread per core (default: 1)");
+        System.err.println("  -z <level>     write the dex files into one zip file, stored (0) or deflated (1-9), named after their location");
+        System.err.println("  -c <cachedir>  store each distinct dex file once and hard-link it into the output");
+        System.err.println("  -l <megabytes> size cap of the cache, least recently used dex files are evicted (default: none)");
+        System.err.println("  -i <indexfile> remember where the dex files are, so unchanged oat files are not parsed again");
+        System.err.println("  -s <statsfile> enable metrics and write them to <statsfile>, Prometheus text if it ends in .prom, JSON otherwise");
+        System.err.println("  -v             verify dex checksums and signatures while writing, and oat against vdex checksums");
+        System.err.println("  -q <key>=<pattern> only extract oat files whose key-value store matches, e.g. 'compiler-filter=speed*'");
+        System.err.println("  -d <pattern>   only extract dex files whose location matches, e.g. '**/framework.jar:*'");
+        System.err.println("  -k <pattern>   only keep classes whose name matches, e.g. 'com.example.**'; dex files without one are skipped");
+        System.err.println("                 patterns are globs ('*' stays within one path or package level, '**' does not),");
+        System.err.println("                 or regular expressions after 're:'");
+        System.err.println("  CompactDex files (Android P and later) are written as classesN.cdex and not converted to standard dex;");
+        System.err.println("  dex tools that only read standard dex cannot open them");
     }
 
     public static void main(String[] args) {
-        dexFromOat(args[0], args[1]);
+        if (args.length > 0 && args[0].equals("batch")) {
+            System.exit(Batch.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("archive")) {
+            System.exit(Archive.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("stream")) {
+            System.exit(StreamExtractor.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("carve")) {
+            System.exit(Carver.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("list")) {
+            System.exit(Inventory.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("daemon")) {
+            System.exit(Daemon.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("client")) {
+            System.exit(Client.execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        int parallelism = 1;
+        int zip_level = -1;
+        String cachedir = null;
+        long cachelimit = 0;
+        String indexfile = null;
+        String statsfile = null;
+        boolean verify = false;
+        DexFilter filter = new DexFilter();
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-v")) {
+                verify = true;
+            } else if ((args[i].equals("-d") || args[i].equals("-k") || args[i].equals("-q")) && i + 1 < args.length) {
+                try {
+                    if (args[i].equals("-d")) {
+                        filter.location(args[++i]);
+                    } else if (args[i].equals("-k")) {
+                        filter.className(args[++i]);
+                    } else {
+                        filter.keyValue(args[++i]);
+                    }
+                } catch (PatternSyntaxException e) {
+                    System.err.println(e.getMessage());
+                    usage();
+                    System.exit(2);
+                }
+            } else if (args[i].equals("-j") && i + 1 < args.length) {
+                try {
+                    parallelism = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                    System.exit(2);
+                }
+            } else if (args[i].equals("-z") && i + 1 < args.length) {
+                try {
+                    zip_level = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    zip_level = 10;
+                }
+            } else if (args[i].equals("-c") && i + 1 < args.length) {
+                cachedir = args[++i];
+            } else if (args[i].equals("-i") && i + 1 < args.length) {
+                indexfile = args[++i];
+            } else if (args[i].equals("-s") && i + 1 < args.length) {
+                statsfile = args[++i];
+            } else if (args[i].equals("-l") && i + 1 < args.length) {
+                try {
+                    cachelimit = Long.parseLong(args[++i]) << 20;
+                } catch (NumberFormatException e) {
+                    usage();
+                    System.exit(2);
+                }
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() != 2 || parallelism < 0 || cachelimit < 0 || zip_level > 9
+                || (zip_level >= 0 && cachedir != null)) {
+            usage();
+            System.exit(2);
+        }
+        DexCache cache = null;
+        if (cachedir != null) {
+            try {
+                cache = new DexCache(new File(cachedir), cachelimit);
+            } catch (IOException e) {
+                System.err.println(e);
+                System.exit(1);
+            }
+        }
+        if (statsfile != null) {
+            Metrics.enable();
+        }
+        ParseIndex index = indexfile != null ? new ParseIndex(new File(indexfile)) : null;
+        boolean success = dexFromOat(positional.get(0), positional.get(1), new ExtractOptions()
+                .parallelism(parallelism).cache(cache).index(index).verify(verify).filter(filter).zip(zip_level));
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (IOException e) {
+                System.err.println("cannot save dex cache recency: " + e);
+            }
+        }
+        if (index != null) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                System.err.println("cannot save parse index: " + e);
+            }
+        }
+        if (statsfile != null) {
+            try {
+                Metrics.get().dump(new File(statsfile));
+            } catch (IOException e) {
+                System.err.println("cannot write metrics: " + e);
+            }
+        }
+        if (!success) {
+            System.exit(1);
+        }
     }
 }
@@ -0,0 +1,102 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * How {@link DexFromOat#dexFromOat(String, String, ExtractOptions)} extracts an oat file.
+ * The defaults write every dex file on the calling thread, without cache, index,
+ * verification or filter. Setters return this, so options read as one expression:
+ * {@code new ExtractOptions().parallelism(0).cache(cache).verify(true)}.
+ */
+public class ExtractOptions {
+
+    int parallelism = 1;
+    ExecutorService executor;
+    DexCache cache;
+    ParseIndex index;
+    boolean verify;
+    DexFilter filter;
+    int zip_level = -1;
+
+    /**
+     * Writes the dex files with up to {@code parallelism} threads, 0 for one per core.
+     */
+    public ExtractOptions parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Writes every dex file as a separate task on {@code executor}, which is not shut down.
+     * Takes precedence over {@link #parallelism(int)}.
+     */
+    public ExtractOptions executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Takes the dex files already in {@code cache} from there.
+     */
+    public ExtractOptions cache(DexCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Looks up the dex table in {@code index} before parsing.
+     */
+    public ExtractOptions index(ParseIndex index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Checks every dex file against its header checksum and signature, and the oat file
+     * against its vdex file. Mismatches go to stderr and fail the extraction.
+     */
+    public ExtractOptions verify(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    /**
+     * Extracts only the dex files and classes {@code filter} selects; null extracts everything.
+     */
+    public ExtractOptions filter(DexFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Writes the dex files into one zip file, the output path, stored (0) or deflated (1-9);
+     * -1 writes loose files. Cannot be combined with a cache.
+     */
+    public ExtractOptions zip(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("zip level " + level + " is not within 0 to 9");
+        }
+        this.zip_level = level;
+        return this;
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Describes oat and vdex files from their headers alone: instruction set, key-value
+ * store and, per dex file, location, checksums, size and class count. Nothing
+ * behind the dex headers is read, so an inventory of a whole system image takes
+ * about as long as listing its directories.
+ */
+public class Inventory {
+
+    static final String CSV_HEADER = "path,kind,version,instruction_set,compiler_filter,"
+            + "file,location,location_checksum,checksum,size,classes,compact,error";
+
+    public static class DexInfo {
+        public final String file;
+        public final String location;
+        public final long location_checksum;
+        public final long checksum;
+        public final long size;
+        public final long classes;
+        public final boolean compact;
+
+        DexInfo(Dex dex, int index) {
+            file = DexFromOat.fileName(dex, index);
+            location = dex.location();
+            location_checksum = dex.locationChecksum();
+            checksum = dex.checksum();
+            size = dex.size();
+            classes = dex.header.class_defs_size;
+            compact = dex.isCompact();
+        }
+
+        String toJson() {
+            return "{\"file\": " + Json.quote(file)
+                    + ", \"location\": " + Json.quote(location)
+                    + ", \"location_checksum\": " + location_checksum
+                    + ", \"checksum\": " + checksum
+                    + ", \"size\": " + size
+                    + ", \"classes\": " + classes
+                    + ", \"compact\": " + compact + "}";
+        }
+    }
+
+    public static class Entry {
+        public final String path;
+        // "oat" or "vdex"
+        public String kind;
+        public int version;
+        // null for vdex files
+        public String instruction_set;
+        public Map<String, String> key_value_store = Collections.emptyMap();
+        public final List<DexInfo> dex_files = new ArrayList<>();
+        public String error;
+
+        Entry(String path) {
+            this.path = path;
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"path\": ").append(Json.quote(path))
+                    .append(", \"kind\": ").append(Json.quote(kind))
+                    .append(", \"version\": ").append(version)
+                    .append(", \"instruction_set\": ").append(Json.quote(instruction_set))
+                    .append(", \"key_value_store\": {");
+            String separator = "";
+            for (Map.Entry<String, String> kv : key_value_store.entrySet()) {
+                sb.append(separator).append(Json.quote(kv.getKey())).append(": ").append(Json.quote(kv.getValue()));
+                separator = ", ";
+            }
+            sb.append("}, \"dex_files\": [");
+            for (int i = 0; i < dex_files.size(); i++) {
+                sb.append(i == 0 ? "" : ", ").append(dex_files.get(i).toJson());
+            }
+            return sb.append("], \"error\": ").append(Json.quote(error)).append('}').toString();
+        }
+
+        /**
+         * One row per dex file, or a single row without dex columns if there is none.
+         */
+        void appendCsv(StringBuilder sb) {
+            String prefix = csv(path) + ',' + csv(kind) + ',' + (kind != null ? String.valueOf(version) : "") + ','
+                    + csv(instruction_set) + ',' + csv(key_value_store.get("compiler-filter")) + ',';
+            if (dex_files.isEmpty()) {
+                sb.append(prefix).append(",,,,,,,").append(csv(error)).append('\n');
+            }
+            for (DexInfo d : dex_files) {
+                sb.append(prefix).append(csv(d.file)).append(',').append(csv(d.location)).append(',')
+                        .append(d.location_checksum).append(',').append(d.checksum).append(',')
+                        .append(d.size).append(',').append(d.classes).append(',').append(d.compact).append(',')
+                        .append(csv(error)).append('\n');
+            }
+        }
+    }
+
+    static String csv(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Describes the oat or vdex file at {@code path}. Errors are reported in the entry, not thrown.
+     *
+     * @param index where to look up dex tables first; may be null
+     */
+    public static Entry describe(String path, ParseIndex index) {
+        return describe(path, index, null);
+    }
+
+    /**
+     * @param filter only its key-value patterns are applied; may be null
+     * @return null if {@code filter} rejects the file
+     */
+    public static Entry describe(String path, ParseIndex index, DexFilter filter) {
+        boolean by_key_value = filter != null && filter.filtersOats();
+        try {
+            if (Vdex.isVdex(path)) {
+                if (by_key_value) {
+                    return null;
+                }
+                try (Vdex vdex = Vdex.open(path)) {
+                    return describe(path, vdex.version(), null, vdex.dexFiles());
+                }
+            }
+            try (Oat oat = index != null ? index.open(path) : Oat.open(path)) {
+                if (by_key_value && !filter.accepts(oat)) {
+                    return null;
+                }
+                return describe(path, oat.version(), oat, oat.dexFiles());
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            Entry entry = new Entry(path);
+            entry.error = e.toString();
+            return entry;
+        }
+    }
+
+    /**
+     * @param oat null for vdex files
+     */
+    static Entry describe(String path, int version, Oat oat, Iterable<Dex> dex_files) throws IOException {
+        Entry entry = new Entry(path);
+        entry.kind = oat != null ? "oat" : "vdex";
+        entry.version = version;
+        if (oat != null) {
+            entry.instruction_set = oat.instructionSet();
+            entry.key_value_store = oat.keyValueStore();
+        }
+        int i = 0;
+        for (Dex dex : dex_files) {
+            entry.dex_files.add(new DexInfo(dex, i++));
+        }
+        return entry;
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat list [-f json|csv] [-j <threads>] [-i <indexfile>] [-q <key>=<pattern>]... <input>...");
+        System.err.println("  <input>         an oat/odex/vdex file, a directory to search recursively for oat/odex/vdex files,");
+        System.err.println("                  @<file> with one path per line, or - to read paths from stdin");
+        System.err.println("  -f json|csv     output format, CSV has one row per dex file (default: json)");
+        System.err.println("  -j <threads>    number of files read in parallel (default: one per core)");
+        System.err.println("  -i <indexfile>  remember where the dex files are, so unchanged oat files are not parsed again");
+        System.err.println("  -q <key>=<pattern> only list oat files whose key-value store matches, e.g. 'compiler-filter=speed*'");
+    }
+
+    /**
+     * Prints the inventory of all inputs to stdout.
+     *
+     * @return the process exit code: 0 if all files could be read, 1 if some could not, 2 on usage errors
+     */
+    static int execute(String[] args) {
+        String format = "json";
+        int parallelism = 0;
+        String indexfile = null;
+        final DexFilter filter = new DexFilter();
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-f") && i + 1 < args.length) {
+                    format = args[++i];
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-i") && i + 1 < args.length) {
+                    indexfile = args[++i];
+                } else if (args[i].equals("-q") && i + 1 < args.length) {
+                    filter.keyValue(args[++i]);
+                } else {
+                    inputs.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | PatternSyntaxException e) {
+            parallelism = -1;
+        }
+        if (inputs.isEmpty() || parallelism < 0 || !(format.equals("json") || format.equals("csv"))) {
+            usage();
+            return 2;
+        }
+
+        // the batch only collects paths here, its output directory is never used
+        Batch files = new Batch(new File("."));
+        final ParseIndex index = indexfile != null ? new ParseIndex(new File(indexfile)) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        boolean ok = true;
+        try {
+            for (String input : inputs) {
+                files.addInput(input);
+            }
+            List<Future<Entry>> entries = new ArrayList<>();
+            for (final Batch.Result r : files.results()) {
+                entries.add(pool.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() {
+                        return describe(r.path, index, filter);
+                    }
+                }));
+            }
+            PrintStream out = System.out;
+            boolean json = format.equals("json");
+            out.print(json ? "[" : CSV_HEADER + "\n");
+            int listed = 0;
+            for (Future<Entry> f : entries) {
+                Entry entry = f.get();
+                if (entry == null) {
+                    continue;
+                }
+                ok &= entry.error == null;
+                if (json) {
+                    out.print((listed++ == 0 ? "\n  " : ",\n  ") + entry.toJson());
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    entry.appendCsv(sb);
+                    out.print(sb);
+                }
+            }
+            if (json) {
+                out.print(listed == 0 ? "]\n" : "\n]\n");
+            }
+            out.flush();
+            if (index != null) {
+                index.save();
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.err.println("list failed: " + e);
+            return 1;
+        } finally {
+            pool.shutdown();
+        }
+        return ok ? 0 : 1;
+    }
+}
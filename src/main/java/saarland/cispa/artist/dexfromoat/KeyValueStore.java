@@ -0,0 +1,241 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The key-value store of an oat header, e.g. "compiler-filter", "classpath" or
+ * "dex2oat-cmdline", as a read-only map in file order.
+ *
+ * The map is a view of the store's bytes. The first access finds the NUL
+ * terminators and records where each pair is; strings are decoded only when they
+ * are asked for, and {@link #get(Object)} compares the key bytes in place, so
+ * looking up one key decodes one value. A truncated last pair is ignored.
+ */
+public class KeyValueStore extends AbstractMap<String, String> {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    // key start, key end, value end per pair; a value starts behind the NUL after its key
+    private int[] bounds;
+    private Set<Map.Entry<String, String>> entries;
+
+    /**
+     * @param buffer the store from position 0 to its limit; not copied
+     */
+    KeyValueStore(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    private synchronized int[] bounds() {
+        if (bounds == null) {
+            int[] b = new int[12];
+            int n = 0;
+            int limit = buffer.limit();
+            int pos = 0;
+            while (pos < limit) {
+                int key_end = terminator(pos, limit);
+                int value_end = key_end < limit ? terminator(key_end + 1, limit) : limit;
+                if (value_end >= limit) {
+                    break;
+                }
+                if (n + 3 > b.length) {
+                    int[] grown = new int[b.length * 2];
+                    System.arraycopy(b, 0, grown, 0, n);
+                    b = grown;
+                }
+                b[n++] = pos;
+                b[n++] = key_end;
+                b[n++] = value_end;
+                pos = value_end + 1;
+            }
+            int[] trimmed = new int[n];
+            System.arraycopy(b, 0, trimmed, 0, n);
+            bounds = trimmed;
+        }
+        return bounds;
+    }
+
+    private int terminator(int pos, int limit) {
+        while (pos < limit && buffer.get(pos) != 0) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private String decode(int start, int end) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end).position(start);
+        return UTF8.decode(view).toString();
+    }
+
+    /**
+     * @return the index of the pair with this key, -1 if there is none
+     */
+    private int find(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        byte[] k = ((String) key).getBytes(UTF8);
+        int[] b = bounds();
+        for (int i = 0; i < b.length; i += 3) {
+            if (b[i + 1] - b[i] == k.length && equalsAt(b[i], k)) {
+                return i / 3;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsAt(int pos, byte[] k) {
+        for (int j = 0; j < k.length; j++) {
+            if (buffer.get(pos + j) != k[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = find(key);
+        return i < 0 ? null : value(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return bounds().length / 3;
+    }
+
+    String key(int i) {
+        int[] b = bounds();
+        return decode(b[3 * i], b[3 * i + 1]);
+    }
+
+    String value(int i) {
+        int[] b = bounds();
+        return decode(b[3 * i + 1] + 1, b[3 * i + 2]);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size();
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            return new Pair(next++);
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return KeyValueStore.this.size();
+                }
+            };
+        }
+        return entries;
+    }
+
+    /**
+     * An entry that decodes its key and value when they are first asked for.
+     */
+    private class Pair implements Map.Entry<String, String> {
+        private final int index;
+        private String key;
+        private String value;
+
+        Pair(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            if (key == null) {
+                key = key(index);
+            }
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            if (value == null) {
+                value = value(index);
+            }
+            return value;
+        }
+
+        @Override
+        public String setValue(String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
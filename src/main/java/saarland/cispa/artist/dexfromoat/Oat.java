@@ -21,95 +21,435 @@
 package saarland.cispa.artist.dexfromoat;
 
 import saarland.cispa.artist.dexfromoat.elf.Elf;
+import saarland.cispa.artist.dexfromoat.io.BufferByteSource;
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.io.ChannelByteSource;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
 import java.text.ParseException;
-import java.util.HashMap;
-
-public class Oat {
-
-    byte[] magic = new byte[4];
-    byte[] version = new byte[4];
-    byte[] adler32_checksum = new byte[4];
-    byte[] instruction_set = new byte[4];
-    byte[] instruction_set_features = new byte[4];
-    byte[] dex_file_count = new byte[4];
-    byte[] executable_offset = new byte[4];
-    byte[] interpreter_to_interpreter_bridge_offset = new byte[4];
-    byte[] interpreter_to_compiled_code_bridge_offset = new byte[4];
-    byte[] jni_dlsym_lookup_offset_ = new byte[4];
-    byte[] portable_imt_conflict_trampoline_offset = new byte[4];
-    byte[] portable_resolution_trampoline_offset = new byte[4];
-    byte[] portable_to_interpreter_bridge_offset = new byte[4];
-    byte[] quick_generic_jni_trampoline_offset = new byte[4];
-    byte[] quick_imt_conflict_trampoline_offset = new byte[4];
-    byte[] quick_resolution_trampoline_offset = new byte[4];
-    byte[] quick_to_interpreter_bridge_offset = new byte[4];
-    /*byte[] image_patch_delta = new byte[4];
-    byte[] image_file_location_oat_checksum = new byte[4];
-    byte[] image_file_location_oat_data_begin = new byte[4];*/
-    byte[] key_value_store_size = new byte[4];
-    byte[] key_value_store;  // ubyte[key_value_store_size]
-
-
-
-    RandomAccessFile oatfile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class Oat implements Iterable<Dex>, Closeable {
+
+    int version;
+    long adler32_checksum;
+    long instruction_set;
+    long instruction_set_features;
+    long dex_file_count;
+    long oat_dex_files_offset;  // O+
+    long executable_offset;
+    long interpreter_to_interpreter_bridge_offset;
+    long interpreter_to_compiled_code_bridge_offset;
+    long jni_dlsym_lookup_offset_;
+    long portable_imt_conflict_trampoline_offset;
+    long portable_resolution_trampoline_offset;
+    long portable_to_interpreter_bridge_offset;
+    long quick_generic_jni_trampoline_offset;
+    long quick_imt_conflict_trampoline_offset;
+    long quick_resolution_trampoline_offset;
+    long quick_to_interpreter_bridge_offset;
+    long jni_dlsym_lookup_critical_trampoline_offset;  // S+
+    long nterp_trampoline_offset;  // S+
+    long image_patch_delta;
+    long image_file_location_oat_checksum;  // the boot image checksum in Q
+    long image_file_location_oat_data_begin;
+    long key_value_store_size;
+    long key_value_store_offset;  // ubyte[key_value_store_size]
+    private KeyValueStore key_value_store;
+
+
+
+    static final int VERSION_M = 64;
+    static final int VERSION_N = 79;
+    static final int VERSION_O = 124;
+    static final int VERSION_O_MR1 = 131;
+    static final int VERSION_P = 138;
+    static final int VERSION_Q = 170;
+    static final int VERSION_R = 183;
+    static final int VERSION_S = 195;
+
+    // art::InstructionSet
+    static final String[] INSTRUCTION_SETS = {"none", "arm", "arm64", "thumb2", "x86", "x86_64", "mips", "mips64"};
+
+    /**
+     * Number of u4 section offsets an O+ OatDexFile record carries after lookup_table_offset.
+     */
+    static int extraSectionOffsets(int oat_version) {
+        if (oat_version >= VERSION_S) {
+            // method, type, public type, package type and string bss mappings, dex layout sections
+            return 6;
+        }
+        if (oat_version >= VERSION_P) {
+            // dex layout sections, method, type and string bss mappings
+            return 4;
+        }
+        if (oat_version >= VERSION_O_MR1) {
+            // dex layout sections, method bss mapping
+            return 2;
+        }
+        return 0;
+    }
+
+    ByteSource source;
+    // dex headers are little-endian regardless of the elf byte order
+    ByteSource dex_source;
     Elf elf;
+    // holds the dex files from O on, null if there is none
+    Vdex vdex;
     private long dex_headers_offset;
-    public HashMap<String, Dex> dex_files;
+    // in oat dex table order; locations need not be unique
+    public List<Dex> dex_files;
     long oatdata_offset;
 
-    void parseOatHeader(long offset) throws IOException {
+    void parseOatHeader(long offset) throws IOException, ParseException {
+        long t = Metrics.start();
         oatdata_offset = offset;
-        long mark = oatfile.getFilePointer();
-        oatfile.seek(offset);
-        oatfile.read(magic);
-        oatfile.read(version);
-        oatfile.read(adler32_checksum);
-        oatfile.read(instruction_set);
-        oatfile.read(instruction_set_features);
-        oatfile.read(dex_file_count);
-        oatfile.read(executable_offset);
-        oatfile.read(interpreter_to_interpreter_bridge_offset);
-        oatfile.read(interpreter_to_compiled_code_bridge_offset);
-        oatfile.read(jni_dlsym_lookup_offset_);
-        oatfile.read(portable_imt_conflict_trampoline_offset);
-        oatfile.read(portable_resolution_trampoline_offset);
-        oatfile.read(portable_to_interpreter_bridge_offset);
-        oatfile.read(quick_generic_jni_trampoline_offset);
-        oatfile.read(quick_imt_conflict_trampoline_offset);
-        oatfile.read(quick_resolution_trampoline_offset);
-        oatfile.read(quick_to_interpreter_bridge_offset);
-        /*oatfile.read(image_patch_delta);
-        oatfile.read(image_file_location_oat_checksum);
-        oatfile.read(image_file_location_oat_data_begin);*/
-        oatfile.read(key_value_store_size);
-        key_value_store = new byte[(int) elf.unpack_int(key_value_store_size)];
-        oatfile.read(key_value_store);
-        dex_headers_offset = oatfile.getFilePointer();
-        oatfile.seek(mark);
+        version = parseVersion();
+        adler32_checksum = header_word(0);
+        instruction_set = header_word(1);
+        instruction_set_features = header_word(2);
+        dex_file_count = header_word(3);
+        int kv_size_word;
+        if (version < VERSION_M) {
+            // L still has the portable trampolines
+            executable_offset = header_word(4);
+            interpreter_to_interpreter_bridge_offset = header_word(5);
+            interpreter_to_compiled_code_bridge_offset = header_word(6);
+            jni_dlsym_lookup_offset_ = header_word(7);
+            portable_imt_conflict_trampoline_offset = header_word(8);
+            portable_resolution_trampoline_offset = header_word(9);
+            portable_to_interpreter_bridge_offset = header_word(10);
+            quick_generic_jni_trampoline_offset = header_word(11);
+            quick_imt_conflict_trampoline_offset = header_word(12);
+            quick_resolution_trampoline_offset = header_word(13);
+            quick_to_interpreter_bridge_offset = header_word(14);
+            kv_size_word = 15;
+        } else if (version < VERSION_O) {
+            executable_offset = header_word(4);
+            interpreter_to_interpreter_bridge_offset = header_word(5);
+            interpreter_to_compiled_code_bridge_offset = header_word(6);
+            jni_dlsym_lookup_offset_ = header_word(7);
+            quick_generic_jni_trampoline_offset = header_word(8);
+            quick_imt_conflict_trampoline_offset = header_word(9);
+            quick_resolution_trampoline_offset = header_word(10);
+            quick_to_interpreter_bridge_offset = header_word(11);
+            kv_size_word = 12;
+        } else if (version < VERSION_Q) {
+            // O adds the offset of the OatDexFile table
+            oat_dex_files_offset = header_word(4);
+            executable_offset = header_word(5);
+            interpreter_to_interpreter_bridge_offset = header_word(6);
+            interpreter_to_compiled_code_bridge_offset = header_word(7);
+            jni_dlsym_lookup_offset_ = header_word(8);
+            quick_generic_jni_trampoline_offset = header_word(9);
+            quick_imt_conflict_trampoline_offset = header_word(10);
+            quick_resolution_trampoline_offset = header_word(11);
+            quick_to_interpreter_bridge_offset = header_word(12);
+            kv_size_word = 13;
+        } else if (version < VERSION_R) {
+            // Q drops the interpreter bridges, the patch delta and the image data begin
+            oat_dex_files_offset = header_word(4);
+            executable_offset = header_word(5);
+            jni_dlsym_lookup_offset_ = header_word(6);
+            quick_generic_jni_trampoline_offset = header_word(7);
+            quick_imt_conflict_trampoline_offset = header_word(8);
+            quick_resolution_trampoline_offset = header_word(9);
+            quick_to_interpreter_bridge_offset = header_word(10);
+            image_file_location_oat_checksum = header_word(11);
+            kv_size_word = 12;
+        } else if (version < VERSION_S) {
+            // R moves the boot image checksum into the key-value store
+            oat_dex_files_offset = header_word(4);
+            executable_offset = header_word(5);
+            jni_dlsym_lookup_offset_ = header_word(6);
+            quick_generic_jni_trampoline_offset = header_word(7);
+            quick_imt_conflict_trampoline_offset = header_word(8);
+            quick_resolution_trampoline_offset = header_word(9);
+            quick_to_interpreter_bridge_offset = header_word(10);
+            kv_size_word = 11;
+        } else {
+            // S adds the @CriticalNative lookup and nterp trampolines
+            oat_dex_files_offset = header_word(4);
+            executable_offset = header_word(5);
+            jni_dlsym_lookup_offset_ = header_word(6);
+            jni_dlsym_lookup_critical_trampoline_offset = header_word(7);
+            quick_generic_jni_trampoline_offset = header_word(8);
+            quick_imt_conflict_trampoline_offset = header_word(9);
+            quick_resolution_trampoline_offset = header_word(10);
+            quick_to_interpreter_bridge_offset = header_word(11);
+            nterp_trampoline_offset = header_word(12);
+            kv_size_word = 13;
+        }
+        if (version < VERSION_Q) {
+            image_patch_delta = (int) header_word(kv_size_word);
+            image_file_location_oat_checksum = header_word(kv_size_word + 1);
+            image_file_location_oat_data_begin = header_word(kv_size_word + 2);
+            kv_size_word += 3;
+        }
+        offset = oatdata_offset + 8 + 4 * (kv_size_word + 1);
+        key_value_store_size = header_word(kv_size_word);
+        if (offset + key_value_store_size > source.size()) {
+            throw new ParseException("Illegal key_value_store_size: " + key_value_store_size, (int) offset);
+        }
+        key_value_store_offset = offset;
+        offset += key_value_store_size;
+        // up to N the OatDexFile table directly follows the header
+        dex_headers_offset = version < VERSION_O ? offset : oatdata_offset + oat_dex_files_offset;
+        Metrics.stop(Metrics.Phase.OAT_HEADER, t);
     }
 
+    /**
+     * Reads the u4 header field {@code index} words behind the magic and version.
+     */
+    long header_word(int index) throws IOException {
+        return source.getUnsignedInt(oatdata_offset + 8 + 4 * index);
+    }
 
+    /**
+     * Parses the 3-digit version ("064\0") following the "oat\n" magic.
+     */
+    int parseVersion() throws IOException, ParseException {
+        if (!source.getString(oatdata_offset, 4).equals("oat\n")) {
+            throw new ParseException("Illegal oat magic at oatdata", (int) oatdata_offset);
+        }
+        try {
+            return Integer.parseInt(source.getString(oatdata_offset + 4, 3));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Illegal oat version", (int) oatdata_offset + 4);
+        }
+    }
 
+    /**
+     * Walks the OatDexFile table. Its records are variable-sized, so each
+     * {@link Dex} reports where the next record starts.
+     */
     void parseDexFiles() throws IOException, ParseException {
-        dex_files = new HashMap<>();
+        parseDexFiles(null);
+    }
+
+    /**
+     * Like {@link #parseDexFiles()}, and hands every dex file to {@code visitor} before
+     * the next record is read. Up to N a record's size depends on the header of its
+     * dex file, so a forward-only reader has to be done with one dex file before the
+     * next record can be found.
+     */
+    void parseDexFiles(Dex.Visitor visitor) throws IOException, ParseException {
+        long t = Metrics.start();
+        dex_files = new ArrayList<>();
         long offset = dex_headers_offset;
-        for (int i = 0; i < elf.unpack_int(dex_file_count); i++){
+        for (int i = 0; i < dex_file_count; i++){
             Dex d = new Dex(this, offset);
-            //offset += d.file_size;
-            dex_files.put(d.fileheader.dex_file_location_str, d);
-            break;
+            offset = d.fileheader.end_offset;
+            dex_files.add(d);
+            if (visitor != null) {
+                Metrics.stop(Metrics.Phase.DEX_TABLE, t);
+                visitor.visit(d);
+                t = Metrics.start();
+            }
         }
+        Metrics.stop(Metrics.Phase.DEX_TABLE, t);
     }
 
-    Oat(Elf elf) throws IOException, ParseException {
-        this.elf = elf;
-        this.oatfile = elf.elffile;
-        long offset = elf.unpack_int(elf.symbols.get("oatdata").st_value);
+    /**
+     * Opens and parses the oat file at {@code path}. Dex bytes are not touched
+     * until they are requested through {@link Dex}.
+     */
+    public static Oat open(String path) throws IOException, ParseException {
+        return new Oat(Elf.parse(MappedByteSource.open(path)), Vdex.sibling(path));
+    }
+
+    /**
+     * Opens an oat file whose dex files are stored in {@code vdexpath}; used when the
+     * vdex file does not sit next to the oat file under the same name.
+     */
+    public static Oat open(String path, String vdexpath) throws IOException, ParseException {
+        return new Oat(Elf.parse(MappedByteSource.open(path)), new Vdex(MappedByteSource.open(vdexpath)));
+    }
+
+    /**
+     * Parses an oat file held in memory, starting at the buffer's position.
+     */
+    public static Oat open(ByteBuffer buffer) throws IOException, ParseException {
+        return open(new BufferByteSource(buffer));
+    }
+
+    public static Oat open(ByteBuffer buffer, ByteBuffer vdex) throws IOException, ParseException {
+        return new Oat(Elf.parse(new BufferByteSource(buffer)), new Vdex(new BufferByteSource(vdex)));
+    }
+
+    /**
+     * Reads only the oat header of an oat file held in memory, to tell whether its
+     * dex files are in a vdex file before opening it.
+     */
+    static int version(ByteBuffer buffer) throws IOException, ParseException {
+        Elf elf = Elf.parse(new BufferByteSource(buffer));
+        Elf.ISymbol oatdata = elf.lookup_symbol("oatdata");
+        if (oatdata == null) {
+            throw new ParseException("missing oatdata symbol", 0);
+        }
+        return new Oat(elf, oatdata.st_value).version;
+    }
+
+    /**
+     * Parses an oat file read from a channel; file channels are memory-mapped.
+     */
+    public static Oat open(SeekableByteChannel channel) throws IOException, ParseException {
+        return open(ChannelByteSource.of(channel));
+    }
+
+    public static Oat open(ByteSource source) throws IOException, ParseException {
+        return new Oat(Elf.parse(source), null);
+    }
+
+    /**
+     * The embedded dex files in oat dex table order.
+     */
+    public Collection<Dex> dexFiles() {
+        return Collections.unmodifiableList(dex_files);
+    }
+
+    /**
+     * The first dex file with the given location, or null if there is none.
+     */
+    public Dex dexFile(String location) {
+        for (Dex dex : dex_files) {
+            if (dex.location().equals(location)) {
+                return dex;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<Dex> iterator() {
+        return dexFiles().iterator();
+    }
+
+    public int version() {
+        return version;
+    }
+
+    /**
+     * The instruction set the code was compiled for, e.g. "arm64".
+     */
+    public String instructionSet() {
+        return instruction_set < INSTRUCTION_SETS.length ? INSTRUCTION_SETS[(int) instruction_set] : "unknown(" + instruction_set + ")";
+    }
+
+    /**
+     * The key-value store of the oat header, decoded on demand. Mapped and
+     * buffer-backed oat files are not copied.
+     */
+    public synchronized KeyValueStore keyValueStore() throws IOException {
+        if (key_value_store == null) {
+            key_value_store = new KeyValueStore(source.slice(key_value_store_offset, key_value_store_size));
+        }
+        return key_value_store;
+    }
+
+    /**
+     * Checks the dex table against the vdex file. Both record the checksum of every
+     * dex file, so they disagree when the two files do not belong together.
+     *
+     * @return one message per mismatch, empty without a vdex file
+     */
+    public List<String> checkVdex() throws IOException, ParseException {
+        List<String> mismatches = new ArrayList<>();
+        if (vdex == null) {
+            return mismatches;
+        }
+        long[] checksums = vdex.checksums();
+        if (checksums.length != dex_files.size()) {
+            mismatches.add("vdex file has " + checksums.length + " dex files, oat file " + dex_files.size());
+            return mismatches;
+        }
+        int i = 0;
+        for (Dex dex : dex_files) {
+            if (checksums[i] != dex.locationChecksum()) {
+                mismatches.add(String.format("%s: vdex checksum 0x%08x, oat file says 0x%08x",
+                        dex.location(), checksums[i], dex.locationChecksum()));
+            }
+            i++;
+        }
+        return mismatches;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+        if (vdex != null) {
+            vdex.close();
+        }
+    }
+
+    /**
+     * Points {@code dex} at its bytes. Up to N they are part of oatdata; from O on
+     * {@code dex_file_pointer} is relative to the begin of the vdex file.
+     */
+    void locateDex(Dex dex, long dex_file_pointer) {
+        if (version >= VERSION_O && vdex != null) {
+            dex.source = vdex.source;
+            dex.begin = dex_file_pointer;
+        } else {
+            dex.source = dex_source;
+            dex.begin = oatdata_offset + dex_file_pointer;
+        }
+    }
+
+    Oat(Elf elf, Vdex vdex) throws IOException, ParseException {
+        init(elf, vdex);
+        Elf.ISymbol oatdata = elf.lookup_symbol("oatdata");
+        if (oatdata == null) {
+            throw new ParseException("missing oatdata symbol", 0);
+        }
+        long offset = oatdata.st_value;
         parseOatHeader(offset);
         parseDexFiles();
     }
 
+    /**
+     * Restores the dex table from a parse index entry. Only the oat header is
+     * decoded, to make sure the entry still describes this file.
+     */
+    Oat(Elf elf, Vdex vdex, ParseIndex.Entry entry) throws IOException, ParseException {
+        init(elf, vdex);
+        parseOatHeader(entry.oatdata_offset);
+        if (adler32_checksum != entry.adler32_checksum || dex_file_count != entry.dex_files.length) {
+            throw new ParseException("parse index entry does not match the oat header", (int) oatdata_offset);
+        }
+        long t = Metrics.start();
+        dex_files = new ArrayList<>();
+        for (ParseIndex.DexEntry d : entry.dex_files) {
+            dex_files.add(new Dex(this, d));
+        }
+        Metrics.stop(Metrics.Phase.DEX_TABLE, t);
+    }
+
+    /**
+     * Parses only the oat header at a known oatdata offset, for readers that
+     * cannot look up symbols; the dex table is left to {@link #parseDexFiles(Dex.Visitor)}.
+     */
+    Oat(Elf elf, long oatdata_offset) throws IOException, ParseException {
+        init(elf, null);
+        parseOatHeader(oatdata_offset);
+        dex_files = new ArrayList<>();
+    }
+
+    private void init(Elf elf, Vdex vdex) {
+        this.elf = elf;
+        this.vdex = vdex;
+        this.source = elf.source;
+        this.dex_source = source.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
 }
@@ -0,0 +1,227 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.elf.Elf;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers where the dex files of an oat file are, so that repeated scans of
+ * the same files skip the symbol lookup and the OatDexFile table walk.
+ *
+ * Entries are keyed by canonical path, size and modification time, and are
+ * double-checked against the oat header checksum before use. A stale or broken
+ * entry falls back to a full parse, whose result replaces it. The index is a
+ * small binary file that is loaded completely and written back by {@link #save()}.
+ */
+public class ParseIndex {
+
+    static final int MAGIC = 0x64666f69; // "dfoi"
+    static final int FORMAT = 1;
+
+    static class DexEntry {
+        String location;
+        long location_checksum;
+        long record_offset;
+        long end_offset;
+        long dex_file_pointer;
+        long class_offsets_offset;
+        long class_offsets_position;
+        long lookup_table_offset;
+    }
+
+    static class Entry {
+        long size;
+        long mtime;
+        long adler32_checksum;
+        long oatdata_offset;
+        DexEntry[] dex_files;
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+    private long hits;
+    private long misses;
+
+    /**
+     * Loads {@code file} if it exists. An unreadable index is discarded, not an error.
+     */
+    public ParseIndex(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                load(in);
+            } catch (IOException e) {
+                entries.clear();
+                dirty = true;
+            }
+        }
+    }
+
+    private void load(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+            throw new IOException("not a parse index: " + file);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            Entry e = new Entry();
+            e.size = in.readLong();
+            e.mtime = in.readLong();
+            e.adler32_checksum = in.readLong();
+            e.oatdata_offset = in.readLong();
+            e.dex_files = new DexEntry[in.readInt()];
+            for (int j = 0; j < e.dex_files.length; j++) {
+                DexEntry d = new DexEntry();
+                d.location = in.readUTF();
+                d.location_checksum = in.readLong();
+                d.record_offset = in.readLong();
+                d.end_offset = in.readLong();
+                d.dex_file_pointer = in.readLong();
+                d.class_offsets_offset = in.readLong();
+                d.class_offsets_position = in.readLong();
+                d.lookup_table_offset = in.readLong();
+                e.dex_files[j] = d;
+            }
+            entries.put(path, e);
+        }
+        if (in.read() != -1) {
+            throw new EOFException("trailing bytes in parse index " + file);
+        }
+    }
+
+    /**
+     * Writes the index back if it changed. The new index replaces the old one atomically.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                out.writeUTF(me.getKey());
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeLong(e.adler32_checksum);
+                out.writeLong(e.oatdata_offset);
+                out.writeInt(e.dex_files.length);
+                for (DexEntry d : e.dex_files) {
+                    out.writeUTF(d.location);
+                    out.writeLong(d.location_checksum);
+                    out.writeLong(d.record_offset);
+                    out.writeLong(d.end_offset);
+                    out.writeLong(d.dex_file_pointer);
+                    out.writeLong(d.class_offsets_offset);
+                    out.writeLong(d.class_offsets_position);
+                    out.writeLong(d.lookup_table_offset);
+                }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo does not replace existing files everywhere
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot move " + tmp + " to " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Opens the oat file at {@code path}, from the index if it has a current entry.
+     */
+    public Oat open(String path) throws IOException, ParseException {
+        File f = new File(path);
+        String key = f.getCanonicalPath();
+        long size = f.length();
+        long mtime = f.lastModified();
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if (e != null && e.size == size && e.mtime == mtime) {
+            try {
+                Oat o = new Oat(Elf.parse(MappedByteSource.open(path)), Vdex.sibling(path), e);
+                synchronized (this) {
+                    hits++;
+                }
+                return o;
+            } catch (IOException | ParseException | RuntimeException ignored) {
+                // stale or corrupt, parse from scratch below
+            }
+        }
+        Oat o = Oat.open(path);
+        synchronized (this) {
+            misses++;
+            entries.put(key, entry(o, size, mtime));
+            dirty = true;
+        }
+        return o;
+    }
+
+    static Entry entry(Oat o, long size, long mtime) {
+        Entry e = new Entry();
+        e.size = size;
+        e.mtime = mtime;
+        e.adler32_checksum = o.adler32_checksum;
+        e.oatdata_offset = o.oatdata_offset;
+        e.dex_files = new DexEntry[o.dex_files.size()];
+        int i = 0;
+        for (Dex dex : o.dex_files) {
+            Dex.DexFileHeader h = dex.fileheader;
+            DexEntry d = new DexEntry();
+            d.location = h.dex_file_location_str;
+            d.location_checksum = h.dex_file_location_checksum;
+            d.record_offset = dex.record_offset();
+            d.end_offset = h.end_offset;
+            d.dex_file_pointer = h.dex_file_pointer;
+            d.class_offsets_offset = h.class_offsets_offset;
+            d.class_offsets_position = h.class_offsets_position;
+            d.lookup_table_offset = h.lookup_table_offset;
+            e.dex_files[i++] = d;
+        }
+        return e;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "parse index " + file + ": " + hits + " hits, " + misses + " misses, " + entries.size() + " entries";
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.elf.Elf;
+import saarland.cispa.artist.dexfromoat.io.StreamByteSource;
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Extracts the dex files of an oat or vdex file read strictly forward, once, e.g.
+ * from a pipe, a slow network mount or a decompressing stream.
+ *
+ * The file is consumed in layout order: elf header and program headers, oatdata,
+ * OatDexFile table, then every dex file in turn. Headers and the table are kept
+ * in memory, dex bodies are streamed to their output file as they arrive and
+ * dropped, and so are the dex headers once a dex file is written.
+ *
+ * Where oatdata is is planned from the headers before skipping to it. dex2oat
+ * writes the section headers and the dynamic segment last, so usually neither
+ * .rodata nor the oatdata symbol has gone by in time. The program headers have:
+ * the oat header's executable_offset leads from oatdata exactly to the start of
+ * the executable segment, which rules out pages that merely start with an oat magic.
+ * If the section headers do come first, .rodata is used instead.
+ *
+ * Only oat files up to N carry their dex files. From O on they are in the vdex
+ * file, which streams the same way. CompactDex files with shared data and class
+ * filters need random access and are refused.
+ */
+public class StreamExtractor {
+
+    static final int PAGE_SIZE = 4096;
+    static final int OAT_MAGIC_SIZE = 8;
+
+    private DexCache cache;
+    private boolean verify;
+    private DexFilter filter;
+
+    public void setCache(DexCache cache) {
+        this.cache = cache;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Selects dex files by location; class and key-value patterns are not supported here.
+     */
+    public void setFilter(DexFilter filter) {
+        if (filter != null && filter.filtersClasses()) {
+            throw new IllegalArgumentException("class filters need random access to the dex files");
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Reads {@code in} to the last dex file and writes the dex files to {@code outdir}/classesN.dex.
+     *
+     * @param mismatches collects verification mismatches, with {@link #setVerify(boolean)}
+     * @return the dex files written
+     */
+    public List<Dex> extract(InputStream in, final String outdir, final List<String> mismatches)
+            throws IOException, ParseException {
+        final StreamByteSource source = new StreamByteSource(in);
+        final List<Dex> written = new ArrayList<>();
+        Dex.Visitor visitor = new Dex.Visitor() {
+            int index;
+            // end of the last dex file handed to the visitor, -1 before the first
+            long emitted = -1;
+
+            @Override
+            public void visit(Dex dex) throws IOException, ParseException {
+                int i = index++;
+                if (dex.hasSharedData()) {
+                    throw new ParseException("CompactDex file " + dex.location()
+                            + " uses shared data, which cannot be streamed", (int) dex.begin);
+                }
+                if ((filter == null || filter.accepts(dex))
+                        && DexFromOat.write(dex, outdir + "/" + DexFromOat.fileName(dex, i), cache,
+                        verify ? mismatches : null, null)) {
+                    written.add(dex);
+                }
+                // whether written or filtered out, the dex file is of no further use
+                long end = dex.begin + dex.header.file_size;
+                source.discardTo(end);
+                source.release(emitted < 0 ? dex.begin : emitted, end);
+                emitted = end;
+            }
+        };
+        if (Vdex.isVdex(source)) {
+            new Vdex(source).parseDexFiles(visitor);
+            return written;
+        }
+        Elf elf = Elf.parse(source);
+        Oat oat = new Oat(elf, findOatdata(elf, source));
+        if (oat.version() >= Oat.VERSION_O) {
+            throw new ParseException("oat version " + oat.version()
+                    + " keeps its dex files in the vdex file, stream that instead", (int) oat.oatdata_offset);
+        }
+        oat.parseDexFiles(visitor);
+        return written;
+    }
+
+    /**
+     * Finds oatdata from the headers at the front of the stream and skips forward to it.
+     *
+     * @return the offset of oatdata
+     */
+    static long findOatdata(Elf elf, StreamByteSource source) throws IOException, ParseException {
+        // oatdata is page aligned and comes after the program headers
+        long first = (elf.headers_end() + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        long rodata = elf.section_offset_before(".rodata", first);
+        if (rodata >= 0) {
+            source.discardTo(rodata);
+            return rodata;
+        }
+        long text = elf.executable_segment_offset();
+        if (text < 0) {
+            throw new ParseException("no executable segment to locate oatdata by", 0);
+        }
+        byte[] magic = new byte[OAT_MAGIC_SIZE];
+        for (long offset = first; offset < text; offset += PAGE_SIZE) {
+            source.discardTo(offset);
+            source.get(offset, magic);
+            if (isOatMagic(magic) && offset + executableOffset(elf, offset, magic) == text) {
+                return offset;
+            }
+        }
+        throw new ParseException("no oat header leads to the executable segment at 0x"
+                + Long.toHexString(text), (int) text);
+    }
+
+    /**
+     * @return the executable_offset of the oat header at {@code offset}, which follows oat_dex_files_offset from O on
+     */
+    private static long executableOffset(Elf elf, long offset, byte[] magic) throws IOException {
+        int version = (magic[4] - '0') * 100 + (magic[5] - '0') * 10 + (magic[6] - '0');
+        return elf.source.getUnsignedInt(offset + OAT_MAGIC_SIZE + (version >= Oat.VERSION_O ? 20 : 16));
+    }
+
+    static boolean isOatMagic(byte[] magic) {
+        return magic[0] == 'o' && magic[1] == 'a' && magic[2] == 't' && magic[3] == '\n'
+                && isDigit(magic[4]) && isDigit(magic[5]) && isDigit(magic[6]) && magic[7] == 0;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    static void usage() {
+        System.err.println("usage: dexfromoat stream [-c <cachedir> [-l <megabytes>]] [-s <statsfile>] [-v] [-d <pattern>]... <outdir> [<oatfile|vdexfile>|-]");
+        System.err.println("  reads an oat (up to N) or vdex file front to back once, from stdin by default");
+        System.err.println("  -c <cachedir>   store each distinct dex file once and hard-link it into the output");
+        System.err.println("  -l <megabytes>  size cap of the cache, least recently used dex files are evicted");
+        System.err.println("  -s <statsfile>  enable metrics and write them to <statsfile>, Prometheus text if it ends in .prom, JSON otherwise");
+        System.err.println("  -v              verify dex checksums and signatures while writing");
+        System.err.println("  -d <pattern>    only extract dex files whose location matches (glob, or regex after 're:')");
+    }
+
+    /**
+     * @return the process exit code
+     */
+    static int execute(String[] args) {
+        String cachedir = null;
+        long cachelimit = 0;
+        String statsfile = null;
+        boolean verify = false;
+        DexFilter filter = new DexFilter();
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-v")) {
+                    verify = true;
+                } else if (args[i].equals("-d") && i + 1 < args.length) {
+                    filter.location(args[++i]);
+                } else if (args[i].equals("-c") && i + 1 < args.length) {
+                    cachedir = args[++i];
+                } else if (args[i].equals("-l") && i + 1 < args.length) {
+                    cachelimit = Long.parseLong(args[++i]) << 20;
+                } else if (args[i].equals("-s") && i + 1 < args.length) {
+                    statsfile = args[++i];
+                } else if (args[i].length() > 1 && args[i].startsWith("-")) {
+                    usage();
+                    return 2;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | PatternSyntaxException e) {
+            cachelimit = -1;
+        }
+        if (positional.isEmpty() || positional.size() > 2 || cachelimit < 0) {
+            usage();
+            return 2;
+        }
+        if (statsfile != null) {
+            Metrics.enable();
+        }
+        String outdir = positional.get(0);
+        String input = positional.size() > 1 ? positional.get(1) : "-";
+        StreamExtractor extractor = new StreamExtractor();
+        extractor.setVerify(verify);
+        extractor.setFilter(filter);
+        List<String> mismatches = new ArrayList<>();
+        long start = System.nanoTime();
+        int dex_files = -1;
+        try {
+            if (cachedir != null) {
+                extractor.setCache(new DexCache(new File(cachedir), cachelimit));
+            }
+            File out = new File(outdir);
+            if (!out.isDirectory() && !out.mkdirs()) {
+                throw new IOException("cannot create output directory " + out);
+            }
+            try (InputStream in = new BufferedInputStream(
+                    input.equals("-") ? System.in : new FileInputStream(input), Archive.BUFFER_SIZE)) {
+                dex_files = extractor.extract(in, outdir, mismatches).size();
+            }
+            if (extractor.cache != null) {
+                extractor.cache.save();
+                System.err.println(extractor.cache);
+            }
+        } catch (IOException | ParseException e) {
+            System.err.println("stream failed: " + e);
+        } finally {
+            Metrics.file(System.nanoTime() - start, dex_files >= 0, Math.max(dex_files, 0));
+        }
+        if (statsfile != null) {
+            try {
+                Metrics.get().dump(new File(statsfile));
+            } catch (IOException e) {
+                System.err.println("cannot write metrics: " + e);
+            }
+        }
+        return dex_files >= 0 && DexFromOat.report(mismatches) ? 0 : 1;
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.io.BufferByteSource;
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A vdex file, which holds the dex files of an oat file from Android O on.
+ *
+ * Oat files locate their dex files in the vdex file by offset, so they need
+ * nothing but {@link #source}. Read on its own, the dex files are found through
+ * the vdex header, whose layout changed several times:
+ * <ul>
+ *     <li>006 (O), 010 (O MR1): a fixed header, the dex checksums, then the dex files</li>
+ *     <li>019 (P): a 20-byte header with separate verifier deps and dex section
+ *     versions, the dex checksums, and a dex section header; every dex file is
+ *     preceded by the offset of its quickening table</li>
+ *     <li>021 (Q, R): as 019, but the header grows to 28 bytes with the sizes of the
+ *     boot classpath checksums and the class loader context</li>
+ *     <li>027 (S) and later: a table of sections, one of them holds the dex files</li>
+ * </ul>
+ * Vdex files are always little-endian.
+ */
+public class Vdex implements Iterable<Dex>, Closeable {
+
+    static final int VERSION_P = 19;
+    static final int VERSION_Q = 21;
+    static final int VERSION_S = 27;
+
+    static final int SECTION_CHECKSUM = 0;
+    static final int SECTION_DEX_FILE = 1;
+
+    final ByteSource source;
+    int version;
+    long[] checksums;
+    private List<Dex> dex_files;
+
+    Vdex(ByteSource source) throws IOException, ParseException {
+        this.source = source.order(ByteOrder.LITTLE_ENDIAN);
+        if (!isVdex(this.source)) {
+            throw new ParseException("Illegal vdex magic", 0);
+        }
+        try {
+            version = Integer.parseInt(this.source.getString(4, 3));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Illegal vdex version", 4);
+        }
+    }
+
+    static boolean isVdex(ByteSource source) throws IOException {
+        return source.size() >= 8 && source.getString(0, 4).equals("vdex");
+    }
+
+    /**
+     * Checks the magic of the file at {@code path}.
+     */
+    static boolean isVdex(String path) throws IOException {
+        byte[] magic = new byte[4];
+        try (InputStream in = new FileInputStream(path)) {
+            return Archive.readFully(in, magic, 0, 4) == 4
+                    && magic[0] == 'v' && magic[1] == 'd' && magic[2] == 'e' && magic[3] == 'x';
+        }
+    }
+
+    public static Vdex open(String path) throws IOException, ParseException {
+        return open(MappedByteSource.open(path));
+    }
+
+    public static Vdex open(ByteBuffer buffer) throws IOException, ParseException {
+        return open(new BufferByteSource(buffer));
+    }
+
+    /**
+     * Parses the vdex header and all dex headers.
+     */
+    public static Vdex open(ByteSource source) throws IOException, ParseException {
+        Vdex vdex = new Vdex(source);
+        vdex.parseDexFiles();
+        return vdex;
+    }
+
+    /**
+     * Returns the vdex file next to an oat file, e.g. "base.vdex" for "base.odex", or null if there is none.
+     */
+    static Vdex sibling(String oatpath) throws IOException, ParseException {
+        int dot = oatpath.lastIndexOf('.');
+        if (dot < 0 || dot < oatpath.lastIndexOf(File.separatorChar)) {
+            return null;
+        }
+        File vdex = new File(oatpath.substring(0, dot) + ".vdex");
+        return vdex.isFile() ? new Vdex(MappedByteSource.open(vdex.getPath())) : null;
+    }
+
+    void parseDexFiles() throws IOException, ParseException {
+        parseDexFiles(null);
+    }
+
+    /**
+     * Like {@link #parseDexFiles()}, and hands every dex file to {@code visitor} as soon as its header is read.
+     */
+    void parseDexFiles(Dex.Visitor visitor) throws IOException, ParseException {
+        dex_files = new ArrayList<>();
+        if (version >= VERSION_S) {
+            parseSections(visitor);
+        } else if (version >= VERSION_P) {
+            // magic, verifier deps version, dex section version, dex count, verifier deps size,
+            // from 021 on followed by the boot classpath checksums and class loader context sizes
+            long header = version >= VERSION_Q ? 28 : 20;
+            int count = checkCount(source.getUnsignedInt(12));
+            readChecksums(header, count);
+            if (source.getString(8, 3).equals("000")) {
+                // no dex section, the dex files stay in the apk
+                return;
+            }
+            // the dex section header (dex, shared data and quickening info sizes) follows the checksums
+            long offset = header + 4 * count + 12;
+            for (int i = 0; i < count; i++) {
+                // each dex file is preceded by its quickening table offset
+                offset = addDexFile(i, offset + 4, visitor);
+            }
+        } else {
+            // magic, version, dex count, dex, verifier deps and quickening info sizes
+            int count = checkCount(source.getUnsignedInt(8));
+            readChecksums(24, count);
+            if (source.getUnsignedInt(12) == 0) {
+                return;
+            }
+            long offset = 24 + 4 * count;
+            for (int i = 0; i < count; i++) {
+                offset = addDexFile(i, offset, visitor);
+            }
+        }
+    }
+
+    private void parseSections(Dex.Visitor visitor) throws IOException, ParseException {
+        long sections = source.getUnsignedInt(8);
+        long dex_offset = 0;
+        long dex_size = 0;
+        for (int i = 0; i < sections; i++) {
+            long header = 12 + 12 * i;
+            long kind = source.getUnsignedInt(header);
+            long offset = source.getUnsignedInt(header + 4);
+            long size = source.getUnsignedInt(header + 8);
+            if (kind == SECTION_CHECKSUM) {
+                readChecksums(offset, checkCount(size / 4));
+            } else if (kind == SECTION_DEX_FILE) {
+                dex_offset = offset;
+                dex_size = size;
+            }
+        }
+        if (checksums == null) {
+            throw new ParseException("missing vdex checksum section", 12);
+        }
+        if (dex_size == 0) {
+            return;
+        }
+        long offset = dex_offset;
+        for (int i = 0; i < checksums.length; i++) {
+            offset = addDexFile(i, offset, visitor);
+        }
+    }
+
+    private int checkCount(long count) throws ParseException {
+        if (count * 4 > source.size()) {
+            throw new ParseException("Illegal vdex dex file count: " + count, 8);
+        }
+        return (int) count;
+    }
+
+    private void readChecksums(long offset, int count) throws IOException {
+        checksums = new long[count];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = source.getUnsignedInt(offset + 4 * i);
+        }
+    }
+
+    /**
+     * @return the offset right behind the dex file, aligned to 4 bytes
+     */
+    private long addDexFile(int index, long offset, Dex.Visitor visitor) throws IOException, ParseException {
+        Dex dex = new Dex(this, index, offset);
+        dex_files.add(dex);
+        long next = Dex.align4(offset + dex.header.file_size);
+        if (visitor != null) {
+            visitor.visit(dex);
+        }
+        return next;
+    }
+
+    /**
+     * The checksums of the dex files the vdex file was built from, in dex order.
+     */
+    long[] checksums() throws IOException, ParseException {
+        if (checksums == null) {
+            parseDexFiles();
+        }
+        return checksums;
+    }
+
+    /**
+     * Vdex files do not record where their dex files came from; this returns the usual multidex names.
+     */
+    static String location(int index) {
+        return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+    }
+
+    /**
+     * The dex files in vdex order. Empty for vdex files without a dex section.
+     */
+    public List<Dex> dexFiles() {
+        if (dex_files == null) {
+            throw new IllegalStateException("dex files of this vdex file have not been parsed");
+        }
+        return Collections.unmodifiableList(dex_files);
+    }
+
+    @Override
+    public Iterator<Dex> iterator() {
+        return dexFiles().iterator();
+    }
+
+    public int version() {
+        return version;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+
+/**
+ * Passes a dex file through to {@code target} and computes its checksum and
+ * signature from the very buffers that are written, so verifying costs no
+ * extra read. The Adler-32 checksum covers everything behind the checksum
+ * field (offset 12), the SHA-1 signature everything behind the signature (offset 32).
+ */
+class VerifyingChannel implements WritableByteChannel {
+
+    static final int CHECKSUM_START = 12;
+    static final int SIGNATURE_START = 32;
+
+    private final WritableByteChannel target;
+    private final Adler32 adler = new Adler32();
+    private final MessageDigest sha1;
+    // number of dex bytes written so far
+    private long position;
+
+    VerifyingChannel(WritableByteChannel target) {
+        this.target = target;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int n = target.write(src);
+        written.limit(written.position() + n);
+        long start = position;
+        position += n;
+        adler.update(skip(written, start, CHECKSUM_START));
+        sha1.update(skip(written, start, SIGNATURE_START));
+        return n;
+    }
+
+    /**
+     * A view of {@code bytes}, which start at dex offset {@code start}, beginning no earlier than dex offset {@code from}.
+     */
+    private static ByteBuffer skip(ByteBuffer bytes, long start, int from) {
+        ByteBuffer view = bytes.duplicate();
+        view.position(view.position() + (int) Math.min(view.remaining(), Math.max(0, from - start)));
+        return view;
+    }
+
+    Dex.Verification verification(Dex dex) {
+        return new Dex.Verification(dex.location(), dex.checksum(), adler.getValue(),
+                MessageDigest.isEqual(dex.signature(), sha1.digest()));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return target.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        target.close();
+    }
+}
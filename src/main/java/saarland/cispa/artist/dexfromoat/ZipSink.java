@@ -0,0 +1,474 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes dex files into a single zip file instead of loose files, one entry per
+ * dex file, named after its location.
+ *
+ * Entries are stored or deflated at a given level. The checksum and, if asked
+ * for, the compression of every entry are done up front, in parallel on an
+ * executor if one is given, so the zip file itself is written strictly
+ * sequentially, in the order the dex files were added, and every local header
+ * already carries the final sizes. Stored entries are written straight from the
+ * oat or vdex file. At most {@link #IN_FLIGHT_PER_THREAD} entries per processor
+ * are prepared ahead of the writer, which bounds the compressed bytes held in memory.
+ *
+ * The zip file is written to "&lt;file&gt;.tmp" and only renamed into place by
+ * {@link #commit()}; closing without a commit discards it. Zip64 is not
+ * supported: an archive that would need it, with an entry or offset of 4 GiB or
+ * more or 65535 entries or more, fails with an IOException instead.
+ */
+public class ZipSink implements Closeable {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    static final int VERSION = 20;
+    static final int FLAG_UTF8 = 1 << 11;
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    // these values mean "see the zip64 record", so sizes, offsets and counts stay below them
+    static final long MAX_SIZE = 0xffffffffL;
+    static final int MAX_ENTRIES = 0xffff;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int IN_FLIGHT_PER_THREAD = 2;
+    static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * A dex file with its checksum and, for deflated entries, its compressed bytes.
+     */
+    static class Entry {
+        final Dex dex;
+        final String name;
+        final ByteBuffer data;
+        // holds data for rewritten dex files, deleted once the entry is written
+        File tmp;
+        long crc;
+        // null for stored entries
+        byte[] deflated;
+
+        Entry(Dex dex, String name, ByteBuffer data) {
+            this.dex = dex;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Computes the CRC-32 of everything written to it and, with a level above 0, deflates it.
+     */
+    static class EntryChannel implements WritableByteChannel {
+        final CRC32 crc = new CRC32();
+        private final Deflater deflater;
+        private final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        private final byte[] in = new byte[BUFFER_SIZE];
+        private final byte[] out = new byte[BUFFER_SIZE];
+
+        EntryChannel(int level) {
+            deflater = level > 0 ? new Deflater(level, true) : null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (deflater == null) {
+                crc.update(src);
+                return n;
+            }
+            while (src.hasRemaining()) {
+                int k = Math.min(in.length, src.remaining());
+                src.get(in, 0, k);
+                crc.update(in, 0, k);
+                deflater.setInput(in, 0, k);
+                while (!deflater.needsInput()) {
+                    deflated.write(out, 0, deflater.deflate(out));
+                }
+            }
+            return n;
+        }
+
+        /**
+         * @return the compressed bytes, null if not deflating
+         */
+        byte[] finish() {
+            if (deflater == null) {
+                return null;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflated.write(out, 0, deflater.deflate(out));
+            }
+            deflater.end();
+            return deflated.toByteArray();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final File file;
+    private final File tmp;
+    private final FileChannel out;
+    private final int level;
+    private final ExecutorService executor;
+    private final int max_in_flight;
+    private final int dos_time;
+    // prepared or being prepared, in the order they were added
+    private final List<Future<Entry>> pending = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private final List<Dex> written = new ArrayList<>();
+    private boolean committed;
+    private boolean closed;
+
+    /**
+     * @param level    0 to store the entries, 1 to 9 to deflate them
+     * @param executor prepares the entries in parallel, null prepares them on the calling thread
+     */
+    public ZipSink(File file, int level, ExecutorService executor) throws IOException {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("zip level " + level + " is not within 0 to 9");
+        }
+        this.file = file;
+        this.level = level;
+        this.executor = executor;
+        max_in_flight = executor != null ? IN_FLIGHT_PER_THREAD * Runtime.getRuntime().availableProcessors() : 1;
+        dos_time = dosTime(System.currentTimeMillis());
+        tmp = new File(file.getPath() + TMP_SUFFIX);
+        out = new FileOutputStream(tmp).getChannel();
+    }
+
+    /**
+     * Queues dex file number {@code index} of its oat file. Entries that are prepared
+     * already are written right away, the rest by later calls and {@link #commit()}.
+     * Blocks while the writer is too far behind.
+     *
+     * @param mismatches verifies the dex file and collects a mismatch if not null; must be
+     *                   safe to add to from several threads when there is an executor
+     * @param filter     class patterns are applied as by {@link Dex#write(String, DexFilter)}
+     */
+    public synchronized void add(final Dex dex, int index, final List<String> mismatches, final DexFilter filter)
+            throws IOException {
+        final String name = uniqueName(entryName(dex, index), index);
+        Callable<Entry> task = new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                return prepare(dex, name, mismatches, filter);
+            }
+        };
+        if (closed) {
+            throw new IllegalStateException(file + " is closed");
+        }
+        // make room first, so no more than max_in_flight entries are ever held
+        while (pending.size() >= max_in_flight) {
+            writeNext();
+        }
+        if (executor != null) {
+            pending.add(executor.submit(task));
+        } else {
+            FutureTask<Entry> prepared = new FutureTask<>(task);
+            prepared.run();
+            pending.add(prepared);
+        }
+        while (!pending.isEmpty() && pending.get(0).isDone()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * The zip entry name for a dex location: "/system/framework/framework.jar:classes2.dex"
+     * becomes "system/framework/framework.jar/classes2.dex", "/data/app/x/base.apk" becomes
+     * "data/app/x/base.apk/classes.dex". CompactDex files end in ".cdex".
+     */
+    static String entryName(Dex dex, int index) {
+        String location = dex.location();
+        int separator = Math.max(location.lastIndexOf('!'), location.lastIndexOf(':'));
+        String path;
+        if (separator >= 0) {
+            path = location.substring(0, separator) + "/" + location.substring(separator + 1);
+        } else if (location.endsWith(".dex")) {
+            path = location;
+        } else {
+            path = location + "/classes.dex";
+        }
+        // no absolute paths and no way out of the extraction directory
+        StringBuilder sb = new StringBuilder();
+        for (String segment : path.split("[/\\\\]")) {
+            if (!segment.isEmpty() && !segment.equals(".") && !segment.equals("..")) {
+                sb.append(sb.length() > 0 ? "/" : "").append(segment);
+            }
+        }
+        String name = sb.length() > 0 && sb.toString().endsWith(".dex") ? sb.toString() : DexFromOat.fileName(dex, index);
+        return dex.isCompact() && name.endsWith(".dex") ? name.substring(0, name.length() - 4) + ".cdex" : name;
+    }
+
+    private String uniqueName(String name, int index) {
+        if (names.add(name)) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String unique = name.substring(0, dot) + "-" + index + name.substring(dot);
+        // another dex file may have been stored under that name already
+        for (int n = 2; !names.add(unique); n++) {
+            unique = name.substring(0, dot) + "-" + index + "-" + n + name.substring(dot);
+        }
+        return unique;
+    }
+
+    /**
+     * @return null if {@code filter} selected no class
+     */
+    private Entry prepare(Dex dex, String name, List<String> mismatches, DexFilter filter) throws IOException {
+        long t = Metrics.start();
+        Entry entry;
+        VerifyingChannel verifying = null;
+        if ((filter != null && filter.filtersClasses()) || dex.hasSharedData()) {
+            // both rewrite parts of the dex file, which the file writers do best; mapped, so not on the heap
+            File rewritten = File.createTempFile("dex", TMP_SUFFIX, file.getAbsoluteFile().getParentFile());
+            boolean keep = false;
+            try {
+                if (!DexFromOat.write(dex, rewritten.getPath(), null, mismatches, filter)) {
+                    return null;
+                }
+                entry = new Entry(dex, name, map(rewritten));
+                entry.tmp = rewritten;
+                keep = true;
+            } finally {
+                if (!keep) {
+                    rewritten.delete();
+                }
+            }
+        } else {
+            entry = new Entry(dex, name, dex.buffer());
+        }
+        EntryChannel channel = new EntryChannel(level);
+        WritableByteChannel target = channel;
+        if (mismatches != null && !dex.isCompact() && !dex.hasSharedData()
+                && (filter == null || !filter.filtersClasses())) {
+            verifying = new VerifyingChannel(channel);
+            target = verifying;
+        }
+        ByteBuffer data = entry.data.duplicate();
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+        entry.crc = channel.crc.getValue();
+        entry.deflated = channel.finish();
+        if (verifying != null) {
+            Dex.Verification verification = verifying.verification(dex);
+            if (!verification.ok()) {
+                mismatches.add(verification.toString());
+            }
+        }
+        Metrics.stop(Metrics.Phase.DEX_COPY, t);
+        return entry;
+    }
+
+    static ByteBuffer map(File f) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        }
+    }
+
+    /**
+     * Writes the entry at the head of the queue, waiting for it to be prepared.
+     */
+    private void writeNext() throws IOException {
+        Entry entry;
+        try {
+            entry = pending.remove(0).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing " + file, e);
+        }
+        if (entry == null) {
+            return;
+        }
+        try {
+            write(entry);
+        } finally {
+            if (entry.tmp != null) {
+                entry.tmp.delete();
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        long offset = out.position();
+        long size = entry.data.remaining();
+        long compressed_size = entry.deflated != null ? entry.deflated.length : size;
+        byte[] name = entry.name.getBytes(UTF8);
+        if (offset + LOCAL_HEADER_SIZE + name.length + compressed_size >= MAX_SIZE
+                || size >= MAX_SIZE || written.size() + 1 >= MAX_ENTRIES) {
+            throw new IOException(file + " would need zip64, which is not supported");
+        }
+        int method = entry.deflated != null ? DEFLATED : STORED;
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER).putShort((short) VERSION).putShort((short) FLAG_UTF8).putShort((short) method)
+                .putInt(dos_time).putInt((int) entry.crc).putInt((int) compressed_size).putInt((int) size)
+                .putShort((short) name.length).putShort((short) 0).put(name);
+        header.flip();
+        writeFully(header);
+        writeFully(entry.deflated != null ? ByteBuffer.wrap(entry.deflated) : entry.data.duplicate());
+        Metrics.written(compressed_size);
+
+        ByteBuffer record = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CENTRAL_HEADER).putShort((short) VERSION).putShort((short) VERSION).putShort((short) FLAG_UTF8)
+                .putShort((short) method).putInt(dos_time).putInt((int) entry.crc).putInt((int) compressed_size)
+                .putInt((int) size).putShort((short) name.length)
+                // extra field, comment, disk number, internal and external attributes
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt((int) offset).put(name);
+        central.write(record.array(), 0, record.position());
+        written.add(entry.dex);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    static int dosTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        return (c.get(Calendar.YEAR) - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16 | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * The dex files written so far, in zip order.
+     */
+    public synchronized List<Dex> written() {
+        return new ArrayList<>(written);
+    }
+
+    /**
+     * Writes the remaining entries and the central directory, and moves the zip file into place.
+     */
+    public synchronized void commit() throws IOException {
+        if (closed) {
+            throw new IllegalStateException(file + " is closed");
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        long offset = out.position();
+        if (offset + central.size() >= MAX_SIZE) {
+            throw new IOException(file + " would need zip64, which is not supported");
+        }
+        writeFully(ByteBuffer.wrap(central.toByteArray()));
+        ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+                .putShort((short) written.size()).putShort((short) written.size())
+                .putInt(central.size()).putInt((int) offset).putShort((short) 0);
+        end.flip();
+        writeFully(end);
+        out.close();
+        if (!tmp.renameTo(file)) {
+            // renameTo does not replace existing files everywhere
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot move " + tmp + " to " + file);
+            }
+        }
+        committed = true;
+    }
+
+    /**
+     * Discards the zip file unless it was committed, along with entries still in flight.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } finally {
+            if (!committed) {
+                tmp.delete();
+                for (Future<Entry> prepared : pending) {
+                    discard(prepared);
+                }
+                pending.clear();
+            }
+        }
+    }
+
+    private static void discard(Future<Entry> prepared) {
+        try {
+            Entry entry = prepared.get();
+            if (entry != null && entry.tmp != null) {
+                entry.tmp.delete();
+            }
+        } catch (ExecutionException e) {
+            // already failed, nothing left behind
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
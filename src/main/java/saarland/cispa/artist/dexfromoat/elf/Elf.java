@@ -20,201 +20,618 @@
  */
 package saarland.cispa.artist.dexfromoat.elf;
 
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+import saarland.cispa.artist.dexfromoat.io.ChannelByteSource;
+import saarland.cispa.artist.dexfromoat.io.MappedByteSource;
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public abstract class Elf {
 
-    public RandomAccessFile elffile;
+    static final long PT_LOAD = 1;
+    static final long PT_DYNAMIC = 2;
+    static final long PF_X = 1;
+
+    static final long DT_NULL = 0;
+    static final long DT_HASH = 4;
+    static final long DT_STRTAB = 5;
+    static final long DT_SYMTAB = 6;
+    static final long DT_SYMENT = 11;
+    static final long DT_GNU_HASH = 0x6ffffef5L;
+
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    public ByteSource source;
     private SectionHeader shstrtab_header;
 
-    protected byte[] word() {
-        throw new RuntimeException("not implemented: Elf.word()");
+    protected int word_size() {
+        throw new RuntimeException("not implemented: Elf.word_size()");
     }
 
-    protected ISymbol symbol(long offset) throws IOException, ParseException {
+    /**
+     * Decodes the symbol at {@code offset}, whose name is in the string table at {@code strtab}.
+     */
+    protected ISymbol symbol(long offset, long strtab) throws IOException, ParseException {
         throw new RuntimeException("not implemented: Elf.symbol()");
     }
 
-    byte[] e_ident_mag = new byte[4];
-    byte[] e_ident_class = new byte[1];
-    byte[] e_ident_data = new byte[1];
-    byte[] e_ident_version = new byte[1];
-    byte[] e_ident_osabi = new byte[1];
-    byte[] e_ident_abiversion = new byte[1];
-    byte[] e_ident_pad = new byte[7];
-    byte[] e_type = new byte[2];
-    byte[] e_machine = new byte[2];
-    byte[] e_version = new byte[4];
-    byte[] e_entry = this.word();
-    byte[] e_phoff = this.word();
-    byte[] e_shoff = this.word();
-    byte[] e_flags = new byte[4];
-    byte[] e_ehsize = new byte[2];
-    byte[] e_phentsize = new byte[2];
-    byte[] e_phnum = new byte[2];
-    byte[] e_shentsize = new byte[2];
-    byte[] e_shnum = new byte[2];
-    byte[] e_shstrndx = new byte[2];
+    int e_ident_class;
+    int e_ident_data;
+    int e_ident_version;
+    int e_ident_osabi;
+    int e_ident_abiversion;
+    int e_type;
+    int e_machine;
+    long e_version;
+    long e_entry;
+    long e_phoff;
+    long e_shoff;
+    long e_flags;
+    int e_ehsize;
+    int e_phentsize;
+    int e_phnum;
+    int e_shentsize;
+    int e_shnum;
+    int e_shstrndx;
 
+    // decoded on demand by lookup_section()/lookup_symbol()
     HashMap<String, SectionHeader> sections = new HashMap<>();
     public HashMap<String, ISymbol> symbols = new HashMap<>();
+    // name -> index, built on the first lookup by name
+    private HashMap<String, Integer> section_index;
+    private HashMap<String, Integer> symbol_index;
+    // what PT_DYNAMIC points to, null if there is no usable dynamic segment
+    private DynamicTables dynamic;
+    private boolean dynamic_parsed;
 
 
 
     public static Elf parse(RandomAccessFile elffile) throws IOException, ParseException {
-        elffile.seek(4);
-        int val = elffile.read();
+        return parse(new MappedByteSource(elffile.getChannel()));
+    }
+
+    public static Elf parse(SeekableByteChannel channel) throws IOException, ParseException {
+        return parse(ChannelByteSource.of(channel));
+    }
+
+    public static Elf parse(ByteSource source) throws IOException, ParseException {
+        int data = source.getUnsignedByte(5);
+        switch (data){
+            case 1:
+                source = source.order(ByteOrder.LITTLE_ENDIAN);
+                break;
+            case 2:
+                source = source.order(ByteOrder.BIG_ENDIAN);
+                break;
+            default:
+                throw new ParseException("Illegal value for e_ident_data: " + data, 5);
+        }
+        int val = source.getUnsignedByte(4);
         switch (val){
             case 1:
-                return new Elf32(elffile);
+                return new Elf32(source);
             case 2:
-                return new Elf64(elffile);
+                return new Elf64(source);
             default:
                 throw new ParseException("Illegal value for e_ident_class: " + val, 4);
         }
     }
 
+    /**
+     * Only the elf header is parsed up front; sections and symbols are decoded
+     * on demand by {@link #lookup_section(String)} and {@link #lookup_symbol(String)}.
+     */
     void parse_elf() throws IOException, ParseException {
+        long t = Metrics.start();
         parse_elf_header();
-        parse_sections();
-        parse_dynsyms();
+        Metrics.stop(Metrics.Phase.ELF_HEADER, t);
+    }
+
+    /**
+     * Reads a target-sized word: 4 bytes for ELFCLASS32, 8 bytes for ELFCLASS64.
+     */
+    long word(long offset) throws IOException {
+        return word_size() == 4 ? source.getUnsignedInt(offset) : source.getLong(offset);
     }
 
     void parse_elf_header() throws IOException, ParseException {
-        elffile.seek(0);
-        elffile.read(e_ident_mag);
-        elffile.read(e_ident_class);
-        elffile.read(e_ident_data);
-        elffile.read(e_ident_version);
-        elffile.read(e_ident_osabi);
-        elffile.read(e_ident_abiversion);
-        elffile.read(e_ident_pad);
-        elffile.read(e_type);
-        elffile.read(e_machine);
-        elffile.read(e_version);
-        elffile.read(e_entry);
-        elffile.read(e_phoff);
-        elffile.read(e_shoff);
-        elffile.read(e_flags);
-        elffile.read(e_ehsize);
-        elffile.read(e_phentsize);
-        elffile.read(e_phnum);
-        elffile.read(e_shentsize);
-        elffile.read(e_shnum);
-        elffile.read(e_shstrndx);
-    }
-
-    public long unpack_int(byte[] data){
-        long val = 0;
-        for (int i = 0; i < data.length; i++) {
-            if (e_ident_data[0] == 2) {
-                val = val*256 + (data[i] & 0xFF);
-            }
-            else {
-                val = val*256 + (data[data.length-1-i] & 0xFF);
-            }
-        }
-        return val;
+        if (source.getInt(0) != (source.order() == ByteOrder.BIG_ENDIAN ? 0x7f454c46 : 0x464c457f)) {
+            throw new ParseException("Illegal elf magic", 0);
+        }
+        e_ident_class = source.getUnsignedByte(4);
+        e_ident_data = source.getUnsignedByte(5);
+        e_ident_version = source.getUnsignedByte(6);
+        e_ident_osabi = source.getUnsignedByte(7);
+        e_ident_abiversion = source.getUnsignedByte(8);
+        e_type = source.getUnsignedShort(16);
+        e_machine = source.getUnsignedShort(18);
+        e_version = source.getUnsignedInt(20);
+        int w = word_size();
+        e_entry = word(24);
+        e_phoff = word(24 + w);
+        e_shoff = word(24 + 2 * w);
+        e_flags = source.getUnsignedInt(24 + 3 * w);
+        e_ehsize = source.getUnsignedShort(28 + 3 * w);
+        e_phentsize = source.getUnsignedShort(30 + 3 * w);
+        e_phnum = source.getUnsignedShort(32 + 3 * w);
+        e_shentsize = source.getUnsignedShort(34 + 3 * w);
+        e_shnum = source.getUnsignedShort(36 + 3 * w);
+        e_shstrndx = source.getUnsignedShort(38 + 3 * w);
     }
 
     class SectionHeader{
 
-        byte[] sh_name = new byte[4];
+        long sh_name;
         String sh_name_str = null;
-        byte[] sh_type = new byte[4];
-        byte[] sh_flags = word();
-        byte[] sh_addr = word();
-        byte[] sh_offset = word();
-        byte[] sh_size = word();
-        byte[] sh_link = new byte[4];
-        byte[] sh_info = new byte[4];
-        byte[] sh_addralign = word();
-        byte[] sh_entsize = word();
+        long sh_type;
+        long sh_flags;
+        long sh_addr;
+        long sh_offset;
+        long sh_size;
+        long sh_link;
+        long sh_info;
+        long sh_addralign;
+        long sh_entsize;
 
         SectionHeader(long offset) throws IOException, ParseException {
-            long mark = elffile.getFilePointer();
-            elffile.seek(offset);
-            elffile.read(sh_name);
-            if (offset != unpack_int(e_shoff) + unpack_int(e_shstrndx) * unpack_int(e_shentsize)){
-                sh_name_str = lookup_shstrtab(unpack_int(sh_name));
+            int w = word_size();
+            sh_name = source.getUnsignedInt(offset);
+            sh_type = source.getUnsignedInt(offset + 4);
+            sh_flags = word(offset + 8);
+            sh_addr = word(offset + 8 + w);
+            sh_offset = word(offset + 8 + 2 * w);
+            sh_size = word(offset + 8 + 3 * w);
+            sh_link = source.getUnsignedInt(offset + 8 + 4 * w);
+            sh_info = source.getUnsignedInt(offset + 12 + 4 * w);
+            sh_addralign = word(offset + 16 + 4 * w);
+            sh_entsize = word(offset + 16 + 5 * w);
+            if (offset != section_header_offset(e_shstrndx)){
+                sh_name_str = lookup_shstrtab(sh_name);
             } else {
                 sh_name_str = ".shstrtab";
             }
-            elffile.read(sh_type);
-            elffile.read(sh_flags);
-            elffile.read(sh_addr);
-            elffile.read(sh_offset);
-            elffile.read(sh_size);
-            elffile.read(sh_link);
-            elffile.read(sh_info);
-            elffile.read(sh_addralign);
-            elffile.read(sh_entsize);
-            elffile.seek(mark);
         }
 
     }
 
+    class ProgramHeader {
+
+        long p_type;
+        long p_flags;
+        long p_offset;
+        long p_vaddr;
+        long p_filesz;
+        long p_memsz;
+
+        ProgramHeader(long offset) throws IOException {
+            p_type = source.getUnsignedInt(offset);
+            if (word_size() == 4) {
+                p_offset = source.getUnsignedInt(offset + 4);
+                p_vaddr = source.getUnsignedInt(offset + 8);
+                p_filesz = source.getUnsignedInt(offset + 16);
+                p_memsz = source.getUnsignedInt(offset + 20);
+                p_flags = source.getUnsignedInt(offset + 24);
+            } else {
+                p_flags = source.getUnsignedInt(offset + 4);
+                p_offset = source.getLong(offset + 8);
+                p_vaddr = source.getLong(offset + 16);
+                p_filesz = source.getLong(offset + 32);
+                p_memsz = source.getLong(offset + 40);
+            }
+        }
+    }
+
+    /**
+     * The dynamic symbol and string table and the symbol hash tables, as file offsets; -1 if absent.
+     */
+    static class DynamicTables {
+        long symtab = -1;
+        long strtab = -1;
+        long syment;
+        long hash = -1;
+        long gnu_hash = -1;
+    }
+
     public abstract class ISymbol {
-        public byte[] st_name = new byte[4];
+        public long st_name;
         public String st_name_str = null;
-        public byte[] st_value = word();
-        public byte[] st_size = word();
-        public byte[] st_info = new byte[1];
-        public byte[] st_other = new byte[1];
-        public byte[] st_shndx = new byte[2];
+        public long st_value;
+        public long st_size;
+        public int st_info;
+        public int st_other;
+        public int st_shndx;
     }
 
     public String readCString(long offset) throws IOException, ParseException {
-        long mark = elffile.getFilePointer();
-        elffile.seek(offset);
-        StringBuilder sb = new StringBuilder();
-        int b;
-        while((b = elffile.read()) != -1){
-            if (b == 0){
-                elffile.seek(mark);
-                return sb.toString();
-            }
-            else {
-                sb.append((char) b);
-            }
+        if (offset >= source.size()) {
+            throw new ParseException("reached EOF while parsing CString", (int) offset);
         }
-        throw new ParseException("reached EOF while parsing CString", (int)elffile.getFilePointer());
+        return source.getCString(offset);
     }
 
     String lookup_shstrtab(long offset) throws IOException, ParseException {
         if (shstrtab_header == null) {
-            long header_offset = unpack_int(e_shoff) + unpack_int(e_shstrndx) * unpack_int(e_shentsize);
-            shstrtab_header = new SectionHeader(header_offset);
+            shstrtab_header = new SectionHeader(section_header_offset(e_shstrndx));
         }
-        return readCString(unpack_int(shstrtab_header.sh_offset) + offset);
+        return readCString(shstrtab_header.sh_offset + offset);
+    }
+
+    /**
+     * Whether {@code name} is the NUL-terminated string at {@code offset}, compared without decoding it.
+     */
+    private boolean name_equals(long offset, byte[] name) throws IOException {
+        if (offset < 0 || offset + name.length >= source.size()) {
+            return false;
+        }
+        byte[] found = new byte[name.length + 1];
+        source.get(offset, found);
+        for (int i = 0; i < name.length; i++) {
+            if (found[i] != name[i]) {
+                return false;
+            }
+        }
+        return found[name.length] == 0;
     }
 
     String lookup_dynstr(long offset) throws IOException, ParseException {
-        return readCString(unpack_int(sections.get(".dynstr").sh_offset) + offset);
+        return readCString(require_section(".dynstr").sh_offset + offset);
+    }
+
+    long section_header_offset(long index) {
+        return e_shoff + index * e_shentsize;
     }
 
-    void parse_dynsyms() throws IOException, ParseException {
-        symbols = new HashMap<>();
-        SectionHeader dynsym = sections.get(".dynsym");
-        for (long i = 0; i * unpack_int(dynsym.sh_entsize) < unpack_int(dynsym.sh_size); i++){
-            long offset = i  * unpack_int(dynsym.sh_entsize) + unpack_int(dynsym.sh_offset);
-            ISymbol a = symbol(offset);
-//            System.out.println("Symbol: " + a.st_name_str);
-            symbols.put(a.st_name_str, a);
+    /**
+     * Returns the header of the named section, or null if there is no such section.
+     */
+    synchronized SectionHeader lookup_section(String name) throws IOException, ParseException {
+        SectionHeader sh = sections.get(name);
+        if (sh == null) {
+            if (section_index == null) {
+                long t = Metrics.start();
+                section_index = new HashMap<>();
+                long shstrtab_offset = section_header_offset(e_shstrndx);
+                for (int header = 0; header < e_shnum; header++) {
+                    long offset = section_header_offset(header);
+                    // sh_name is the first field of a section header
+                    String sh_name_str = offset != shstrtab_offset
+                            ? lookup_shstrtab(source.getUnsignedInt(offset)) : ".shstrtab";
+                    section_index.put(sh_name_str, header);
+                }
+                Metrics.stop(Metrics.Phase.SECTIONS, t);
+            }
+            Integer header = section_index.get(name);
+            if (header == null) {
+                return null;
+            }
+            sh = new SectionHeader(section_header_offset(header));
+            sections.put(name, sh);
+        }
+        return sh;
+    }
+
+    SectionHeader require_section(String name) throws IOException, ParseException {
+        SectionHeader sh = lookup_section(name);
+        if (sh == null) {
+            throw new ParseException("missing section " + name, (int) e_shoff);
         }
+        return sh;
     }
 
-    void parse_sections() throws IOException, ParseException {
-        sections = new HashMap<>();
-        for (int header = 0; header < unpack_int(e_shnum); header++) {
-            long offset = unpack_int(e_shoff) + header*unpack_int(e_shentsize);
-            SectionHeader sh = new SectionHeader(offset);
-            sections.put(sh.sh_name_str, sh);
-//            System.out.println("Section '" + ((sh.sh_name_str != null)?sh.sh_name_str:"") + "' at " + offset);
+    SectionHeader require_dynsym() throws IOException, ParseException {
+        SectionHeader dynsym = require_section(".dynsym");
+        if (dynsym.sh_entsize == 0) {
+            throw new ParseException("Illegal .dynsym sh_entsize: 0", (int) e_shoff);
+        }
+        return dynsym;
+    }
+
+    /**
+     * Returns the named dynamic symbol, or null if there is no such symbol.
+     *
+     * The symbol is looked up in the hash table PT_DYNAMIC points to, which needs
+     * neither section headers nor a scan of all symbols, so stripped files work too.
+     * Files without a usable dynamic segment, or whose hash table misses the symbol,
+     * fall back to indexing .dynsym by name.
+     */
+    public synchronized ISymbol lookup_symbol(String name) throws IOException, ParseException {
+        ISymbol sym = symbols.get(name);
+        if (sym == null) {
+            try {
+                sym = lookup_dynamic_symbol(name);
+            } catch (EOFException e) {
+                // hash table runs past the end of the file
+                sym = null;
+            }
+            if (sym == null) {
+                if (dynamic() != null && lookup_section(".dynsym") == null) {
+                    return null;
+                }
+                sym = lookup_section_symbol(name);
+            }
+            if (sym != null) {
+                symbols.put(name, sym);
+            }
+        }
+        return sym;
+    }
+
+    /**
+     * Looks {@code name} up through DT_GNU_HASH or DT_HASH.
+     *
+     * @return null if there is no dynamic segment with a hash table, or the table does not know the symbol
+     */
+    synchronized ISymbol lookup_dynamic_symbol(String name) throws IOException, ParseException {
+        DynamicTables d = dynamic();
+        if (d == null) {
+            return null;
+        }
+        long t = Metrics.start();
+        byte[] bytes = name.getBytes(LATIN1);
+        long offset = d.gnu_hash >= 0 ? gnu_hash_lookup(d, bytes) : hash_lookup(d, bytes);
+        Metrics.stop(Metrics.Phase.DYNSYMS, t);
+        return offset >= 0 ? symbol(offset, d.strtab) : null;
+    }
+
+    /**
+     * SysV hash table: nbucket, nchain, bucket[nbucket], chain[nchain], all 4-byte words.
+     *
+     * @return the file offset of the symbol, -1 if it is not in the table
+     */
+    long hash_lookup(DynamicTables d, byte[] name) throws IOException {
+        long nbucket = source.getUnsignedInt(d.hash);
+        long nchain = source.getUnsignedInt(d.hash + 4);
+        if (nbucket == 0) {
+            return -1;
+        }
+        long buckets = d.hash + 8;
+        long chains = buckets + 4 * nbucket;
+        long i = source.getUnsignedInt(buckets + 4 * (elf_hash(name) % nbucket));
+        // a corrupt chain could loop, no chain is longer than the symbol table
+        for (long steps = 0; i != 0 && i < nchain && steps < nchain; steps++) {
+            long sym = d.symtab + i * d.syment;
+            // st_name is the first field of both Elf32_Sym and Elf64_Sym
+            if (name_equals(d.strtab + source.getUnsignedInt(sym), name)) {
+                return sym;
+            }
+            i = source.getUnsignedInt(chains + 4 * i);
+        }
+        return -1;
+    }
+
+    /**
+     * GNU hash table: nbuckets, symoffset, bloom_size, bloom_shift, a bloom filter of
+     * target-sized words, bucket[nbuckets], and a hash per symbol from symoffset on,
+     * whose lowest bit marks the end of a chain.
+     *
+     * @return the file offset of the symbol, -1 if it is not in the table
+     */
+    long gnu_hash_lookup(DynamicTables d, byte[] name) throws IOException {
+        long nbuckets = source.getUnsignedInt(d.gnu_hash);
+        long symoffset = source.getUnsignedInt(d.gnu_hash + 4);
+        long bloom_size = source.getUnsignedInt(d.gnu_hash + 8);
+        long bloom_shift = source.getUnsignedInt(d.gnu_hash + 12);
+        if (nbuckets == 0 || bloom_size == 0) {
+            return -1;
+        }
+        int w = word_size();
+        int bits = 8 * w;
+        long bloom = d.gnu_hash + 16;
+        long buckets = bloom + w * bloom_size;
+        long chains = buckets + 4 * nbuckets;
+        long h = gnu_hash(name);
+        long word = word(bloom + w * ((h / bits) % bloom_size));
+        long mask = (1L << (h % bits)) | (1L << ((h >>> bloom_shift) % bits));
+        if ((word & mask) != mask) {
+            return -1;
+        }
+        long i = source.getUnsignedInt(buckets + 4 * (h % nbuckets));
+        if (i < symoffset) {
+            return -1;
+        }
+        // a chain without end marker runs into the end of the file
+        for (;; i++) {
+            long h2 = source.getUnsignedInt(chains + 4 * (i - symoffset));
+            if ((h | 1) == (h2 | 1)) {
+                long sym = d.symtab + i * d.syment;
+                if (name_equals(d.strtab + source.getUnsignedInt(sym), name)) {
+                    return sym;
+                }
+            }
+            if ((h2 & 1) != 0) {
+                return -1;
+            }
+        }
+    }
+
+    static long elf_hash(byte[] name) {
+        long h = 0;
+        for (byte b : name) {
+            h = (h << 4) + (b & 0xff);
+            long g = h & 0xf0000000L;
+            if (g != 0) {
+                h ^= g >>> 24;
+            }
+            h &= ~g;
+        }
+        return h;
+    }
+
+    static long gnu_hash(byte[] name) {
+        long h = 5381;
+        for (byte b : name) {
+            h = (h * 33 + (b & 0xff)) & 0xffffffffL;
+        }
+        return h;
+    }
+
+    /**
+     * Locates the dynamic tables through the program headers, once.
+     *
+     * @return null if there is no PT_DYNAMIC segment with symbol, string and hash table
+     */
+    synchronized DynamicTables dynamic() {
+        if (!dynamic_parsed) {
+            dynamic_parsed = true;
+            long t = Metrics.start();
+            try {
+                dynamic = parse_dynamic();
+            } catch (IOException | RuntimeException e) {
+                // broken program headers, the section headers may still do
+                dynamic = null;
+            }
+            Metrics.stop(Metrics.Phase.SECTIONS, t);
+        }
+        return dynamic;
+    }
+
+    private DynamicTables parse_dynamic() throws IOException {
+        if (e_phoff == 0 || e_phentsize == 0) {
+            return null;
+        }
+        List<ProgramHeader> loads = new ArrayList<>();
+        ProgramHeader dyn = null;
+        for (int i = 0; i < e_phnum; i++) {
+            ProgramHeader ph = new ProgramHeader(e_phoff + (long) i * e_phentsize);
+            if (ph.p_type == PT_LOAD) {
+                loads.add(ph);
+            } else if (ph.p_type == PT_DYNAMIC) {
+                dyn = ph;
+            }
+        }
+        if (dyn == null) {
+            return null;
+        }
+        int w = word_size();
+        long symtab = -1;
+        long strtab = -1;
+        long hash = -1;
+        long gnu_hash = -1;
+        DynamicTables d = new DynamicTables();
+        d.syment = w == 4 ? 16 : 24;
+        long end = Math.min(dyn.p_offset + dyn.p_filesz, source.size());
+        for (long offset = dyn.p_offset; offset + 2 * w <= end; offset += 2 * w) {
+            long tag = word(offset);
+            long value = word(offset + w);
+            if (tag == DT_NULL) {
+                break;
+            } else if (tag == DT_SYMTAB) {
+                symtab = value;
+            } else if (tag == DT_STRTAB) {
+                strtab = value;
+            } else if (tag == DT_SYMENT) {
+                d.syment = value;
+            } else if (tag == DT_HASH) {
+                hash = value;
+            } else if (tag == DT_GNU_HASH) {
+                gnu_hash = value;
+            }
+        }
+        // the dynamic entries hold virtual addresses
+        d.symtab = file_offset(loads, symtab);
+        d.strtab = file_offset(loads, strtab);
+        d.hash = file_offset(loads, hash);
+        d.gnu_hash = file_offset(loads, gnu_hash);
+        if (d.symtab < 0 || d.strtab < 0 || d.syment == 0 || (d.hash < 0 && d.gnu_hash < 0)) {
+            return null;
+        }
+        return d;
+    }
+
+    /**
+     * @return the file offset of {@code vaddr}, -1 if no PT_LOAD segment maps it from the file
+     */
+    static long file_offset(List<ProgramHeader> loads, long vaddr) {
+        if (vaddr < 0) {
+            return -1;
+        }
+        for (ProgramHeader ph : loads) {
+            if (vaddr >= ph.p_vaddr && vaddr - ph.p_vaddr < ph.p_filesz) {
+                return ph.p_offset + (vaddr - ph.p_vaddr);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset right behind the elf header and the program headers
+     */
+    public long headers_end() {
+        return Math.max(e_ehsize, e_phoff + (long) e_phnum * e_phentsize);
+    }
+
+    /**
+     * @return the file offset of the first executable PT_LOAD segment, -1 if there is none
+     */
+    public long executable_segment_offset() throws IOException {
+        long offset = -1;
+        if (e_phoff == 0 || e_phentsize == 0) {
+            return offset;
+        }
+        for (int i = 0; i < e_phnum; i++) {
+            ProgramHeader ph = new ProgramHeader(e_phoff + (long) i * e_phentsize);
+            if (ph.p_type == PT_LOAD && (ph.p_flags & PF_X) != 0 && (offset < 0 || ph.p_offset < offset)) {
+                offset = ph.p_offset;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Looks a section up only if the section header table and .shstrtab both end
+     * before {@code limit}, so that a reader going forward does not pass {@code limit}.
+     *
+     * @return the file offset of the section, -1 if it is missing or its headers lie beyond {@code limit}
+     */
+    public long section_offset_before(String name, long limit) throws IOException, ParseException {
+        if (e_shoff == 0 || e_shnum == 0 || e_shstrndx >= e_shnum || section_header_offset(e_shnum) > limit) {
+            return -1;
+        }
+        SectionHeader shstrtab = new SectionHeader(section_header_offset(e_shstrndx));
+        if (shstrtab.sh_offset + shstrtab.sh_size > limit) {
+            return -1;
+        }
+        SectionHeader sh = lookup_section(name);
+        return sh != null ? sh.sh_offset : -1;
+    }
+
+    /**
+     * Looks {@code name} up in .dynsym, indexing all symbol names on the first call.
+     *
+     * @return null if there is no such symbol
+     */
+    synchronized ISymbol lookup_section_symbol(String name) throws IOException, ParseException {
+        ISymbol sym = symbols.get(name);
+        if (sym == null) {
+            SectionHeader dynsym = require_dynsym();
+            long entsize = dynsym.sh_entsize;
+            if (symbol_index == null) {
+                long t = Metrics.start();
+                symbol_index = new HashMap<>();
+                for (int i = 0; i * entsize < dynsym.sh_size; i++) {
+                    // st_name is the first field of both Elf32_Sym and Elf64_Sym
+                    long st_name = source.getUnsignedInt(dynsym.sh_offset + i * entsize);
+                    symbol_index.put(lookup_dynstr(st_name), i);
+                }
+                Metrics.stop(Metrics.Phase.DYNSYMS, t);
+            }
+            Integer index = symbol_index.get(name);
+            if (index == null) {
+                return null;
+            }
+            sym = symbol(dynsym.sh_offset + index * entsize, require_section(".dynstr").sh_offset);
         }
+        return sym;
     }
 
 }
@@ -20,40 +20,38 @@
  */
 package saarland.cispa.artist.dexfromoat.elf;
 
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.text.ParseException;
 
 public class Elf32 extends Elf {
 
 
-    public Elf32(RandomAccessFile elffile) throws IOException, ParseException {
-        this.elffile = elffile;
+    public Elf32(ByteSource source) throws IOException, ParseException {
+        this.source = source;
         this.parse_elf();
     }
 
 
-    public byte[] word(){
-        return new byte[4];
+    public int word_size(){
+        return 4;
     }
 
     class Symbol32 extends ISymbol {
 
-        Symbol32(long offset) throws IOException, ParseException {
-            long mark = elffile.getFilePointer();
-            elffile.seek(offset);
-            elffile.read(st_name);
-            st_name_str = lookup_dynstr(unpack_int(st_name));
-            elffile.read(st_value);
-            elffile.read(st_size);
-            elffile.read(st_info);
-            elffile.read(st_other);
-            elffile.read(st_shndx);
-            elffile.seek(mark);
+        Symbol32(long offset, long strtab) throws IOException, ParseException {
+            st_name = source.getUnsignedInt(offset);
+            st_value = source.getUnsignedInt(offset + 4);
+            st_size = source.getUnsignedInt(offset + 8);
+            st_info = source.getUnsignedByte(offset + 12);
+            st_other = source.getUnsignedByte(offset + 13);
+            st_shndx = source.getUnsignedShort(offset + 14);
+            st_name_str = readCString(strtab + st_name);
         }
     }
 
-    public ISymbol symbol(long offset) throws IOException, ParseException {
-        return new Symbol32(offset);
+    public ISymbol symbol(long offset, long strtab) throws IOException, ParseException {
+        return new Symbol32(offset, strtab);
     }
 }
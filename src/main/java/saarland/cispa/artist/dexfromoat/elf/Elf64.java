@@ -20,41 +20,39 @@
  */
 package saarland.cispa.artist.dexfromoat.elf;
 
+import saarland.cispa.artist.dexfromoat.io.ByteSource;
+
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.text.ParseException;
 
 public class Elf64 extends Elf {
 
 
-    public Elf64(RandomAccessFile elffile) throws IOException, ParseException {
-        this.elffile = elffile;
+    public Elf64(ByteSource source) throws IOException, ParseException {
+        this.source = source;
         this.parse_elf();
     }
 
 
-    public byte[] word(){
-        return new byte[8];
+    public int word_size(){
+        return 8;
     }
 
     class Symbol64 extends ISymbol {
 
-        Symbol64(long offset) throws IOException, ParseException {
-            long mark = elffile.getFilePointer();
-            elffile.seek(offset);
-            elffile.read(st_name);
-            st_name_str = lookup_dynstr(unpack_int(st_name));
-            elffile.read(st_info);
-            elffile.read(st_other);
-            elffile.read(st_shndx);
-            elffile.read(st_value);
-            elffile.read(st_size);
-            elffile.seek(mark);
+        Symbol64(long offset, long strtab) throws IOException, ParseException {
+            st_name = source.getUnsignedInt(offset);
+            st_info = source.getUnsignedByte(offset + 4);
+            st_other = source.getUnsignedByte(offset + 5);
+            st_shndx = source.getUnsignedShort(offset + 6);
+            st_value = source.getLong(offset + 8);
+            st_size = source.getLong(offset + 16);
+            st_name_str = readCString(strtab + st_name);
         }
     }
 
-    public ISymbol symbol(long offset) throws IOException, ParseException {
-        return new Symbol64(offset);
+    public ISymbol symbol(long offset, long strtab) throws IOException, ParseException {
+        return new Symbol64(offset, strtab);
     }
 
 }
@@ -0,0 +1,183 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link ByteSource} over one or more {@link ByteBuffer}s.
+ *
+ * Contents are held in regions of {@link #REGION_SIZE} bytes, so sources
+ * larger than 2 GB are supported; values straddling two regions take the slow
+ * path. The buffers are never modified, not even their positions.
+ */
+public class BufferByteSource extends ByteSource {
+
+    static final int REGION_SHIFT = 30;
+    static final long REGION_SIZE = 1L << REGION_SHIFT;
+    static final long REGION_MASK = REGION_SIZE - 1;
+
+    private final ByteBuffer[] regions;
+    private final long size;
+
+    protected BufferByteSource(ByteBuffer[] regions, long size, ByteOrder order) {
+        super(order);
+        this.regions = regions;
+        this.size = size;
+    }
+
+    /**
+     * Wraps the remaining bytes of {@code buffer}; offset 0 is the buffer's current position.
+     */
+    public BufferByteSource(ByteBuffer buffer) {
+        this(new ByteBuffer[]{buffer.slice().order(ByteOrder.LITTLE_ENDIAN)}, buffer.remaining(), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public ByteSource order(ByteOrder order) {
+        if (order == this.order) {
+            return this;
+        }
+        ByteBuffer[] views = new ByteBuffer[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            views[i] = regions[i].duplicate().order(order);
+        }
+        return new BufferByteSource(views, size, order);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public byte get(long offset) throws IOException {
+        checkBounds(offset, 1);
+        return regions[(int) (offset >>> REGION_SHIFT)].get((int) (offset & REGION_MASK));
+    }
+
+    @Override
+    public void get(long offset, byte[] dst, int off, int len) throws IOException {
+        checkBounds(offset, len);
+        while (len > 0) {
+            ByteBuffer region = regions[(int) (offset >>> REGION_SHIFT)].duplicate();
+            int pos = (int) (offset & REGION_MASK);
+            int n = Math.min(len, region.limit() - pos);
+            region.position(pos);
+            region.get(dst, off, n);
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes straight from the buffers, so mapped bytes are never copied to the Java heap.
+     */
+    @Override
+    public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        checkBounds(offset, count);
+        while (count > 0) {
+            ByteBuffer region = regions[(int) (offset >>> REGION_SHIFT)].duplicate();
+            int pos = (int) (offset & REGION_MASK);
+            int n = (int) Math.min(count, region.limit() - pos);
+            region.limit(pos + n);
+            region.position(pos);
+            while (region.hasRemaining()) {
+                target.write(region);
+            }
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Returns a view of the underlying buffer, copying only if the range spans two regions.
+     */
+    @Override
+    public ByteBuffer slice(long offset, long len) throws IOException {
+        checkBounds(offset, len);
+        checkSliceSize(len);
+        ByteBuffer region = regions[(int) (offset >>> REGION_SHIFT)].duplicate();
+        int pos = (int) (offset & REGION_MASK);
+        if (pos + len > region.limit()) {
+            return super.slice(offset, len);
+        }
+        region.limit(pos + (int) len);
+        region.position(pos);
+        return region.slice().asReadOnlyBuffer().order(order);
+    }
+
+    @Override
+    public short getShort(long offset) throws IOException {
+        ByteBuffer region = region(offset, 2);
+        return region != null ? region.getShort((int) (offset & REGION_MASK)) : super.getShort(offset);
+    }
+
+    @Override
+    public int getInt(long offset) throws IOException {
+        ByteBuffer region = region(offset, 4);
+        return region != null ? region.getInt((int) (offset & REGION_MASK)) : super.getInt(offset);
+    }
+
+    @Override
+    public long getLong(long offset) throws IOException {
+        ByteBuffer region = region(offset, 8);
+        return region != null ? region.getLong((int) (offset & REGION_MASK)) : super.getLong(offset);
+    }
+
+    @Override
+    public String getCString(long offset) throws IOException {
+        checkBounds(offset, 1);
+        long end = offset;
+        while (end < size) {
+            ByteBuffer region = regions[(int) (end >>> REGION_SHIFT)];
+            int pos = (int) (end & REGION_MASK);
+            int limit = region.limit();
+            while (pos < limit && region.get(pos) != 0) {
+                pos++;
+            }
+            end = (end & ~REGION_MASK) + pos;
+            if (pos < limit) {
+                return getString(offset, (int) (end - offset));
+            }
+        }
+        throw new EOFException("reached EOF while parsing CString at " + offset);
+    }
+
+    /**
+     * Returns the region holding {@code [offset, offset + len)}, or null if the range crosses a region boundary.
+     */
+    private ByteBuffer region(long offset, int len) throws EOFException {
+        checkBounds(offset, len);
+        ByteBuffer region = regions[(int) (offset >>> REGION_SHIFT)];
+        return (offset & REGION_MASK) + len <= region.limit() ? region : null;
+    }
+
+    @Override
+    public void close() {
+        // buffers (and mappings) are released by the garbage collector
+    }
+}
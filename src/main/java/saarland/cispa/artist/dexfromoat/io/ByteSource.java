@@ -0,0 +1,224 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Random access to the bytes of an oat/elf image.
+ *
+ * All reads are absolute: there is no file pointer, so a source can be shared
+ * between parsers (and threads) without any seek/restore bookkeeping.
+ * Multi-byte values are decoded in the byte order returned by {@link #order()}.
+ */
+public abstract class ByteSource implements Closeable {
+
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    protected final ByteOrder order;
+
+    protected ByteSource(ByteOrder order) {
+        this.order = order;
+    }
+
+    public ByteOrder order() {
+        return order;
+    }
+
+    /**
+     * Returns a view of the same bytes that decodes multi-byte values in the given order.
+     */
+    public abstract ByteSource order(ByteOrder order);
+
+    public abstract long size();
+
+    public abstract byte get(long offset) throws IOException;
+
+    public abstract void get(long offset, byte[] dst, int off, int len) throws IOException;
+
+    /**
+     * Writes {@code count} bytes starting at {@code offset} to {@code target} without
+     * buffering them on the heap.
+     */
+    public abstract void transferTo(long offset, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Returns {@code [offset, offset + len)} as a read-only buffer. Buffer-backed
+     * sources return a view without copying; the default implementation copies.
+     */
+    public ByteBuffer slice(long offset, long len) throws IOException {
+        checkBounds(offset, len);
+        checkSliceSize(len);
+        byte[] data = new byte[(int) len];
+        get(offset, data);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer().order(order);
+    }
+
+    /**
+     * Returns a stream over {@code [offset, offset + len)} that reads from the source on demand.
+     */
+    public InputStream inputStream(long offset, long len) throws IOException {
+        checkBounds(offset, len);
+        return new RangeInputStream(offset, len);
+    }
+
+    public void get(long offset, byte[] dst) throws IOException {
+        get(offset, dst, 0, dst.length);
+    }
+
+    public int getUnsignedByte(long offset) throws IOException {
+        return get(offset) & 0xFF;
+    }
+
+    public short getShort(long offset) throws IOException {
+        return (short) getBits(offset, 2);
+    }
+
+    public int getInt(long offset) throws IOException {
+        return (int) getBits(offset, 4);
+    }
+
+    public long getLong(long offset) throws IOException {
+        return getBits(offset, 8);
+    }
+
+    public int getUnsignedShort(long offset) throws IOException {
+        return getShort(offset) & 0xFFFF;
+    }
+
+    public long getUnsignedInt(long offset) throws IOException {
+        return getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Generic fallback used by sources that cannot decode a value in one piece,
+     * e.g. when it straddles two mapped regions.
+     */
+    protected long getBits(long offset, int size) throws IOException {
+        long val = 0;
+        for (int i = 0; i < size; i++) {
+            int b = get(offset + (order == ByteOrder.BIG_ENDIAN ? i : size - 1 - i)) & 0xFF;
+            val = (val << 8) | b;
+        }
+        return val;
+    }
+
+    /**
+     * Reads a fixed-size string, one char per byte.
+     */
+    public String getString(long offset, int size) throws IOException {
+        byte[] data = new byte[size];
+        get(offset, data);
+        return new String(data, LATIN1);
+    }
+
+    /**
+     * Reads a 0-terminated string, one char per byte.
+     */
+    public String getCString(long offset) throws IOException {
+        long end = offset;
+        long size = size();
+        while (end < size && get(end) != 0) {
+            end++;
+        }
+        if (end >= size) {
+            throw new EOFException("reached EOF while parsing CString at " + offset);
+        }
+        return getString(offset, (int) (end - offset));
+    }
+
+    protected static void checkSliceSize(long len) throws IOException {
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("range of " + len + " B does not fit into a ByteBuffer");
+        }
+    }
+
+    protected void checkBounds(long offset, long len) throws EOFException {
+        if (offset < 0 || len < 0 || offset + len > size()) {
+            throw new EOFException("read of " + len + " B at " + offset + " exceeds source size " + size());
+        }
+    }
+
+    class RangeInputStream extends InputStream {
+        private long offset;
+        private final long end;
+        private long mark;
+
+        RangeInputStream(long offset, long len) {
+            this.offset = offset;
+            this.end = offset + len;
+            this.mark = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return offset < end ? get(offset++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (offset >= end) {
+                return -1;
+            }
+            int n = (int) Math.min(len, end - offset);
+            get(offset, b, off, n);
+            offset += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - offset);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = offset;
+        }
+
+        @Override
+        public synchronized void reset() {
+            offset = mark;
+        }
+    }
+}
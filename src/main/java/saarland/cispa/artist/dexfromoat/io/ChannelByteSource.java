@@ -0,0 +1,174 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.io;
+
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link ByteSource} over a {@link SeekableByteChannel} that cannot be mapped,
+ * e.g. an entry of a zip file system or a network channel.
+ *
+ * Header parsing does many small reads, so the most recently read block is
+ * cached. Access to the channel is serialized, as its position is shared state.
+ */
+public class ChannelByteSource extends ByteSource {
+
+    static final int BLOCK_SIZE = 8192;
+    static final int TRANSFER_SIZE = 64 * 1024;
+
+    private final Shared shared;
+
+    /**
+     * State shared by all byte order views of the same channel.
+     */
+    private static class Shared {
+        final SeekableByteChannel channel;
+        final long size;
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long block_offset = -1;
+
+        Shared(SeekableByteChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+    }
+
+    private ChannelByteSource(Shared shared, ByteOrder order) {
+        super(order);
+        this.shared = shared;
+    }
+
+    public ChannelByteSource(SeekableByteChannel channel) throws IOException {
+        this(new Shared(channel), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns a mapping for file channels and a {@link ChannelByteSource} for everything else.
+     */
+    public static ByteSource of(SeekableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) {
+            return new MappedByteSource((FileChannel) channel);
+        }
+        return new ChannelByteSource(channel);
+    }
+
+    @Override
+    public ByteSource order(ByteOrder order) {
+        return order == this.order ? this : new ChannelByteSource(shared, order);
+    }
+
+    @Override
+    public long size() {
+        return shared.size;
+    }
+
+    @Override
+    public byte get(long offset) throws IOException {
+        checkBounds(offset, 1);
+        synchronized (shared) {
+            long block_offset = offset - offset % BLOCK_SIZE;
+            if (block_offset != shared.block_offset) {
+                shared.block.clear();
+                shared.block.limit((int) Math.min(BLOCK_SIZE, shared.size - block_offset));
+                shared.block_offset = -1;
+                readFully(block_offset, shared.block);
+                shared.block_offset = block_offset;
+            }
+            return shared.block.get((int) (offset - block_offset));
+        }
+    }
+
+    @Override
+    public void get(long offset, byte[] dst, int off, int len) throws IOException {
+        checkBounds(offset, len);
+        if (len < BLOCK_SIZE / 4) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = get(offset + i);
+            }
+            return;
+        }
+        synchronized (shared) {
+            readFully(offset, ByteBuffer.wrap(dst, off, len));
+        }
+    }
+
+    /**
+     * Copies through a bounded buffer, or hands off to {@link FileChannel#transferTo} where possible.
+     */
+    @Override
+    public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        checkBounds(offset, count);
+        synchronized (shared) {
+            if (shared.channel instanceof FileChannel) {
+                FileChannel channel = (FileChannel) shared.channel;
+                while (count > 0) {
+                    long n = channel.transferTo(offset, count, target);
+                    if (n <= 0) {
+                        throw new EOFException("channel ended at " + offset);
+                    }
+                    Metrics.read(n);
+                    offset += n;
+                    count -= n;
+                }
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(TRANSFER_SIZE, Math.max(count, 1)));
+            while (count > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                readFully(offset, buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                offset += buffer.limit();
+                count -= buffer.limit();
+            }
+        }
+    }
+
+    private void readFully(long offset, ByteBuffer dst) throws IOException {
+        if (shared.channel.position() != offset) {
+            shared.channel.position(offset);
+            Metrics.seek();
+        }
+        while (dst.hasRemaining()) {
+            int n = shared.channel.read(dst);
+            if (n < 0) {
+                throw new EOFException("channel ended at " + shared.channel.position());
+            }
+            Metrics.read(n);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        shared.channel.close();
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link ByteSource} over a read-only memory mapping of a file.
+ */
+public class MappedByteSource extends BufferByteSource {
+
+    public MappedByteSource(FileChannel channel) throws IOException {
+        super(map(channel), channel.size(), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer[] map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer[] regions = new ByteBuffer[(int) ((size + REGION_MASK) >>> REGION_SHIFT)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = (long) i << REGION_SHIFT;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return regions;
+    }
+
+    /**
+     * Maps the file at the given path. The file handle is released right away,
+     * the mapping stays valid until the source is garbage collected.
+     */
+    public static MappedByteSource open(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            return new MappedByteSource(file.getChannel());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.io;
+
+import saarland.cispa.artist.dexfromoat.metrics.Metrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link ByteSource} over a stream that can only be read forward once, e.g. stdin or a pipe.
+ *
+ * Bytes the parsers read are kept, so headers and tables can be read in any order
+ * once they went by. Reading ahead of the stream skips forward and keeps the
+ * skipped bytes too, as they may hold the rest of a table. Ranges passed to
+ * {@link #transferTo} or skipped with {@link #discardTo(long)} are streamed
+ * through and dropped instead; that is how dex bodies get out without being
+ * buffered. Going back to a dropped byte throws an IOException.
+ *
+ * The size is not known up front, {@link #size()} is {@link Long#MAX_VALUE} and
+ * reading past the end of the stream throws an EOFException.
+ */
+public class StreamByteSource extends ByteSource {
+
+    static final int TRANSFER_SIZE = 64 * 1024;
+
+    private final Shared shared;
+
+    /**
+     * A run of kept bytes; the one ending at the stream position grows as the parsers read ahead.
+     */
+    private static class Segment {
+        final long start;
+        byte[] data = new byte[256];
+        int length;
+
+        Segment(long start) {
+            this.start = start;
+        }
+
+        long end() {
+            return start + length;
+        }
+    }
+
+    /**
+     * State shared by all byte order views of the same stream.
+     */
+    private static class Shared {
+        final InputStream in;
+        // bytes consumed from the stream
+        long position;
+        final TreeMap<Long, Segment> segments = new TreeMap<>();
+        // the segment ending at position, null after a drop
+        Segment tail;
+
+        Shared(InputStream in) {
+            this.in = in;
+        }
+    }
+
+    private StreamByteSource(Shared shared, ByteOrder order) {
+        super(order);
+        this.shared = shared;
+    }
+
+    public StreamByteSource(InputStream in) {
+        this(new Shared(in), ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public ByteSource order(ByteOrder order) {
+        return order == this.order ? this : new StreamByteSource(shared, order);
+    }
+
+    @Override
+    public long size() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * How far the stream has been read.
+     */
+    public long position() {
+        synchronized (shared) {
+            return shared.position;
+        }
+    }
+
+    @Override
+    public byte get(long offset) throws IOException {
+        synchronized (shared) {
+            Segment s = keep(offset, 1);
+            return s.data[(int) (offset - s.start)];
+        }
+    }
+
+    @Override
+    public void get(long offset, byte[] dst, int off, int len) throws IOException {
+        synchronized (shared) {
+            Segment s = keep(offset, len);
+            System.arraycopy(s.data, (int) (offset - s.start), dst, off, len);
+        }
+    }
+
+    @Override
+    public ByteBuffer slice(long offset, long len) throws IOException {
+        checkSliceSize(len);
+        byte[] data = new byte[(int) len];
+        get(offset, data);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer().order(order);
+    }
+
+    /**
+     * Writes the kept part of the range from memory and streams the rest, which is dropped.
+     */
+    @Override
+    public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        synchronized (shared) {
+            if (offset < shared.position) {
+                Map.Entry<Long, Segment> e = shared.segments.floorEntry(offset);
+                Segment s = e != null ? e.getValue() : null;
+                if (s == null || s.end() <= offset) {
+                    throw new IOException("stream cannot go back to dropped offset " + offset);
+                }
+                int n = (int) Math.min(count, s.end() - offset);
+                ByteBuffer kept = ByteBuffer.wrap(s.data, (int) (offset - s.start), n);
+                while (kept.hasRemaining()) {
+                    target.write(kept);
+                }
+                offset += n;
+                count -= n;
+                if (count > 0 && offset < shared.position) {
+                    throw new IOException("stream cannot go back to dropped offset " + offset);
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            skip(offset);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, count));
+            while (count > 0) {
+                int n = shared.in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), count));
+                if (n < 0) {
+                    throw new EOFException("stream ended at " + shared.position);
+                }
+                Metrics.read(n);
+                shared.position += n;
+                count -= n;
+                buffer.clear();
+                buffer.limit(n);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            shared.tail = null;
+        }
+    }
+
+    /**
+     * Skips the stream forward to {@code offset} without keeping the skipped bytes.
+     * Bytes kept so far stay readable.
+     */
+    public void discardTo(long offset) throws IOException {
+        synchronized (shared) {
+            if (offset > shared.position) {
+                skip(offset);
+                shared.tail = null;
+            }
+        }
+    }
+
+    /**
+     * Forgets the kept runs of bytes that lie within {@code [from, to)}; runs that
+     * reach outside, e.g. into a table still being read, stay.
+     */
+    public void release(long from, long to) {
+        synchronized (shared) {
+            Map.Entry<Long, Segment> e = shared.segments.ceilingEntry(from);
+            while (e != null && e.getValue().end() <= to) {
+                shared.segments.remove(e.getKey());
+                if (e.getValue() == shared.tail) {
+                    shared.tail = null;
+                }
+                e = shared.segments.higherEntry(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the segment that holds {@code [offset, offset + len)}, reading ahead as needed
+     */
+    private Segment keep(long offset, int len) throws IOException {
+        if (offset < 0 || len < 0) {
+            throw new EOFException("read of " + len + " B at " + offset);
+        }
+        long end = offset + len;
+        if (end > shared.position) {
+            if (shared.tail == null) {
+                shared.tail = new Segment(shared.position);
+                shared.segments.put(shared.tail.start, shared.tail);
+            }
+            Segment s = shared.tail;
+            long grown = end - s.start;
+            if (grown > Integer.MAX_VALUE) {
+                throw new IOException("cannot keep " + grown + " B of a stream in memory");
+            }
+            if (grown > s.data.length) {
+                byte[] data = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(grown, 2L * s.data.length))];
+                System.arraycopy(s.data, 0, data, 0, s.length);
+                s.data = data;
+            }
+            while (shared.position < end) {
+                int n = shared.in.read(s.data, s.length, (int) (end - shared.position));
+                if (n < 0) {
+                    throw new EOFException("stream ended at " + shared.position);
+                }
+                Metrics.read(n);
+                s.length += n;
+                shared.position += n;
+            }
+        }
+        Map.Entry<Long, Segment> e = shared.segments.floorEntry(offset);
+        if (e == null || e.getValue().end() < end) {
+            throw new IOException("stream cannot go back to dropped offset " + offset);
+        }
+        return e.getValue();
+    }
+
+    private void skip(long offset) throws IOException {
+        while (shared.position < offset) {
+            long n = shared.in.skip(offset - shared.position);
+            if (n <= 0) {
+                // skip() may give up early, read() tells the end of the stream
+                if (shared.in.read() < 0) {
+                    throw new EOFException("stream ended at " + shared.position);
+                }
+                n = 1;
+            }
+            Metrics.read(n);
+            shared.position += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        shared.in.close();
+    }
+}
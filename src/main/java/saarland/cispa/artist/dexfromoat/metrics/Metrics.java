@@ -0,0 +1,330 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Timings and counters of extraction runs.
+ *
+ * Collection is off by default. While disabled every probe is a single volatile
+ * read, so the hooks can stay in the hot paths. Phases are timed with
+ * {@code long t = Metrics.start(); ... Metrics.stop(Phase.X, t);}.
+ *
+ * Byte and seek counters only see channel-backed sources. Mapped files are read
+ * through the page cache, which issues no reads or seeks we could count.
+ */
+public final class Metrics implements MetricsMBean {
+
+    public static final String DOMAIN = "saarland.cispa.artist.dexfromoat";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Phase implements PhaseMBean {
+        ELF_HEADER, SECTIONS, DYNSYMS, OAT_HEADER, DEX_TABLE, DEX_COPY;
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        public String metricName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return nanos.get();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long c = count.get();
+            return c == 0 ? 0 : nanos.get() / 1e6 / c;
+        }
+    }
+
+    // bucket i: files that took less than 2^i ms, the last bucket takes the rest
+    static final int LATENCY_BUCKETS = 18;
+
+    private static volatile boolean enabled;
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dex_files = new AtomicLong();
+    private final AtomicLong bytes_read = new AtomicLong();
+    private final AtomicLong bytes_written = new AtomicLong();
+    private final AtomicLong seeks = new AtomicLong();
+    private final AtomicLong latency_nanos = new AtomicLong();
+    private final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS);
+    private boolean registered;
+
+    private Metrics() {
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts collecting and registers the MBeans with the platform MBean server, where there is one.
+     */
+    public static synchronized void enable() {
+        enabled = true;
+        if (!INSTANCE.registered) {
+            INSTANCE.registered = true;
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(new StandardMBean(INSTANCE, MetricsMBean.class),
+                        new ObjectName(DOMAIN + ":type=Metrics"));
+                for (Phase phase : Phase.values()) {
+                    server.registerMBean(new StandardMBean(phase, PhaseMBean.class),
+                            new ObjectName(DOMAIN + ":type=Phase,name=" + phase.metricName()));
+                }
+            } catch (JMException | SecurityException e) {
+                System.err.println("cannot register metrics MBeans: " + e);
+            } catch (LinkageError e) {
+                // no java.lang.management on Android, counters still work
+            }
+        }
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    /**
+     * @return a start timestamp for {@link #stop(Phase, long)}, 0 while disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Phase phase, long start) {
+        if (start != 0) {
+            phase.nanos.addAndGet(System.nanoTime() - start);
+            phase.count.incrementAndGet();
+        }
+    }
+
+    public static void read(long bytes) {
+        if (enabled) {
+            INSTANCE.bytes_read.addAndGet(bytes);
+        }
+    }
+
+    public static void written(long bytes) {
+        if (enabled) {
+            INSTANCE.bytes_written.addAndGet(bytes);
+        }
+    }
+
+    public static void seek() {
+        if (enabled) {
+            INSTANCE.seeks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records one processed oat file.
+     */
+    public static void file(long nanos, boolean success, int dex_files) {
+        if (!enabled) {
+            return;
+        }
+        INSTANCE.files.incrementAndGet();
+        if (!success) {
+            INSTANCE.failures.incrementAndGet();
+        }
+        INSTANCE.dex_files.addAndGet(dex_files);
+        INSTANCE.latency_nanos.addAndGet(nanos);
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        INSTANCE.latency.incrementAndGet(bucket);
+    }
+
+    @Override
+    public long getFiles() {
+        return files.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getDexFiles() {
+        return dex_files.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytes_read.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytes_written.get();
+    }
+
+    @Override
+    public long getSeeks() {
+        return seeks.get();
+    }
+
+    @Override
+    public long[] getFileLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latency.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void reset() {
+        files.set(0);
+        failures.set(0);
+        dex_files.set(0);
+        bytes_read.set(0);
+        bytes_written.set(0);
+        seeks.set(0);
+        latency_nanos.set(0);
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latency.set(i, 0);
+        }
+        for (Phase phase : Phase.values()) {
+            phase.count.set(0);
+            phase.nanos.set(0);
+        }
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"files\": ").append(getFiles()).append(",\n");
+        sb.append("  \"failures\": ").append(getFailures()).append(",\n");
+        sb.append("  \"dex_files\": ").append(getDexFiles()).append(",\n");
+        sb.append("  \"bytes_read\": ").append(getBytesRead()).append(",\n");
+        sb.append("  \"bytes_written\": ").append(getBytesWritten()).append(",\n");
+        sb.append("  \"seeks\": ").append(getSeeks()).append(",\n");
+        sb.append("  \"phases\": {");
+        Phase[] phases = Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    \"").append(phases[i].metricName()).append("\": {\"count\": ").append(phases[i].getCount())
+                    .append(", \"nanos\": ").append(phases[i].getTotalNanos()).append("}");
+        }
+        sb.append("\n  },\n");
+        sb.append("  \"file_latency_ms\": {\"sum\": ").append(latency_nanos.get() / 1000000).append(", \"buckets\": [");
+        long[] histogram = getFileLatencyHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("{\"lt\": ").append(i < histogram.length - 1 ? String.valueOf(1L << i) : "null")
+                    .append(", \"count\": ").append(histogram[i]).append("}");
+        }
+        sb.append("]}\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * The metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "dexfromoat_files_total", "Oat files processed.", getFiles());
+        counter(sb, "dexfromoat_failures_total", "Oat files that failed.", getFailures());
+        counter(sb, "dexfromoat_dex_files_total", "Dex files extracted.", getDexFiles());
+        counter(sb, "dexfromoat_read_bytes_total", "Bytes read from channel-backed sources.", getBytesRead());
+        counter(sb, "dexfromoat_written_bytes_total", "Dex bytes written.", getBytesWritten());
+        counter(sb, "dexfromoat_seeks_total", "Channel repositionings.", getSeeks());
+        sb.append("# HELP dexfromoat_phase_seconds_total Time spent per extraction phase.\n");
+        sb.append("# TYPE dexfromoat_phase_seconds_total counter\n");
+        for (Phase phase : Phase.values()) {
+            sb.append("dexfromoat_phase_seconds_total{phase=\"").append(phase.metricName()).append("\"} ")
+                    .append(seconds(phase.getTotalNanos())).append('\n');
+        }
+        sb.append("# HELP dexfromoat_phase_calls_total Calls per extraction phase.\n");
+        sb.append("# TYPE dexfromoat_phase_calls_total counter\n");
+        for (Phase phase : Phase.values()) {
+            sb.append("dexfromoat_phase_calls_total{phase=\"").append(phase.metricName()).append("\"} ")
+                    .append(phase.getCount()).append('\n');
+        }
+        sb.append("# HELP dexfromoat_file_seconds Time to process one oat file.\n");
+        sb.append("# TYPE dexfromoat_file_seconds histogram\n");
+        long[] histogram = getFileLatencyHistogram();
+        long cumulative = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            cumulative += histogram[i];
+            String le = i < histogram.length - 1 ? seconds((1L << i) * 1000000) : "+Inf";
+            sb.append("dexfromoat_file_seconds_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append("dexfromoat_file_seconds_sum ").append(seconds(latency_nanos.get())).append('\n');
+        sb.append("dexfromoat_file_seconds_count ").append(cumulative).append('\n');
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    /**
+     * Writes the metrics to {@code file}, in the Prometheus text format if the name ends in ".prom", as JSON otherwise.
+     */
+    public void dump(File file) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), UTF8)) {
+            w.write(file.getName().endsWith(".prom") ? toPrometheus() : toJson());
+        }
+    }
+}
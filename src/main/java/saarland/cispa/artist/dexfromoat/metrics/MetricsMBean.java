@@ -0,0 +1,46 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.metrics;
+
+/**
+ * Run-wide counters, registered as {@code saarland.cispa.artist.dexfromoat:type=Metrics}.
+ */
+public interface MetricsMBean {
+
+    long getFiles();
+
+    long getFailures();
+
+    long getDexFiles();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getSeeks();
+
+    /**
+     * Number of files per latency bucket; bucket i counts files that took less than 2^i ms, the last one the rest.
+     */
+    long[] getFileLatencyHistogram();
+
+    void reset();
+}
@@ -0,0 +1,239 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tar header parsing and walking a tar archive of fixture oat and vdex files.
+ */
+public class ArchiveTest {
+
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("archivetest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Test
+    public void tarHeader() throws IOException {
+        byte[] header = header("system/framework/arm64/boot.oat", 12345, '0');
+        assertTrue(Archive.isTarHeader(header));
+        assertEquals(Archive.Format.TAR, Archive.format(header, header.length));
+        assertEquals(12345, Archive.tarNumber(header, 124, 12));
+        assertEquals("system/framework/arm64/boot.oat", Archive.tarName(header));
+
+        header[0] ^= 1;
+        assertFalse(Archive.isTarHeader(header));
+        header[0] ^= 1;
+        header[148] = '9';
+        assertFalse(Archive.isTarHeader(header));
+        assertFalse(Archive.isTarHeader(new byte[Archive.TAR_BLOCK]));
+    }
+
+    @Test
+    public void tarNumber() throws IOException {
+        byte[] field = "  0644 \0".getBytes(LATIN1);
+        assertEquals(0644, Archive.tarNumber(field, 0, field.length));
+        assertEquals(0, Archive.tarNumber(new byte[8], 0, 8));
+        // base-256, as GNU tar writes sizes of 8 GiB and more
+        byte[] big = new byte[12];
+        big[0] = (byte) 0x80;
+        big[7] = 2;
+        assertEquals(2L << 32, Archive.tarNumber(big, 0, big.length));
+        try {
+            Archive.tarNumber("0812\0".getBytes(LATIN1), 0, 5);
+            fail("8 is not an octal digit");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void ustarPrefix() {
+        byte[] header = header("boot.oat", 0, '0');
+        put(header, 345, "system/framework/arm64");
+        assertEquals("system/framework/arm64/boot.oat", Archive.tarName(header));
+        // without the ustar magic the prefix field is not one
+        put(header, 257, "\0\0\0\0\0");
+        assertEquals("boot.oat", Archive.tarName(header));
+    }
+
+    @Test
+    public void paxPath() {
+        assertEquals("a/very/long/path/base.odex",
+                Archive.paxPath(pax("mtime=1600000000.5", "path=a/very/long/path/base.odex")));
+        assertNull(Archive.paxPath(pax("mtime=1600000000.5")));
+        assertNull(Archive.paxPath("x path=a\n".getBytes(LATIN1)));
+        assertNull(Archive.paxPath("99 path=a\n".getBytes(LATIN1)));
+    }
+
+    @Test
+    public void walkTar() throws IOException {
+        OatFixture first = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, 2, 4096, 10);
+        OatFixture second = new OatFixture(32, ByteOrder.BIG_ENDIAN, 3, 4096, 10);
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "oat/arm64/base.odex", first.build());
+        // a pax header naming the next entry
+        String long_name = "system/framework/" + new String(new char[120]).replace('\0', 'x') + ".odex";
+        byte[] records = pax("path=" + long_name);
+        writeEntry(tar, header("PaxHeaders/x", records.length, 'x'), records);
+        entry(tar, "ignored-name.odex", second.build());
+        tar.write(new byte[2 * Archive.TAR_BLOCK]);
+
+        Archive archive = new Archive(dir);
+        archive.walk(new ByteArrayInputStream(tar.toByteArray()), "apps.tar");
+        List<Batch.Result> results = archive.results();
+        assertEquals(2, results.size());
+
+        Batch.Result plain = results.get(0);
+        assertEquals("apps.tar!/oat/arm64/base.odex", plain.path);
+        assertTrue(plain.error, plain.success);
+        assertEquals(2, plain.dex_files);
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(OatFixture.dex(i, 10, 4096),
+                    Files.readAllBytes(new File(plain.output, "classes" + i + ".dex").toPath()));
+        }
+
+        Batch.Result named = results.get(1);
+        assertEquals("apps.tar!/" + long_name, named.path);
+        assertTrue(named.error, named.success);
+        assertEquals(3, named.dex_files);
+    }
+
+    @Test
+    public void pairsOatWithVdex() throws IOException {
+        OatFixture o = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, 2, 4096, 10, 124);
+        OatFixture m = new OatFixture(32, ByteOrder.BIG_ENDIAN, 3, 4096, 10);
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "oat/arm64/base.odex", o.build());
+        entry(tar, "oat/arm64/base.vdex", o.buildVdex());
+        entry(tar, "oat/arm/base.odex", m.build());
+        tar.write(new byte[2 * Archive.TAR_BLOCK]);
+
+        Archive archive = new Archive(dir);
+        archive.walk(new ByteArrayInputStream(tar.toByteArray()), "apps.tar");
+        List<Batch.Result> results = archive.results();
+        assertEquals(2, results.size());
+
+        // the O oat entry waits for its vdex entry, the M one is extracted right away
+        Batch.Result paired = results.get(0);
+        assertEquals("apps.tar!/oat/arm64/base.odex", paired.path);
+        assertTrue(paired.error, paired.success);
+        assertEquals(2, paired.dex_files);
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(OatFixture.dex(i, 10, 4096),
+                    Files.readAllBytes(new File(paired.output, "classes" + i + ".dex").toPath()));
+        }
+
+        Batch.Result plain = results.get(1);
+        assertEquals("apps.tar!/oat/arm/base.odex", plain.path);
+        assertTrue(plain.error, plain.success);
+        assertEquals(3, plain.dex_files);
+    }
+
+    @Test
+    public void oatWithoutVdexIsSkipped() throws IOException {
+        OatFixture o = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, 1, 4096, 10, 138);
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "base.odex", o.build());
+        tar.write(new byte[2 * Archive.TAR_BLOCK]);
+
+        Archive archive = new Archive(dir);
+        archive.walk(new ByteArrayInputStream(tar.toByteArray()), "app.tar");
+        assertEquals(1, archive.results().size());
+        assertTrue(archive.results().get(0).skipped);
+        assertEquals(0, archive.results().get(0).dex_files);
+    }
+
+    /**
+     * A ustar header with a valid checksum.
+     */
+    static byte[] header(String name, long size, char type) {
+        byte[] header = new byte[Archive.TAR_BLOCK];
+        put(header, 0, name);
+        put(header, 100, "0000644\0");
+        put(header, 124, String.format("%011o\0", size));
+        put(header, 136, "00000000000\0");
+        header[156] = (byte) type;
+        put(header, 257, "ustar\0" + "00");
+        put(header, 148, "        ");
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        put(header, 148, String.format("%06o\0 ", sum));
+        return header;
+    }
+
+    static void entry(ByteArrayOutputStream tar, String name, byte[] data) throws IOException {
+        writeEntry(tar, header(name, data.length, '0'), data);
+    }
+
+    static void writeEntry(ByteArrayOutputStream tar, byte[] header, byte[] data) throws IOException {
+        tar.write(header);
+        tar.write(data);
+        tar.write(new byte[(Archive.TAR_BLOCK - data.length % Archive.TAR_BLOCK) % Archive.TAR_BLOCK]);
+    }
+
+    /**
+     * Pax records, each "length key=value\n" with the length counting itself.
+     */
+    static byte[] pax(String... records) {
+        StringBuilder sb = new StringBuilder();
+        for (String record : records) {
+            int n = record.length() + 2;
+            int length = n + String.valueOf(n + String.valueOf(n).length()).length();
+            sb.append(length).append(' ').append(record).append('\n');
+        }
+        return sb.toString().getBytes(LATIN1);
+    }
+
+    static void put(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(LATIN1);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queuing the oat and vdex files of a directory tree, and extracting them.
+ */
+public class BatchTest {
+
+    private File dir;
+    private File out;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("batchtest").toFile();
+        out = new File(dir, "out");
+    }
+
+    @After
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Test
+    public void vdexFilesWithoutOatFiles() throws IOException {
+        File image = new File(dir, "image");
+        // an oat file with its vdex file, a vdex file of a verified-only app, and an M oat file
+        File paired = new File(image, "app/Paired/oat/arm64");
+        File verified = new File(image, "app/Verified/oat/arm64");
+        File framework = new File(image, "framework/arm");
+        assertTrue(paired.mkdirs() && verified.mkdirs() && framework.mkdirs());
+        OatFixture p = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, 2, 4096, 10, 138);
+        write(new File(paired, "base.odex"), p.build());
+        write(new File(paired, "base.vdex"), p.buildVdex());
+        write(new File(verified, "base.vdex"), new OatFixture(64, ByteOrder.LITTLE_ENDIAN, 3, 4096, 10, 170).buildVdex());
+        write(new File(framework, "boot.oat"), new OatFixture(32, ByteOrder.LITTLE_ENDIAN, 1, 4096, 10).build());
+        write(new File(framework, "notes.txt"), new byte[1]);
+
+        Batch batch = new Batch(out);
+        batch.addInput(image.getPath());
+        // listing the vdex file of a queued oat file again changes nothing
+        batch.addFile(new File(paired, "base.vdex"));
+        List<String> queued = new ArrayList<>();
+        for (Batch.Result r : batch.results()) {
+            queued.add(r.path.substring(image.getPath().length() + 1).replace(File.separatorChar, '/'));
+        }
+        assertEquals(Arrays.asList("app/Paired/oat/arm64/base.odex", "app/Verified/oat/arm64/base.vdex",
+                "framework/arm/boot.oat"), queued);
+
+        int[] dex_files = {2, 3, 1};
+        List<Batch.Result> results = batch.run(2);
+        for (int i = 0; i < results.size(); i++) {
+            Batch.Result r = results.get(i);
+            assertTrue(r.path + ": " + r.error, r.success);
+            assertEquals(r.path, dex_files[i], r.dex_files);
+        }
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * The Adler-32 combination and the class-filtered rewrite of dex files.
+ */
+public class DexTest {
+
+    static final int CLASSES = 25;
+    // larger than the 64 KiB copy buffer, so the patches land in different chunks
+    static final int DEX_SIZE = 200 * 1024;
+
+    private File dir;
+    private Oat oat;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("dextest").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (oat != null) {
+            oat.close();
+        }
+        OatFixture.delete(dir);
+    }
+
+    @Test
+    public void adler32Combine() {
+        Random random = new Random(42);
+        for (int length : new int[]{1, 100, 65520, 65521, 65522, 300000}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            Adler32 whole = new Adler32();
+            whole.update(data);
+            for (int split : new int[]{0, 1, length / 2, length - 1, length}) {
+                Adler32 first = new Adler32();
+                first.update(data, 0, split);
+                Adler32 second = new Adler32();
+                second.update(data, split, length - split);
+                assertEquals("split at " + split + " of " + length, whole.getValue(),
+                        Dex.adler32Combine(first.getValue(), second.getValue(), length - split));
+            }
+        }
+    }
+
+    @Test
+    public void adler32CombineAllOnes() {
+        // sums close to the modulus take the corrections for both halves
+        byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 0xff);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 first = new Adler32();
+        first.update(data, 0, 5552);
+        Adler32 second = new Adler32();
+        second.update(data, 5552, data.length - 5552);
+        assertEquals(whole.getValue(), Dex.adler32Combine(first.getValue(), second.getValue(), data.length - 5552));
+    }
+
+    @Test
+    public void filteredWrite() throws Exception {
+        Dex dex = fixtureDex();
+        File out = new File(dir, "filtered.dex");
+        int kept = dex.write(out.getPath(), new DexFilter().className("com.example.dex001.Class00001?"));
+        assertEquals(10, kept);
+
+        byte[] original = OatFixture.dex(1, CLASSES, DEX_SIZE);
+        byte[] written = Files.readAllBytes(out.toPath());
+        assertEquals(original.length, written.length);
+        ByteBuffer b = ByteBuffer.wrap(written).order(ByteOrder.LITTLE_ENDIAN);
+
+        Adler32 adler = new Adler32();
+        adler.update(written, 12, written.length - 12);
+        assertEquals(adler.getValue(), b.getInt(8) & 0xffffffffL);
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(written, 32, written.length - 32);
+        assertArrayEquals(sha1.digest(), Arrays.copyOfRange(written, 12, 32));
+
+        assertEquals(kept, b.getInt(96));
+        int class_defs_off = b.getInt(100);
+        for (int i = 0; i < CLASSES; i++) {
+            int class_idx = b.getInt(class_defs_off + Dex.CLASS_DEF_SIZE * i);
+            // kept entries are moved to the front, the rest of the table is zeroed
+            assertEquals(i < kept ? 10 + i : 0, class_idx);
+        }
+        assertEquals(kept, mapCount(b, Dex.TYPE_CLASS_DEF_ITEM));
+        assertEquals(CLASSES, mapCount(b, 0x0001));
+
+        // everything outside the header, the class_defs table and the map count is unchanged
+        int map_off = b.getInt(52);
+        for (int i = Dex.HEADER_SIZE; i < written.length; i++) {
+            boolean patched = i >= class_defs_off && i < class_defs_off + Dex.CLASS_DEF_SIZE * CLASSES
+                    || i >= map_off + 4 && i < map_off + 4 + 12 * 6;
+            if (!patched && written[i] != original[i]) {
+                fail("byte " + i + " changed");
+            }
+        }
+    }
+
+    @Test
+    public void filterKeepingAllCopies() throws Exception {
+        Dex dex = fixtureDex();
+        File out = new File(dir, "all.dex");
+        assertEquals(CLASSES, dex.write(out.getPath(), new DexFilter().className("com.example.**")));
+        assertArrayEquals(OatFixture.dex(1, CLASSES, DEX_SIZE), Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void filterKeepingNoneWritesNothing() throws Exception {
+        Dex dex = fixtureDex();
+        File out = new File(dir, "none.dex");
+        assertEquals(0, dex.write(out.getPath(), new DexFilter().className("org.example.*")));
+        assertFalse(out.exists());
+    }
+
+    private Dex fixtureDex() throws Exception {
+        File file = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, 2, DEX_SIZE, CLASSES).write(dir);
+        oat = Oat.open(file.getPath());
+        return oat.dexFile("/data/app/fixture.apk:classes2.dex");
+    }
+
+    /**
+     * The size of the map_list entry of {@code type}.
+     */
+    static int mapCount(ByteBuffer dex, int type) {
+        int map_off = dex.getInt(52);
+        for (int i = 0; i < dex.getInt(map_off); i++) {
+            int entry = map_off + 4 + 12 * i;
+            if ((dex.getShort(entry) & 0xffff) == type) {
+                return dex.getInt(entry + 4);
+            }
+        }
+        throw new AssertionError("no map entry of type " + type);
+    }
+}
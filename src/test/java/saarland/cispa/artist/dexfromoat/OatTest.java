@@ -0,0 +1,74 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parses the oat header layouts of M through S from fixture files held in memory.
+ */
+public class OatTest {
+
+    static final int[] VERSIONS = {64, 124, 131, 138, 170, 183, 195};
+
+    @Test
+    public void layouts() throws Exception {
+        for (int version : VERSIONS) {
+            for (int bits : new int[]{32, 64}) {
+                OatFixture fixture = new OatFixture(bits, ByteOrder.LITTLE_ENDIAN, 3, 4096, 10, version);
+                ByteBuffer buffer = ByteBuffer.wrap(fixture.build());
+                String what = "version " + version + ", " + bits + "-bit";
+                assertEquals(what, version, Oat.version(buffer));
+                Oat oat = fixture.hasVdex() ? Oat.open(buffer, ByteBuffer.wrap(fixture.buildVdex())) : Oat.open(buffer);
+                try {
+                    assertEquals(what, version, oat.version());
+                    assertEquals(what, "speed", oat.keyValueStore().get("compiler-filter"));
+                    assertEquals(what, "/system/framework/boot.art", oat.keyValueStore().get("image-location"));
+                    assertEquals(what, 3, oat.dexFiles().size());
+                    int i = 0;
+                    for (Dex dex : oat) {
+                        assertEquals(what, fixture.location(i), dex.location());
+                        assertArrayEquals(what, OatFixture.dex(i, 10, 4096), bytes(dex.buffer()));
+                        i++;
+                    }
+                    if (fixture.hasVdex()) {
+                        assertEquals(what, Arrays.<String>asList(), oat.checkVdex());
+                    }
+                } finally {
+                    oat.close();
+                }
+            }
+        }
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import saarland.cispa.artist.dexfromoat.io.StreamByteSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Streams fixture oat files up to N and checks that oatdata is found from the
+ * headers, not from the first page that looks like an oat header.
+ */
+public class StreamExtractorTest {
+
+    static final int DEX_COUNT = 3;
+    static final int DEX_SIZE = 80 * 1024;
+    static final int CLASSES = 10;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("streamtest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Test
+    public void streamOat() throws Exception {
+        stream("le64", new OatFixture(64, ByteOrder.LITTLE_ENDIAN, DEX_COUNT, DEX_SIZE, CLASSES), null);
+        stream("be32", new OatFixture(32, ByteOrder.BIG_ENDIAN, DEX_COUNT, DEX_SIZE, CLASSES), null);
+    }
+
+    @Test
+    public void skipsPagesThatOnlyLookLikeOatdata() throws Exception {
+        OatFixture fixture = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, DEX_COUNT, DEX_SIZE, CLASSES).rodataPadding(2);
+        byte[] oat = fixture.build();
+        byte[] decoy = "oat\n064\0".getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(decoy, 0, oat, OatFixture.PAGE, decoy.length);
+        System.arraycopy(decoy, 0, oat, 2 * OatFixture.PAGE, decoy.length);
+        stream("decoy", fixture, oat);
+    }
+
+    @Test
+    public void usesSectionHeadersAheadOfOatdata() throws Exception {
+        OatFixture fixture = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, DEX_COUNT, DEX_SIZE, CLASSES)
+                .rodataPadding(1).sectionHeadersFirst(true);
+        byte[] oat = fixture.build();
+        // a copy of the oat header one page early, whose executable_offset leads to .text as well
+        ByteBuffer b = ByteBuffer.wrap(oat).order(ByteOrder.LITTLE_ENDIAN);
+        System.arraycopy(oat, 2 * OatFixture.PAGE, oat, OatFixture.PAGE, 64);
+        b.putInt(OatFixture.PAGE + 24, b.getInt(OatFixture.PAGE + 24) + OatFixture.PAGE);
+        stream("section headers first", fixture, oat);
+    }
+
+    @Test
+    public void releaseKeepsRunsReachingOutside() throws Exception {
+        byte[] data = new byte[1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        StreamByteSource source = new StreamByteSource(new ByteArrayInputStream(data));
+        source.get(0, new byte[16]);
+        source.discardTo(100);
+        source.get(100, new byte[16]);
+        source.discardTo(200);
+        source.release(8, 200);
+        assertEquals(3, source.get(3));
+        try {
+            source.get(100);
+            fail("released bytes cannot be read again");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void stream(String what, OatFixture fixture, byte[] oat) throws Exception {
+        File out = new File(dir, what);
+        assertTrue(out.mkdir());
+        StreamExtractor extractor = new StreamExtractor();
+        extractor.setVerify(true);
+        List<String> mismatches = new ArrayList<>();
+        List<Dex> written = extractor.extract(new ByteArrayInputStream(oat != null ? oat : fixture.build()),
+                out.getPath(), mismatches);
+        assertEquals(what, DEX_COUNT, written.size());
+        assertEquals(what, Collections.<String>emptyList(), mismatches);
+        for (int i = 0; i < DEX_COUNT; i++) {
+            VdexTest.checkExtracted(fixture, i, new File(out, "classes" + i + ".dex"));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Extracts the dex files of fixture vdex files of every layout, 006 (O) to 027 (S),
+ * with standard and CompactDex files, and checks the checksum and signature of the output.
+ */
+public class VdexTest {
+
+    // O, O MR1, P, Q, R and S: vdex 006, 010, 019, 021, 021 and 027
+    static final int[] VERSIONS = {124, 131, 138, 170, 183, 195};
+    // dex2oat wrote CompactDex files with shared data from P to R
+    static final int[] COMPACT_VERSIONS = {138, 170, 183};
+    static final int DEX_COUNT = 3;
+    // larger than the 64 KiB copy buffer
+    static final int DEX_SIZE = 80 * 1024;
+    static final int CLASSES = 10;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("vdextest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        OatFixture.delete(dir);
+    }
+
+    @Test
+    public void vdexOnItsOwn() throws Exception {
+        for (int version : VERSIONS) {
+            extractVdex(fixture(version, false));
+        }
+    }
+
+    @Test
+    public void compactDexOnItsOwn() throws Exception {
+        for (int version : COMPACT_VERSIONS) {
+            extractVdex(fixture(version, true));
+        }
+    }
+
+    @Test
+    public void oatWithVdex() throws Exception {
+        for (int version : VERSIONS) {
+            extractOat(fixture(version, false));
+        }
+        for (int version : COMPACT_VERSIONS) {
+            extractOat(fixture(version, true));
+        }
+    }
+
+    @Test
+    public void stream() throws Exception {
+        for (int version : VERSIONS) {
+            OatFixture fixture = fixture(version, false);
+            File out = new File(dir, "stream-" + version);
+            assertTrue(out.mkdir());
+            StreamExtractor extractor = new StreamExtractor();
+            extractor.setVerify(true);
+            List<String> mismatches = new ArrayList<>();
+            List<Dex> written = extractor.extract(new ByteArrayInputStream(fixture.buildVdex()), out.getPath(), mismatches);
+            assertEquals("vdex " + fixture.vdexVersion(), DEX_COUNT, written.size());
+            assertEquals(Collections.<String>emptyList(), mismatches);
+            for (int i = 0; i < DEX_COUNT; i++) {
+                checkExtracted(fixture, i, new File(out, "classes" + i + ".dex"));
+            }
+        }
+    }
+
+    @Test
+    public void streamRefusesSharedData() throws Exception {
+        OatFixture fixture = fixture(138, true);
+        try {
+            new StreamExtractor().extract(new ByteArrayInputStream(fixture.buildVdex()), dir.getPath(), null);
+            fail("CompactDex shared data cannot be streamed");
+        } catch (ParseException expected) {
+        }
+    }
+
+    private void extractVdex(OatFixture fixture) throws Exception {
+        String what = "vdex " + fixture.vdexVersion() + (fixture.isCompact() ? ", compact" : "");
+        try (Vdex vdex = Vdex.open(ByteBuffer.wrap(fixture.buildVdex()))) {
+            assertEquals(what, fixture.vdexVersion(), vdex.version());
+            assertEquals(what, DEX_COUNT, vdex.dexFiles().size());
+            byte[][] stored = fixture.dexes();
+            for (int i = 0; i < DEX_COUNT; i++) {
+                assertEquals(what, OatFixture.checksum(stored[i]) & 0xffffffffL, vdex.checksums()[i]);
+            }
+            int i = 0;
+            for (Dex dex : vdex) {
+                assertEquals(what, fixture.isCompact(), dex.isCompact());
+                assertEquals(what, Arrays.asList(String.format("com.example.dex%03d.Class000000", i)),
+                        dex.classNames().subList(0, 1));
+                File out = new File(dir, "vdex-" + fixture.vdexVersion() + "-" + i + ".dex");
+                dex.write(out.getPath());
+                checkExtracted(fixture, i, out);
+                i++;
+            }
+        }
+    }
+
+    private void extractOat(OatFixture fixture) throws Exception {
+        String what = "oat " + fixture.version + (fixture.isCompact() ? ", compact" : "");
+        File file = fixture.write(dir);
+        try (Oat oat = Oat.open(file.getPath())) {
+            assertEquals(what, Collections.<String>emptyList(), oat.checkVdex());
+            int i = 0;
+            for (Dex dex : oat) {
+                assertEquals(what, fixture.location(i), dex.location());
+                File out = new File(dir, "oat-" + fixture.version + "-" + i + ".dex");
+                dex.write(out.getPath());
+                checkExtracted(fixture, i, out);
+                i++;
+            }
+            assertEquals(what, DEX_COUNT, i);
+        }
+    }
+
+    static OatFixture fixture(int version, boolean compact) {
+        return new OatFixture(64, ByteOrder.LITTLE_ENDIAN, DEX_COUNT, DEX_SIZE, CLASSES, version).compact(compact);
+    }
+
+    /**
+     * The file is the expected dex file, and its Adler-32 checksum and SHA-1 signature match its header.
+     */
+    static void checkExtracted(OatFixture fixture, int index, File file) throws Exception {
+        byte[] dex = Files.readAllBytes(file.toPath());
+        assertArrayEquals(file.getName(), fixture.extracted(index), dex);
+        Adler32 adler = new Adler32();
+        adler.update(dex, 12, dex.length - 12);
+        assertEquals(file.getName(), adler.getValue(), ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN).getInt(8) & 0xffffffffL);
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update(dex, 32, dex.length - 32);
+        assertArrayEquals(file.getName(), sha1.digest(), Arrays.copyOfRange(dex, 12, 32));
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the dex files of a fixture oat file into a zip file and reads them back with java.util.zip.
+ */
+public class ZipSinkTest {
+
+    static final int DEX_COUNT = 5;
+    static final int DEX_SIZE = 100 * 1024;
+    static final int CLASSES = 20;
+
+    private File dir;
+    private Oat oat;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("zipsinktest").toFile();
+        File file = new OatFixture(64, ByteOrder.LITTLE_ENDIAN, DEX_COUNT, DEX_SIZE, CLASSES).write(dir);
+        oat = Oat.open(file.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        oat.close();
+        OatFixture.delete(dir);
+    }
+
+    @Test
+    public void stored() throws IOException {
+        roundTrip(0, null);
+    }
+
+    @Test
+    public void deflatedInParallel() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            roundTrip(6, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void roundTrip(int level, ExecutorService executor) throws IOException {
+        File file = new File(dir, "dex.zip");
+        List<String> mismatches = Collections.synchronizedList(new ArrayList<String>());
+        try (ZipSink zip = new ZipSink(file, level, executor)) {
+            int index = 0;
+            for (Dex dex : oat) {
+                zip.add(dex, index++, mismatches, null);
+            }
+            zip.commit();
+            assertEquals(DEX_COUNT, zip.written().size());
+        }
+        assertEquals(Collections.<String>emptyList(), mismatches);
+        assertFalse(new File(dir, "dex.zip" + ZipSink.TMP_SUFFIX).exists());
+
+        try (ZipFile zip = new ZipFile(file)) {
+            List<String> names = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                assertEquals(level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+            }
+            assertEquals(DEX_COUNT, names.size());
+            for (int i = 0; i < DEX_COUNT; i++) {
+                String name = "data/app/fixture.apk/" + (i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+                assertEquals(name, names.get(i));
+                assertArrayEquals(OatFixture.dex(i, CLASSES, DEX_SIZE), read(zip, name));
+            }
+        }
+    }
+
+    @Test
+    public void filteredEntries() throws IOException {
+        File file = new File(dir, "filtered.zip");
+        DexFilter filter = new DexFilter().className("com.example.dex001.Class00000?")
+                .className("com.example.dex003.Class00000?");
+        try (ZipSink zip = new ZipSink(file, 1, null)) {
+            int index = 0;
+            for (Dex dex : oat) {
+                zip.add(dex, index++, null, filter);
+            }
+            zip.commit();
+        }
+        try (ZipFile zip = new ZipFile(file)) {
+            assertEquals(2, zip.size());
+            byte[] dex = read(zip, "data/app/fixture.apk/classes4.dex");
+            assertEquals(DEX_SIZE, dex.length);
+            assertEquals(10, ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN).getInt(96));
+        }
+        // no temp files of the rewritten entries are left behind
+        List<String> left = new ArrayList<>();
+        for (String name : dir.list()) {
+            if (name.endsWith(ZipSink.TMP_SUFFIX)) {
+                left.add(name);
+            }
+        }
+        assertEquals(Collections.<String>emptyList(), left);
+    }
+
+    @Test
+    public void closeWithoutCommitDiscards() throws IOException {
+        File file = new File(dir, "discarded.zip");
+        try (ZipSink zip = new ZipSink(file, 0, null)) {
+            for (Dex dex : oat) {
+                zip.add(dex, 0, null, null);
+            }
+        }
+        assertFalse(file.exists());
+        assertFalse(new File(dir, "discarded.zip" + ZipSink.TMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void duplicateNamesAreMadeUnique() throws IOException {
+        File file = new File(dir, "twice.zip");
+        Dex dex = oat.dexFile("/data/app/fixture.apk");
+        try (ZipSink zip = new ZipSink(file, 0, null)) {
+            zip.add(dex, 0, null, null);
+            zip.add(dex, 7, null, null);
+            zip.commit();
+        }
+        try (ZipFile zip = new ZipFile(file)) {
+            assertTrue(zip.getEntry("data/app/fixture.apk/classes.dex") != null);
+            assertArrayEquals(read(zip, "data/app/fixture.apk/classes.dex"),
+                    read(zip, "data/app/fixture.apk/classes-7.dex"));
+        }
+    }
+
+    @Test
+    public void uniqueNamesAreNotTakenTwice() throws IOException {
+        File file = new File(dir, "thrice.zip");
+        Dex dex = oat.dexFile("/data/app/fixture.apk");
+        try (ZipSink zip = new ZipSink(file, 0, null)) {
+            zip.add(dex, 0, null, null);
+            zip.add(dex, 7, null, null);
+            zip.add(dex, 7, null, null);
+            zip.commit();
+        }
+        try (ZipFile zip = new ZipFile(file)) {
+            assertEquals(3, zip.size());
+            assertArrayEquals(read(zip, "data/app/fixture.apk/classes.dex"),
+                    read(zip, "data/app/fixture.apk/classes-7-2.dex"));
+        }
+    }
+
+    static byte[] read(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("no entry " + name);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = zip.getInputStream(entry)) {
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2020 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author "Alexander Fink <alexander.fink@cispa.saarland>"
+ *
+ */
+package saarland.cispa.artist.dexfromoat.elf;
+
+import org.junit.Test;
+import saarland.cispa.artist.dexfromoat.OatFixture;
+import saarland.cispa.artist.dexfromoat.io.BufferByteSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Dynamic symbol lookup through the SysV and GNU hash tables of the fixture oat files.
+ */
+public class ElfTest {
+
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    static final String[] SYMBOLS = {"oatdata", "oatexec", "oatlastword"};
+
+    @Test
+    public void hashes() {
+        assertEquals(0x077905a6L, Elf.elf_hash("printf".getBytes(LATIN1)));
+        assertEquals(0x156b2bb8L, Elf.gnu_hash("printf".getBytes(LATIN1)));
+        assertEquals(5381L, Elf.gnu_hash(new byte[0]));
+    }
+
+    @Test
+    public void sysvLookup() throws Exception {
+        lookup(false);
+    }
+
+    @Test
+    public void gnuLookup() throws Exception {
+        lookup(true);
+    }
+
+    private void lookup(boolean gnuHash) throws Exception {
+        for (int bits : new int[]{32, 64}) {
+            for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+                byte[] oat = new OatFixture(bits, order, 2, 4096, 10).gnuHash(gnuHash).build();
+                Elf elf = Elf.parse(new BufferByteSource(ByteBuffer.wrap(oat)));
+                for (String name : SYMBOLS) {
+                    Elf.ISymbol hashed = elf.lookup_dynamic_symbol(name);
+                    Elf.ISymbol scanned = elf.lookup_section_symbol(name);
+                    String what = name + " in the " + bits + "-bit " + order + " fixture";
+                    assertNotNull(what, hashed);
+                    assertNotNull(what, scanned);
+                    assertEquals(what, scanned.st_value, hashed.st_value);
+                }
+                assertNull(elf.lookup_dynamic_symbol("oatbss"));
+                assertNull(elf.lookup_dynamic_symbol(""));
+            }
+        }
+    }
+}